@@ -24,25 +24,41 @@ import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.genomics.Genomics;
-import com.google.api.services.genomics.model.Read;
 import com.google.api.services.genomics.model.ReadGroup;
 import com.google.api.services.genomics.model.ReadGroupSet;
 import com.google.api.services.genomics.model.Reference;
-import com.google.api.services.genomics.model.ReferenceSet;
 import com.google.api.services.genomics.model.SearchReadsRequest;
+import com.google.cloud.genomics.gatk.common.GenomicsApiDataSourceFactory.Settings;
 import com.google.cloud.genomics.utils.GenomicsFactory;
-import com.google.cloud.genomics.utils.Paginator;
+import com.google.common.base.Splitter;
 import com.google.common.base.Suppliers;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -52,23 +68,105 @@ import java.util.logging.Logger;
 public class GenomicsApiDataSource {
   private static final Logger LOG = Logger.getLogger(GenomicsApiDataSource.class.getName());
   
+  /** Number of reads requested per API call */
+  private static final int READS_PAGE_SIZE = 2048;
+  
+  /** Subdirectory of the cache directory holding cached metadata */
+  private static final String METADATA_CACHE_DIRECTORY = "metadata";
+  
+  /** Subdirectory of the cache directory holding cached pages of reads */
+  private static final String PAGE_CACHE_DIRECTORY = "pages";
+  
   private String clientSecretsFilename;
   private boolean noLocalServer;
   private String rootUrl;
+  private int shards;
+  private int fetchThreads;
+  private int readAheadPages;
+  private int convertThreads;
+  private int unmappedReadsHeapMegabytes;
+  
+  /** Partial response selector of read searches, made of what GenomicsConverter needs */
+  private String readsSearchFields;
+  
+  /** Whether search responses are decoded straight into SAMRecords */
+  private boolean streamingDecode;
+  
+  /** Whether reads are converted to LazySAMRecords */
+  private boolean lazyRecords;
   
   /** Genomics API stub */
   private Genomics api = null;
+  
+  /** Persistent cache of readgroupset metadata, null if not configured */
+  private MetadataCache metadataCache = null;
+  
+  /** Persistent cache of pages of reads, null if not configured */
+  private ReadPageCache pageCache = null;
+  
+  /** Metadata of readgroupsets resolved by this data source, by readgroupset id */
+  private final ConcurrentMap<String, ReadGroupSetMetadata> metadata = 
+      new ConcurrentHashMap<String, ReadGroupSetMetadata>();
+  
+  /** 
+   * Runs page read-ahead tasks, created on first use. Bounded by the fetch
+   * thread count: read-ahead tasks give their thread back whenever their
+   * buffer is full, so they never wait on a consumer while holding one.
+   */
+  private ExecutorService fetchExecutor = null;
+  
+  /** 
+   * Collects unmapped mates, created on first use. Separate from the fetch
+   * executor since a collection consumes read-ahead tasks running there.
+   */
+  private ExecutorService collectExecutor = null;
+  
+  /** Converts pages of reads in parallel, created on first use if enabled */
+  private ExecutorService convertExecutor = null;
  
   public GenomicsApiDataSource(String rootUrl, 
       String clientSecretsFilename, 
       boolean noLocalServer) {
+    this(rootUrl, new Settings(clientSecretsFilename, noLocalServer));
+  }
+  
+  public GenomicsApiDataSource(String rootUrl, Settings settings) {
     super();
-    this.clientSecretsFilename = clientSecretsFilename;
-    this.noLocalServer = noLocalServer;
+    this.clientSecretsFilename = settings.clientSecretsFile;
+    this.noLocalServer = settings.noLocalServer;
+    this.shards = settings.shards;
+    this.fetchThreads = settings.fetchThreads;
+    this.readAheadPages = settings.readAheadPages;
+    this.convertThreads = settings.convertThreads;
+    this.unmappedReadsHeapMegabytes = settings.unmappedReadsHeapMegabytes;
+    this.streamingDecode = settings.streamingDecode;
+    this.lazyRecords = settings.lazyRecords;
     this.rootUrl = rootUrl;
+    final List<String> omittedFields = Splitter.on(',').trimResults().omitEmptyStrings()
+        .splitToList(settings.omitReadFields);
+    for (String field : omittedFields) {
+      if (!GenomicsConverter.OPTIONAL_READ_FIELDS.contains(field)) {
+        throw new IllegalArgumentException("Read field " + field + " can not be omitted, " +
+            "only " + GenomicsConverter.OPTIONAL_READ_FIELDS + " can");
+      }
+    }
+    this.readsSearchFields = "nextPageToken,alignments(" + 
+        GenomicsConverter.getReadFields(omittedFields) + ")";
+    if (!settings.cacheDirectory.isEmpty()) {
+      this.metadataCache = new MetadataCache(
+          new File(settings.cacheDirectory, METADATA_CACHE_DIRECTORY),
+          TimeUnit.HOURS.toMillis(settings.metadataCacheMaxAgeHours));
+      if (settings.pageCacheMaxMegabytes > 0) {
+        this.pageCache = new ReadPageCache(
+            new File(settings.cacheDirectory, PAGE_CACHE_DIRECTORY),
+            settings.pageCacheMaxMegabytes * 1024L * 1024L,
+            TimeUnit.HOURS.toMillis(settings.pageCacheMaxAgeHours));
+      }
+    }
   }
   
-  private Genomics getApi() throws GeneralSecurityException, IOException {
+  /** Initializes the API once, however many threads query the data source */
+  private synchronized Genomics getApi() throws GeneralSecurityException, IOException {
     if (api == null) {
       api = initGenomicsApi();
     }
@@ -127,16 +225,24 @@ public class GenomicsApiDataSource {
           throws IOException, GeneralSecurityException {
     LOG.info("Getting readset " + readsetId + ", sequence " + sequenceName + 
         ", start=" + sequenceStart + ", end=" + sequenceEnd);
-    final Genomics stub = getApi();
+    final Tracer.Span span = Tracer.begin("getReadsFromGenomicsApi", "api", sequenceName);
+    try {
+      return getReadsFromGenomicsApi(readsetId, sequenceName, sequenceStart, sequenceEnd,
+          getApi());
+    } finally {
+      span.end();
+    }
+  }
+  
+  private ReadIteratorResource getReadsFromGenomicsApi(String readsetId, 
+      String sequenceName, int sequenceStart, int sequenceEnd, Genomics stub) 
+          throws IOException, GeneralSecurityException {
     // TODO(iliat): implement API retries and using access key for public
     // datasets
     try {
-      ReadGroupSet readGroupSet = stub.readgroupsets().get(readsetId).execute();
-      String datasetId = readGroupSet.getDatasetId();
-      LOG.info("Found readset " + readsetId + ", dataset " + datasetId);
-      
-      final Map<String, Reference> references = getReferences(readGroupSet);
-      final Reference reference = references.get(sequenceName);
+      final ReadGroupSetMetadata readGroupSetMetadata = 
+          getReadGroupSetMetadata(readsetId);
+      final Reference reference = readGroupSetMetadata.getReference(sequenceName);
       if (reference != null) {
           LOG.info("Reference for sequence name " + sequenceName + " is found, length="
               + String.valueOf(reference.getLength()));
@@ -145,36 +251,162 @@ public class GenomicsApiDataSource {
       }
       LOG.info("Searching for reads in sequence " + sequenceName + 
           String.valueOf(sequenceStart) + "-" + String.valueOf(sequenceEnd));
-      UnmappedReads unmappedReads = null;
+      Future<UnmappedReads> unmappedReads = null;
       if (sequenceName.isEmpty()) {
-        unmappedReads = getUnmappedMatesOfMappedReads(readsetId); 
-      }
-      Paginator.Reads searchReads = Paginator.Reads.create(stub);
-      SearchReadsRequest readRequest = new SearchReadsRequest()
-        .setReadGroupSetIds(Arrays.asList(readsetId))
-        .setReferenceName(sequenceName)
-        .setPageSize(2048);
-      if (sequenceStart != 0) {
-        readRequest.setStart(Long.valueOf(sequenceStart));
+        unmappedReads = collectUnmappedMatesOfMappedReads(readsetId); 
       }
-      if (sequenceEnd != 0) {
-        readRequest.setEnd(Long.valueOf(sequenceEnd));
+      final SAMFileHeader header = readGroupSetMetadata.getHeader();
+      Iterable<SAMRecord> reads;
+      if (shards > 1 && reference != null && reference.getLength() != null) {
+        final long end = sequenceEnd != 0 ? sequenceEnd : reference.getLength();
+        reads = searchShardedReads(stub, header, readsetId, sequenceName, 
+            sequenceStart, end);
+      } else {
+        reads = searchReads(stub, header,
+            makeReadsRequest(readsetId, sequenceName, sequenceStart, sequenceEnd));
       }
-      Iterable<Read> reads = searchReads.search(readRequest); 
       
-      return new ReadIteratorResource(readGroupSet, 
-          Lists.newArrayList(references.values()), unmappedReads, reads);
+      return new ReadIteratorResource(readGroupSetMetadata, unmappedReads, reads);
     } catch (GoogleJsonResponseException ex) {
-      LOG.warning("Genomics API call failure: " + ex.getMessage());
-      if (ex.getDetails() == null) {
-        throw ex;
+      throw translateApiException(ex);
+    }
+  }
+  
+  /**
+   * Returns the readgroupset, its references and the SAMFileHeader made of them.
+   * These are resolved once per data source and, if a cache directory is
+   * configured, persisted across processes.
+   */
+  public ReadGroupSetMetadata getReadGroupSetMetadata(String readsetId) 
+      throws IOException, GeneralSecurityException {
+    ReadGroupSetMetadata result = metadata.get(readsetId);
+    if (result != null) {
+      return result;
+    }
+    if (metadataCache != null) {
+      result = metadataCache.get(rootUrl, readsetId);
+    }
+    if (result == null) {
+      try {
+        final ReadGroupSet readGroupSet = getApi().readgroupsets().get(readsetId).execute();
+        LOG.info("Found readset " + readsetId + ", dataset " + readGroupSet.getDatasetId());
+        final List<Reference> references = 
+            Lists.newArrayList(getReferences(readGroupSet).values());
+        result = new ReadGroupSetMetadata(readGroupSet, references, 
+            GenomicsConverter.makeSAMFileHeader(readGroupSet, references));
+      } catch (GoogleJsonResponseException ex) {
+        throw translateApiException(ex);
       }
-      throw new IOException(ex.getDetails().getMessage());
+      if (metadataCache != null) {
+        metadataCache.put(rootUrl, readsetId, result);
+      }
+    }
+    final ReadGroupSetMetadata existing = metadata.putIfAbsent(readsetId, result);
+    return existing != null ? existing : result;
+  }
+  
+  private static IOException translateApiException(GoogleJsonResponseException ex) {
+    LOG.warning("Genomics API call failure: " + ex.getMessage());
+    if (ex.getDetails() == null) {
+      return ex;
+    }
+    return new IOException(ex.getDetails().getMessage());
+  }
+  
+  private static SearchReadsRequest makeReadsRequest(String readsetId, 
+      String sequenceName, long sequenceStart, long sequenceEnd) {
+    SearchReadsRequest readRequest = new SearchReadsRequest()
+      .setReadGroupSetIds(Arrays.asList(readsetId))
+      .setReferenceName(sequenceName)
+      .setPageSize(READS_PAGE_SIZE);
+    if (sequenceStart != 0) {
+      readRequest.setStart(Long.valueOf(sequenceStart));
     }
+    if (sequenceEnd != 0) {
+      readRequest.setEnd(Long.valueOf(sequenceEnd));
+    }
+    return readRequest;
+  }
+  
+  /**
+   * Searches for reads, reading pages ahead of the consumer on a background
+   * task unless read-ahead is disabled.
+   */
+  private Iterable<SAMRecord> searchReads(Genomics stub, SAMFileHeader header,
+      SearchReadsRequest request) {
+    final ReadPageIterable pages = newReadPageIterable(stub, header, request);
+    if (readAheadPages <= 0) {
+      return Iterables.concat(pages);
+    }
+    return new ShardedReadsIterable(
+        Collections.singletonList(new ShardedReadsIterable.Shard(0, pages)),
+        getFetchExecutor(), 1, readAheadPages);
+  }
+  
+  /**
+   * Splits the range into shards that are fetched concurrently and returns
+   * their reads in coordinate order.
+   */
+  private Iterable<SAMRecord> searchShardedReads(Genomics stub, SAMFileHeader header,
+      String readsetId,
+      String sequenceName, long sequenceStart, long sequenceEnd) {
+    final long[] starts = ShardedReadsIterable.getShardStarts(sequenceStart, 
+        sequenceEnd, shards);
+    LOG.info("Splitting " + sequenceName + ":" + sequenceStart + "-" + sequenceEnd + 
+        " into " + starts.length + " shards");
+    final List<ShardedReadsIterable.Shard> readShards = Lists.newArrayList();
+    for (int i = 0; i < starts.length; i++) {
+      final long end = i + 1 < starts.length ? starts[i + 1] : sequenceEnd;
+      readShards.add(new ShardedReadsIterable.Shard(starts[i], 
+          newReadPageIterable(stub, header,
+              makeReadsRequest(readsetId, sequenceName, starts[i], end))));
+    }
+    return new ShardedReadsIterable(readShards, getFetchExecutor(), fetchThreads,
+        Math.max(1, readAheadPages));
+  }
+  
+  private ReadPageIterable newReadPageIterable(Genomics stub, SAMFileHeader header,
+      SearchReadsRequest request) {
+    // Keep enough pages converting for a single range to use all converters.
+    return new ReadPageIterable(stub, request, readsSearchFields, pageCache, header,
+        streamingDecode, lazyRecords, getConvertExecutor(), convertThreads + 1);
+  }
+  
+  private synchronized ExecutorService getConvertExecutor() {
+    if (convertExecutor == null && convertThreads > 0) {
+      convertExecutor = Executors.newFixedThreadPool(convertThreads, 
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("ga4gh-convert-%d")
+              .build());
+    }
+    return convertExecutor;
+  }
+  
+  private synchronized ExecutorService getFetchExecutor() {
+    if (fetchExecutor == null) {
+      fetchExecutor = Executors.newFixedThreadPool(Math.max(1, fetchThreads), 
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("ga4gh-fetch-%d")
+              .build());
+    }
+    return fetchExecutor;
+  }
+  
+  private synchronized ExecutorService getCollectExecutor() {
+    if (collectExecutor == null) {
+      collectExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("ga4gh-unmapped-%d")
+          .build());
+    }
+    return collectExecutor;
   }
   
   /**
    * Collect a list of references mentioned in this Readgroupset and get their meta data.
+   * The references are served from the process wide ReferenceSetCache.
    * @throws GeneralSecurityException 
    * @throws IOException 
    */
@@ -199,37 +431,84 @@ public class GenomicsApiDataSource {
     
     Map<String, Reference> references = Maps.newHashMap();
     for (String referenceSetId : referenceSetIds) {
-      LOG.info("Getting reference set " + referenceSetId);
-      ReferenceSet referenceSet = getApi().referencesets().get(referenceSetId).execute();
-      if (referenceSet == null || referenceSet.getReferenceIds() == null) {
-        continue;
-      }
-      for (String referenceId : referenceSet.getReferenceIds()) {
-        LOG.info("Getting reference  " + referenceId);
-        Reference reference = getApi().references().get(referenceId).execute();
+      for (Reference reference : ReferenceSetCache.getInstance()
+          .getReferences(getApi(), rootUrl, referenceSetId)) {
         if (reference.getName() != null) {
           references.put(reference.getName(), reference);
-          LOG.info("Adding reference  " + reference.getName());
         }
       }
     }
     return references;
   }
   
-  private UnmappedReads getUnmappedMatesOfMappedReads(String readsetId) 
+  /**
+   * Collection of unmapped mates that releases the mates it produces if it
+   * was cancelled in the meantime, since nobody else can get hold of them.
+   */
+  private static class UnmappedReadsTask extends FutureTask<UnmappedReads> {
+    UnmappedReadsTask(Callable<UnmappedReads> callable) {
+      super(callable);
+    }
+
+    @Override
+    protected void set(UnmappedReads unmappedReads) {
+      super.set(unmappedReads);
+      if (isCancelled()) {
+        unmappedReads.close();
+      }
+    }
+  }
+  
+  /**
+   * Starts collecting the unmapped mates of mapped reads on a background task,
+   * so the mapped reads can be streamed in the meantime.
+   */
+  private Future<UnmappedReads> collectUnmappedMatesOfMappedReads(final String readsetId) 
       throws GeneralSecurityException, IOException {
+    final Genomics stub = getApi();
+    final SAMFileHeader header = getReadGroupSetMetadata(readsetId).getHeader();
+    final UnmappedReadsTask task = new UnmappedReadsTask(new Callable<UnmappedReads>() {
+      @Override
+      public UnmappedReads call() throws IOException {
+        return getUnmappedMatesOfMappedReads(stub, header, readsetId);
+      }
+    });
+    getCollectExecutor().execute(task);
+    return task;
+  }
+  
+  /**
+   * Collects the unmapped mates of mapped reads, stopping early if the
+   * thread is interrupted because the reads are no longer needed.
+   */
+  private UnmappedReads getUnmappedMatesOfMappedReads(Genomics stub, SAMFileHeader header,
+      String readsetId) throws IOException {
     LOG.info("Collecting unmapped mates of mapped reads for injection");
-    final Paginator.Reads searchUnmappedReads = Paginator.Reads.create(getApi());
-    final SearchReadsRequest unmappedReadRequest = new SearchReadsRequest()
-      .setReadGroupSetIds(Arrays.asList(readsetId))
-      .setReferenceName("*");
-    final Iterable<Read> unmappedReadsIterable = searchUnmappedReads.search(unmappedReadRequest); 
-    final UnmappedReads unmappedReads = new UnmappedReads();
-    for (Read read : unmappedReadsIterable) {
-      unmappedReads.maybeAddRead(read);
-    }
-    LOG.info("Finished collecting unmapped mates of mapped reads: " + 
-        unmappedReads.getReadCount() + " found.");
+    final long startTime = System.currentTimeMillis();
+    final Iterable<SAMRecord> unmappedReadsIterable = searchReads(stub, header,
+        makeReadsRequest(readsetId, "*", 0, 0)); 
+    final UnmappedReads unmappedReads = new UnmappedReads(header, 
+        unmappedReadsHeapMegabytes * 1024L * 1024L, null);
+    boolean collected = false;
+    try {
+      for (SAMRecord read : unmappedReadsIterable) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedIOException("Collection of unmapped mates cancelled");
+        }
+        unmappedReads.maybeAddRead(read);
+      }
+      collected = true;
+    } finally {
+      if (!collected) {
+        unmappedReads.close();
+      }
+      if (unmappedReadsIterable instanceof Closeable) {
+        ((Closeable)unmappedReadsIterable).close();
+      }
+    }
+    LOG.info("Finished collecting unmapped mates of mapped reads in " + 
+        (System.currentTimeMillis() - startTime) + " ms: " + 
+        unmappedReads.getReadCount() + " found. " + unmappedReads);
     return unmappedReads;
   }
 }
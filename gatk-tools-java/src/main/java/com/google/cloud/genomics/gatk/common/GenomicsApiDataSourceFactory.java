@@ -39,6 +39,57 @@ public class GenomicsApiDataSourceFactory {
     }
     public String clientSecretsFile;
     public boolean noLocalServer;
+    /** 
+     * Number of shards a reference range is split into when fetching reads,
+     * 1 means no sharding.
+     */
+    public int shards = 1;
+    /** Maximum number of threads fetching pages of reads, across all shards and ranges */
+    public int fetchThreads = 4;
+    /** 
+     * Number of pages of reads fetched ahead of the consumer on a background
+     * thread, 0 disables read-ahead.
+     */
+    public int readAheadPages = 4;
+    /** 
+     * Directory for caches persisted across processes, empty disables them.
+     */
+    public String cacheDirectory = "";
+    /** How long cached readgroupset metadata and headers stay valid */
+    public int metadataCacheMaxAgeHours = 24;
+    /** 
+     * Maximum size of the cache of pages of reads, least recently used pages
+     * are evicted beyond it. 0 disables the page cache.
+     */
+    public int pageCacheMaxMegabytes = 4096;
+    /** How long cached pages of reads stay valid */
+    public int pageCacheMaxAgeHours = 24;
+    /** 
+     * Comma separated optional Read fields (alignedSequence, alignedQuality, info)
+     * not fetched, for tools that only use positions and flags.
+     */
+    public String omitReadFields = "";
+    /** 
+     * Whether search responses are decoded straight into SAMRecords, rather
+     * than parsed into Read objects that are then converted.
+     */
+    public boolean streamingDecode = true;
+    /** 
+     * Whether reads are converted to LazySAMRecords, which only convert bases,
+     * qualities, CIGAR and tags when they are accessed.
+     */
+    public boolean lazyRecords = true;
+    /** 
+     * Number of threads decoding and converting pages of reads in parallel,
+     * while the fetching threads only download them. 0 converts each page on
+     * the thread that fetched it.
+     */
+    public int convertThreads = 0;
+    /** 
+     * How much of the unmapped mates collected for injection is kept in memory,
+     * the rest is spilled to a temporary file.
+     */
+    public int unmappedReadsHeapMegabytes = 1024;
   }
   
   /**
@@ -59,7 +110,7 @@ public class GenomicsApiDataSourceFactory {
    * Sets the settings for a given root url, that will be used for creating
    * the data source. Has no effect if the data source has already been created.
    */
-  public void configure(String rootUrl, Settings settings) {
+  public synchronized void configure(String rootUrl, Settings settings) {
     Data data = dataSources.get(rootUrl);
     if (data == null) {
       data = new Data(settings, null);
@@ -72,15 +123,14 @@ public class GenomicsApiDataSourceFactory {
   /**
    * Lazily creates and returns the data source for a given root url.
    */
-  public GenomicsApiDataSource get(String rootUrl) {
+  public synchronized GenomicsApiDataSource get(String rootUrl) {
     Data data = dataSources.get(rootUrl);
     if (data == null) {
       data = new Data(new Settings(), null);
       dataSources.put(rootUrl, data);
     }
     if (data.dataSource == null) {
-      data.dataSource = new GenomicsApiDataSource(rootUrl,
-          data.settings.clientSecretsFile, data.settings.noLocalServer);
+      data.dataSource = new GenomicsApiDataSource(rootUrl, data.settings);
     }
     return data.dataSource;
   }
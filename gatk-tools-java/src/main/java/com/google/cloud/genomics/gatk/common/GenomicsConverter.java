@@ -22,6 +22,8 @@
 package com.google.cloud.genomics.gatk.common;
 
 import com.google.api.services.genomics.model.CigarUnit;
+import com.google.api.services.genomics.model.LinearAlignment;
+import com.google.api.services.genomics.model.Position;
 import com.google.api.services.genomics.model.Read;
 import com.google.api.services.genomics.model.ReadGroup;
 import com.google.api.services.genomics.model.ReadGroupProgram;
@@ -29,6 +31,9 @@ import com.google.api.services.genomics.model.ReadGroupSet;
 import com.google.api.services.genomics.model.Reference;
 import com.google.common.collect.Lists;
 
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMProgramRecord;
 import htsjdk.samtools.SAMReadGroupRecord;
@@ -44,6 +49,8 @@ import htsjdk.samtools.util.StringLineReader;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -77,6 +84,19 @@ public abstract class GenomicsConverter {
    */
   private static Map<String, String> CIGAR_OPERATIONS;
   
+  /** 
+   * Types of the tags in SAM_TAGS, indexed by getTagIndex, so the type of
+   * a tag can be found without hashing it. 0 for unknown tags.
+   */
+  private static final char[] TAG_TYPES = new char[128 * 128];
+  
+  /** 
+   * API CIGAR operation names and the corresponding htsjdk operators, in a
+   * perfect hash table indexed by the hash code of the name.
+   */
+  private static String[] CIGAR_OPERATION_NAMES;
+  private static CigarOperator[] CIGAR_OPERATORS;
+  
   static {
     SAM_TAGS = new HashMap<String,String>();
     SAM_TAGS.put("AM", "i");
@@ -136,140 +156,372 @@ public abstract class GenomicsConverter {
     CIGAR_OPERATIONS.put("SEQUENCE_MATCH", "=");
     CIGAR_OPERATIONS.put("SEQUENCE_MISMATCH", "X");
     CIGAR_OPERATIONS.put("SKIP", "N");
+    
+    for (Map.Entry<String, String> tag : SAM_TAGS.entrySet()) {
+      TAG_TYPES[getTagIndex(tag.getKey())] = tag.getValue().charAt(0);
+    }
+    
+    // Find the smallest table in which the hash codes of the API operation
+    // names do not collide, so a lookup is a single probe.
+    int size = Integer.highestOneBit(CIGAR_OPERATIONS.size()) * 2;
+    while (!fillCigarOperationTable(size)) {
+      size *= 2;
+    }
+  }
+  
+  private static boolean fillCigarOperationTable(int size) {
+    final String[] names = new String[size];
+    final CigarOperator[] operators = new CigarOperator[size];
+    for (Map.Entry<String, String> operation : CIGAR_OPERATIONS.entrySet()) {
+      final int index = operation.getKey().hashCode() & (size - 1);
+      if (names[index] != null) {
+        return false;
+      }
+      names[index] = operation.getKey();
+      operators[index] = CigarOperator.characterToEnum(operation.getValue().charAt(0));
+    }
+    CIGAR_OPERATION_NAMES = names;
+    CIGAR_OPERATORS = operators;
+    return true;
+  }
+  
+  /** 
+   * Returns the index of a tag in TAG_TYPES, or -1 if it is not made of
+   * two ASCII characters.
+   */
+  private static int getTagIndex(String tagName) {
+    if (tagName.length() != 2) {
+      return -1;
+    }
+    final char first = tagName.charAt(0);
+    final char second = tagName.charAt(1);
+    if (first >= 128 || second >= 128) {
+      return -1;
+    }
+    return (first << 7) | second;
+  }
+  
+  /** Returns SAM Tag type. If not a known tag - defaults to 'Z'. */
+  private static char getTagTypeCode(String tagName) {
+    final int index = getTagIndex(tagName);
+    if (index < 0 || TAG_TYPES[index] == 0) {
+      return 'Z';
+    }
+    return TAG_TYPES[index];
   }
   
   /** Returns SAM Tag type. If not a known tag - defaults to "Z". */
   public static String getTagType(String tagName) {
-    final String result = SAM_TAGS.get(tagName);
-    return result != null ? result : "Z";
+    return String.valueOf(getTagTypeCode(tagName));
   }
   
-  /** Codec used for converting know SAM tags and their values, from strings to Objects */
-  private static TextTagCodec textTagCodec = new TextTagCodec();
+  /** Read field holding the bases, which makeSAMRecord can do without */
+  public static final String ALIGNED_SEQUENCE_FIELD = "alignedSequence";
+  /** Read field holding the base qualities, which makeSAMRecord can do without */
+  public static final String ALIGNED_QUALITY_FIELD = "alignedQuality";
+  /** Read field holding the optional SAM tags, which makeSAMRecord can do without */
+  public static final String INFO_FIELD = "info";
   
+  /** Read fields that can be left out of requests for tools that do not need them */
+  public static final List<String> OPTIONAL_READ_FIELDS = Arrays.asList(
+      ALIGNED_SEQUENCE_FIELD, ALIGNED_QUALITY_FIELD, INFO_FIELD);
+  
+  /** 
+   * Read fields makeSAMRecord always uses, in the partial response syntax
+   * of the API.
+   */
+  private static final String REQUIRED_READ_FIELDS = "fragmentName,readGroupId," +
+      "numberReads,properPlacement,readNumber,secondaryAlignment," +
+      "supplementaryAlignment,failedVendorQualityChecks,duplicateFragment," +
+      "fragmentLength,alignment(position,mappingQuality,cigar)," +
+      "nextMatePosition";
+  
+  /**
+   * Returns the Read fields used by makeSAMRecord, in the partial response
+   * syntax of the API, so requests can leave out all other fields.
+   * @param omittedFields optional fields (see OPTIONAL_READ_FIELDS) that 
+   * the caller does not need.
+   */
+  public static String getReadFields(Collection<String> omittedFields) {
+    final StringBuilder fields = new StringBuilder(REQUIRED_READ_FIELDS);
+    for (String field : OPTIONAL_READ_FIELDS) {
+      if (!omittedFields.contains(field)) {
+        fields.append(',').append(field);
+      }
+    }
+    return fields.toString();
+  }
+  
+  /** 
+   * Codec used for converting know SAM tags and their values, from strings to Objects.
+   * TextTagCodec decodes through a mutable field array, so each converting
+   * thread has its own.
+   */
+  private static final ThreadLocal<TextTagCodec> textTagCodec = new ThreadLocal<TextTagCodec>() {
+    @Override
+    protected TextTagCodec initialValue() {
+      return new TextTagCodec();
+    }
+  };
+  
+  /**
+   * Converts a Read to a SAMRecord.
+   * This runs once for every read, so it avoids intermediate strings, boxing
+   * and map lookups: the Cigar is built directly and CIGAR operations and tag
+   * types are found in precomputed tables.
+   */
   public static final SAMRecord makeSAMRecord(Read read, SAMFileHeader header) {
-    SAMRecord record = new SAMRecord(header);
+    return makeSAMRecord(read, new ReferenceIndexCache(header), false);
+  }
+  
+  /**
+   * Converts a Read to a SAMRecord, looking up its references in the cache,
+   * which should be shared by the reads of a page.
+   */
+  public static final SAMRecord makeSAMRecord(Read read, ReferenceIndexCache references) {
+    return makeSAMRecord(read, references, false);
+  }
+  
+  /**
+   * Converts a Read to a LazySAMRecord, which only converts bases, qualities,
+   * CIGAR and tags when they are first accessed.
+   */
+  public static final SAMRecord makeLazySAMRecord(Read read, SAMFileHeader header) {
+    return makeSAMRecord(read, new ReferenceIndexCache(header), true);
+  }
+  
+  /**
+   * Converts a Read to a LazySAMRecord, looking up its references in the cache,
+   * which should be shared by the reads of a page.
+   */
+  public static final SAMRecord makeLazySAMRecord(Read read, ReferenceIndexCache references) {
+    return makeSAMRecord(read, references, true);
+  }
+  
+  /**
+   * Index in a header of the last reference looked up. Reads come sorted by
+   * reference, so reads converted with the same cache look each reference up
+   * once instead of once per read. It must be used by one thread at a time.
+   */
+  public static final class ReferenceIndexCache {
+    private final SAMFileHeader header;
+    private String lastReferenceName = null;
+    private int lastReferenceIndex = -1;
+    
+    public ReferenceIndexCache(SAMFileHeader header) {
+      this.header = header;
+    }
+    
+    public SAMFileHeader getHeader() {
+      return header;
+    }
+    
+    /** Returns the index of the reference in the header, -1 if it is not there */
+    int getReferenceIndex(String referenceName) {
+      if (!referenceName.equals(lastReferenceName)) {
+        lastReferenceName = referenceName;
+        lastReferenceIndex = header.getSequenceIndex(referenceName);
+      }
+      return lastReferenceIndex;
+    }
+  }
+  
+  private static SAMRecord makeSAMRecord(Read read, ReferenceIndexCache references, 
+      boolean lazy) {
+    final SAMFileHeader header = references.getHeader();
+    final LazySAMRecord lazyRecord = lazy ? new LazySAMRecord(header) : null;
+    SAMRecord record = lazy ? lazyRecord : new SAMRecord(header);
     if (read.getFragmentName() != null) {
       record.setReadName(read.getFragmentName());
     }
     if (read.getReadGroupId() != null) {
       record.setAttribute("RG" ,read.getReadGroupId());
     }
+    final LinearAlignment alignment = read.getAlignment();
+    final Position position = alignment != null ? alignment.getPosition() : null;
+    final Position matePosition = read.getNextMatePosition();
+    final Integer readNumber = read.getReadNumber();
+    
     // Set flags, as advised in http://google-genomics.readthedocs.org/en/latest/migrating_tips.html
     int flags = 0;
 
+    // Fragments of more than two reads have multiple segments too, and
+    // UnmappedReads relies on the flag to inject the mates of all of them.
     final boolean paired = (read.getNumberReads() != null && 
-        read.getNumberReads() == 2);
+        read.getNumberReads() >= 2);
     flags += paired ? 1 : 0 ;// read_paired
-    flags += (read.getProperPlacement() != null &&
-        read.getProperPlacement()) ? 2 : 0; // read_proper_pair
-    final boolean unmapped = (read.getAlignment() == null || 
-        read.getAlignment().getPosition() == null || 
-        read.getAlignment().getPosition().getPosition() == null);
+    flags += isTrue(read.getProperPlacement()) ? 2 : 0; // read_proper_pair
+    final boolean unmapped = (position == null || position.getPosition() == null);
     flags += unmapped ? 4 : 0;  // read_unmapped
-    flags += ((read.getNextMatePosition() == null || 
-        read.getNextMatePosition().getPosition() == null)) ? 8 : 0; // mate_unmapped
-    flags += (read.getAlignment() != null && 
-        read.getAlignment().getPosition() != null && 
-        read.getAlignment().getPosition().getReverseStrand()) ? 16 : 0 ; // read_reverse_strand
-    flags += (read.getNextMatePosition() != null &&
-        read.getNextMatePosition().getReverseStrand()) ? 32 : 0;  // mate_reverse_strand
-    flags += (read.getReadNumber() != null && 
-        read.getReadNumber() == 0) ? 64 : 0; // first_in_pair
-    flags += (read.getReadNumber() != null && 
-        read.getReadNumber() == 1) ? 128 : 0;  // second_in_pair
-    flags += (read.getSecondaryAlignment() != null 
-        && read.getSecondaryAlignment()) ? 256 : 0; // secondary_alignment
-    flags += (read.getFailedVendorQualityChecks() != null &&
-        read.getFailedVendorQualityChecks()) ? 512 : 0;// failed_quality_check
-    flags += (read.getDuplicateFragment() != null && 
-        read.getDuplicateFragment()) ? 1024 : 0; // duplicate_read
-    flags += (read.getSupplementaryAlignment() != null &&
-        read.getSupplementaryAlignment()) ? 2048 : 0; //supplementary_alignment
+    flags += ((matePosition == null || 
+        matePosition.getPosition() == null)) ? 8 : 0; // mate_unmapped
+    flags += (position != null && 
+        isTrue(position.getReverseStrand())) ? 16 : 0 ; // read_reverse_strand
+    flags += (matePosition != null &&
+        isTrue(matePosition.getReverseStrand())) ? 32 : 0;  // mate_reverse_strand
+    flags += (readNumber != null && readNumber == 0) ? 64 : 0; // first_in_pair
+    flags += (readNumber != null && readNumber == 1) ? 128 : 0;  // second_in_pair
+    flags += isTrue(read.getSecondaryAlignment()) ? 256 : 0; // secondary_alignment
+    flags += isTrue(read.getFailedVendorQualityChecks()) ? 512 : 0;// failed_quality_check
+    flags += isTrue(read.getDuplicateFragment()) ? 1024 : 0; // duplicate_read
+    flags += isTrue(read.getSupplementaryAlignment()) ? 2048 : 0; //supplementary_alignment
     record.setFlags(flags);
     
-    String referenceName = null;
-    Long alignmentStart = null;
-    if (read.getAlignment() != null) {
-      if (read.getAlignment().getPosition() != null ) {
-        referenceName = read.getAlignment().getPosition().getReferenceName();
+    if (alignment != null) {
+      if (position != null) {
+        final String referenceName = position.getReferenceName();
         if (referenceName != null) {
-          record.setReferenceName(referenceName);
+          final int referenceIndex = references.getReferenceIndex(referenceName);
+          if (referenceIndex >= 0) {
+            record.setReferenceIndex(referenceIndex);
+          } else {
+            record.setReferenceName(referenceName);
+          }
         }
-        alignmentStart = read.getAlignment().getPosition().getPosition();
+        final Long alignmentStart = position.getPosition();
         if (alignmentStart != null) {
           // API positions are 0-based and SAMRecord is 1-based.
           record.setAlignmentStart(alignmentStart.intValue() + 1);
         }
       }
-      Integer mappingQuality = read.getAlignment().getMappingQuality();
+      Integer mappingQuality = alignment.getMappingQuality();
       if (mappingQuality != null) {
         record.setMappingQuality(mappingQuality);
       }
       
-      List<CigarUnit> cigar = read.getAlignment().getCigar();
+      List<CigarUnit> cigar = alignment.getCigar();
       if (cigar != null && cigar.size() > 0) {
-        StringBuffer cigarString = new StringBuffer(cigar.size());
-
-        for (CigarUnit unit : cigar) {
-          cigarString.append(String.valueOf(unit.getOperationLength()));
-          cigarString.append(CIGAR_OPERATIONS.get(unit.getOperation()));
+        if (lazy) {
+          lazyRecord.setPendingCigar(cigar);
+        } else {
+          record.setCigar(makeCigar(cigar));
         }
-        record.setCigarString(cigarString.toString());
       }
     }
 
-    if (read.getNextMatePosition() != null) {
-      String mateReferenceName = read.getNextMatePosition().getReferenceName();
+    if (matePosition != null) {
+      String mateReferenceName = matePosition.getReferenceName();
       if (mateReferenceName != null) {
-        record.setMateReferenceName(mateReferenceName);
+        final int referenceIndex = references.getReferenceIndex(mateReferenceName);
+        if (referenceIndex >= 0) {
+          record.setMateReferenceIndex(referenceIndex);
+        } else {
+          record.setMateReferenceName(mateReferenceName);
+        }
       }
-      Long matePosition = read.getNextMatePosition().getPosition();
-      if (matePosition != null) {
+      Long mateStart = matePosition.getPosition();
+      if (mateStart != null) {
         // API positions are 0-based and SAMRecord is 1-based.
-        record.setMateAlignmentStart(matePosition.intValue() + 1);
+        record.setMateAlignmentStart(mateStart.intValue() + 1);
       }
     } 
     
     if (read.getFragmentLength() != null) {
       record.setInferredInsertSize(read.getFragmentLength());
     }
+    if (lazy) {
+      // The rest is converted by LazySAMRecord when it is accessed.
+      lazyRecord.setPendingReadString(read.getAlignedSequence());
+      if (read.getAlignedQuality() != null && read.getAlignedQuality().size() > 0) {
+        lazyRecord.setPendingBaseQualities(read.getAlignedQuality());
+      }
+      lazyRecord.setPendingInfo(read.getInfo());
+      return record;
+    }
     if (read.getAlignedSequence() != null) {
       record.setReadString(read.getAlignedSequence());
     }
     
     List<Integer> baseQuality = read.getAlignedQuality();
     if (baseQuality != null && baseQuality.size() > 0) {
-      byte[] qualityArray = new byte[baseQuality.size()];
-      int idx = 0;
-      for (Integer i : baseQuality) {
-        qualityArray[idx++] = i.byteValue();
-      }
-      record.setBaseQualities(qualityArray);
+      record.setBaseQualities(makeBaseQualities(baseQuality));
     }
 
     Map<String, List<String>> tags = read.getInfo();
     if (tags != null) {
-      for (String tag : tags.keySet()) {
-        List<String> values = tags.get(tag);
-        if (values != null) {
-          for (String value : values) {
-              Object attrValue = textTagCodec.decode(
-                  tag + ":" + getTagType(tag) + ":" + value)
-                  .getValue();
-                  if (attrValue instanceof TagValueAndUnsignedArrayFlag) {
-                    record.setUnsignedArrayAttribute(tag, 
-                        ((TagValueAndUnsignedArrayFlag)attrValue).value);
-                  } else {
-                    record.setAttribute(tag, attrValue);
-                  }
-          }
-        }
-      }
+      setAttributes(record, tags);
     }
 
     return record;
   }
+  
+  /** Converts the CIGAR units of a Read */
+  static Cigar makeCigar(List<CigarUnit> cigar) {
+    final List<CigarElement> elements = new ArrayList<CigarElement>(cigar.size());
+    for (int i = 0; i < cigar.size(); i++) {
+      final CigarUnit unit = cigar.get(i);
+      elements.add(new CigarElement(unit.getOperationLength().intValue(), 
+          getCigarOperator(unit.getOperation())));
+    }
+    return new Cigar(elements);
+  }
+  
+  /** Converts the aligned quality of a Read */
+  static byte[] makeBaseQualities(List<Integer> baseQuality) {
+    byte[] qualityArray = new byte[baseQuality.size()];
+    for (int i = 0; i < qualityArray.length; i++) {
+      qualityArray[i] = (byte)baseQuality.get(i).intValue();
+    }
+    return qualityArray;
+  }
+  
+  /** Decodes the info map of a Read and sets the tags on the record */
+  static void setAttributes(SAMRecord record, Map<String, List<String>> tags) {
+    for (Map.Entry<String, List<String>> tag : tags.entrySet()) {
+      List<String> values = tag.getValue();
+      if (values != null) {
+        for (String value : values) {
+          setAttribute(record, tag.getKey(), value);
+        }
+      }
+    }
+  }
+  
+  private static boolean isTrue(Boolean value) {
+    return value != null && value;
+  }
+  
+  /** Returns the htsjdk CIGAR operator for a CIGAR operation as named by the API */
+  public static CigarOperator getCigarOperator(String operation) {
+    final int index = operation.hashCode() & (CIGAR_OPERATION_NAMES.length - 1);
+    if (!operation.equals(CIGAR_OPERATION_NAMES[index])) {
+      throw new IllegalArgumentException("Unknown CIGAR operation " + operation);
+    }
+    return CIGAR_OPERATORS[index];
+  }
+  
+  /** 
+   * Decodes a value of a tag from the info map of a Read and sets it on the record.
+   * String values and integer values in the int range are decoded directly,
+   * everything else goes through TextTagCodec.
+   */
+  public static void setAttribute(SAMRecord record, String tag, String value) {
+    final char type = getTagTypeCode(tag);
+    if (type == 'Z') {
+      record.setAttribute(tag, value);
+      return;
+    }
+    if (type == 'i') {
+      try {
+        final long longValue = Long.parseLong(value);
+        if (longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) {
+          record.setAttribute(tag, Integer.valueOf((int)longValue));
+          return;
+        }
+      } catch (NumberFormatException ex) {
+        // Malformed values are reported by TextTagCodec, as they always were.
+      }
+    }
+    Object attrValue = textTagCodec.get().decode(
+        tag + ":" + type + ":" + value)
+        .getValue();
+    if (attrValue instanceof TagValueAndUnsignedArrayFlag) {
+      record.setUnsignedArrayAttribute(tag, 
+          ((TagValueAndUnsignedArrayFlag)attrValue).value);
+    } else {
+      record.setAttribute(tag, attrValue);
+    }
+  }
 
   public static final SAMRecord makeSAMRecord(Read read, 
       ReadGroupSet readGroupSet, List<Reference> references, 
@@ -0,0 +1,233 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.google.api.services.genomics.model.CigarUnit;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.SAMBinaryTagAndValue;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SAMRecord converted from a GA4GH Read that only converts the bases, base
+ * qualities, CIGAR and optional tags when they are first accessed, in the
+ * spirit of htsjdk's BAMRecord.
+ * Flags, positions, mapping quality, mate information and the read group
+ * are set when the record is made, so tools that only look at positions and
+ * flags never pay for the rest.
+ * Every SAMRecord method that reads one of the lazily set fields directly is
+ * overridden to convert it first; setters discard the pending value.
+ * clone() does not convert anything: the copy shares the pending values,
+ * which are never modified, and converts them on its own.
+ */
+public class LazySAMRecord extends SAMRecord {
+  private String pendingReadString;
+  private List<Integer> pendingBaseQualities;
+  private List<CigarUnit> pendingCigar;
+  private Map<String, List<String>> pendingInfo;
+  /** Tags and their values, alternating, as collected by ReadPageDecoder */
+  private List<String> pendingTagsAndValues;
+
+  public LazySAMRecord(SAMFileHeader header) {
+    super(header);
+  }
+
+  void setPendingReadString(String readString) {
+    this.pendingReadString = readString;
+  }
+
+  void setPendingBaseQualities(List<Integer> baseQualities) {
+    this.pendingBaseQualities = baseQualities;
+  }
+
+  void setPendingCigar(List<CigarUnit> cigar) {
+    this.pendingCigar = cigar;
+  }
+
+  void setPendingInfo(Map<String, List<String>> info) {
+    this.pendingInfo = info;
+  }
+
+  void setPendingTagsAndValues(List<String> tagsAndValues) {
+    this.pendingTagsAndValues = tagsAndValues;
+  }
+
+  private void convertReadBases() {
+    if (pendingReadString != null) {
+      final String readString = pendingReadString;
+      pendingReadString = null;
+      super.setReadString(readString);
+    }
+  }
+
+  private void convertBaseQualities() {
+    if (pendingBaseQualities != null) {
+      final List<Integer> baseQualities = pendingBaseQualities;
+      pendingBaseQualities = null;
+      super.setBaseQualities(GenomicsConverter.makeBaseQualities(baseQualities));
+    }
+  }
+
+  private void convertCigar() {
+    if (pendingCigar != null) {
+      final List<CigarUnit> cigar = pendingCigar;
+      pendingCigar = null;
+      super.initializeCigar(GenomicsConverter.makeCigar(cigar));
+    }
+  }
+
+  private void convertAttributes() {
+    if (pendingInfo != null) {
+      final Map<String, List<String>> info = pendingInfo;
+      pendingInfo = null;
+      GenomicsConverter.setAttributes(this, info);
+    }
+    if (pendingTagsAndValues != null) {
+      final List<String> tagsAndValues = pendingTagsAndValues;
+      pendingTagsAndValues = null;
+      for (int i = 0; i < tagsAndValues.size(); i += 2) {
+        GenomicsConverter.setAttribute(this, tagsAndValues.get(i), tagsAndValues.get(i + 1));
+      }
+    }
+  }
+
+  private void convertAll() {
+    convertReadBases();
+    convertBaseQualities();
+    convertCigar();
+    convertAttributes();
+  }
+
+  @Override
+  public byte[] getReadBases() {
+    convertReadBases();
+    return super.getReadBases();
+  }
+
+  @Override
+  public void setReadBases(byte[] value) {
+    pendingReadString = null;
+    super.setReadBases(value);
+  }
+
+  @Override
+  public void setReadString(String value) {
+    pendingReadString = null;
+    super.setReadString(value);
+  }
+
+  @Override
+  public byte[] getBaseQualities() {
+    convertBaseQualities();
+    return super.getBaseQualities();
+  }
+
+  @Override
+  public void setBaseQualities(byte[] value) {
+    pendingBaseQualities = null;
+    super.setBaseQualities(value);
+  }
+
+  @Override
+  public Cigar getCigar() {
+    convertCigar();
+    return super.getCigar();
+  }
+
+  @Override
+  public String getCigarString() {
+    convertCigar();
+    return super.getCigarString();
+  }
+
+  @Override
+  public void setCigarString(String value) {
+    pendingCigar = null;
+    super.setCigarString(value);
+  }
+
+  @Override
+  protected void initializeCigar(Cigar cigar) {
+    pendingCigar = null;
+    super.initializeCigar(cigar);
+  }
+
+  @Override
+  public Object getAttribute(short tag) {
+    convertAttributes();
+    return super.getAttribute(tag);
+  }
+
+  @Override
+  public boolean isUnsignedArrayAttribute(String tag) {
+    convertAttributes();
+    return super.isUnsignedArrayAttribute(tag);
+  }
+
+  @Override
+  protected void setAttribute(short tag, Object value, boolean isUnsignedArray) {
+    // Keep the tags in the order they would have been set in eagerly.
+    convertAttributes();
+    super.setAttribute(tag, value, isUnsignedArray);
+  }
+
+  @Override
+  public void clearAttributes() {
+    pendingInfo = null;
+    pendingTagsAndValues = null;
+    super.clearAttributes();
+  }
+
+  @Override
+  protected void setAttributes(SAMBinaryTagAndValue attributes) {
+    pendingInfo = null;
+    pendingTagsAndValues = null;
+    super.setAttributes(attributes);
+  }
+
+  @Override
+  protected SAMBinaryTagAndValue getBinaryAttributes() {
+    convertAttributes();
+    return super.getBinaryAttributes();
+  }
+
+  /** Deprecated like SAMRecord.format(), still materialized for callers that use it. */
+  @Deprecated
+  @Override
+  public String format() {
+    convertAll();
+    return super.format();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    convertAll();
+    if (o instanceof LazySAMRecord) {
+      ((LazySAMRecord)o).convertAll();
+    }
+    return super.equals(o);
+  }
+
+  @Override
+  public int hashCode() {
+    convertAll();
+    return super.hashCode();
+  }
+}
@@ -0,0 +1,163 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import java.util.Arrays;
+
+/**
+ * Bloom filter of 64-bit keys that are already hashes, such as the keys of
+ * UnmappedReads. Unlike Guava's BloomFilter it does not hash the keys through
+ * a Funnel, so adding and probing a key allocates nothing.
+ * The filter grows as keys are added, without being rebuilt: when its last
+ * stage holds as many keys as it was sized for, a stage GROWTH times larger
+ * is added, and a key is looked up in every stage. All the bits of a key in a
+ * stage are in a single 64-bit word, so each stage costs one memory access.
+ * Each stage has more bits per key than the previous one, so the false
+ * positive rates of the stages decrease and their sum stays bounded.
+ */
+public class LongBloomFilter {
+  /** Number of keys the first stage is sized for */
+  private static final int INITIAL_KEYS = 1024;
+  /** Size of a stage relative to the previous one, in keys */
+  private static final int GROWTH = 4;
+  /** Bits per key in the first stage */
+  private static final int BITS_PER_KEY = 16;
+  /** Bits per key added in each following stage */
+  private static final int BITS_PER_KEY_STEP = 1;
+  /** Bits set per key, within one word */
+  private static final int HASH_COUNT = 7;
+
+  private long[][] stages = new long[0][];
+  private long[] lastStage = null;
+  private long lastStageCapacity = 0;
+  private long lastStageKeys = 0;
+  private long keyCount = 0;
+
+  public void add(long key) {
+    if (lastStageKeys == lastStageCapacity) {
+      addStage();
+    }
+    final long hash = mix(key);
+    lastStage[getWordIndex(hash, lastStage.length)] |= getBits(hash);
+    lastStageKeys++;
+    keyCount++;
+  }
+
+  /**
+   * Returns false if the key was definitely not added, true if it probably was.
+   */
+  public boolean mightContain(long key) {
+    final long hash = mix(key);
+    final long bits = getBits(hash);
+    for (long[] stage : stages) {
+      if ((stage[getWordIndex(hash, stage.length)] & bits) == bits) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public long getKeyCount() {
+    return keyCount;
+  }
+
+  public long getSizeBytes() {
+    long bytes = 0;
+    for (long[] stage : stages) {
+      bytes += stage.length * 8L;
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the expected false positive rate for the keys added so far, the
+   * probability that a key that was not added is found in any stage.
+   */
+  public double getExpectedFalsePositiveRate() {
+    double negativeRate = 1;
+    long capacity = INITIAL_KEYS;
+    long remainingKeys = keyCount;
+    for (long[] stage : stages) {
+      final long keys = Math.min(remainingKeys, capacity);
+      remainingKeys -= keys;
+      capacity *= GROWTH;
+      negativeRate *= 1 - getWordFalsePositiveRate((double)keys / stage.length);
+    }
+    return 1 - negativeRate;
+  }
+
+  @Override
+  public String toString() {
+    return "LongBloomFilter: " + keyCount + " keys, " + getSizeBytes() + " bytes in " + 
+        stages.length + " stages, expected false positive rate " +
+        String.format("%.4f", getExpectedFalsePositiveRate());
+  }
+
+  /**
+   * Returns the probability that all the bits of a key are set in its word,
+   * when words hold a Poisson distributed number of keys of the given mean.
+   */
+  private static double getWordFalsePositiveRate(double keysPerWord) {
+    double rate = 0;
+    double keysProbability = Math.exp(-keysPerWord);
+    for (int keys = 0; keys < 4 * keysPerWord + 20; keys++) {
+      final double bitSet = 1 - Math.pow(1 - 1.0 / 64, (double)HASH_COUNT * keys);
+      rate += keysProbability * Math.pow(bitSet, HASH_COUNT);
+      keysProbability *= keysPerWord / (keys + 1);
+    }
+    return rate;
+  }
+
+  private void addStage() {
+    lastStageCapacity = lastStage == null ? INITIAL_KEYS : lastStageCapacity * GROWTH;
+    final long bits = lastStageCapacity * (BITS_PER_KEY + BITS_PER_KEY_STEP * stages.length);
+    // A power of two number of words, so the word of a key is found by masking.
+    final long words = Math.min(1 << 30, Long.highestOneBit(Math.max(1, bits / 64 - 1)) * 2);
+    lastStage = new long[(int)words];
+    lastStageKeys = 0;
+    stages = Arrays.copyOf(stages, stages.length + 1);
+    stages[stages.length - 1] = lastStage;
+  }
+
+  /**
+   * Returns the key with all its bits mixed, by the finalizer of MurmurHash3.
+   * Keys such as FNV hashes of similar names differ in regular ways that
+   * would otherwise cluster them in the same words.
+   */
+  private static long mix(long key) {
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /** Returns the word of the key, from the low bits of its mixed hash */
+  private static int getWordIndex(long hash, int wordCount) {
+    return (int)hash & (wordCount - 1);
+  }
+
+  /** Returns the bits of the key within its word, from the high bits of its mixed hash */
+  private static long getBits(long hash) {
+    long bits = 0;
+    for (int i = 0; i < HASH_COUNT; i++) {
+      bits |= 1L << (hash >>> (58 - 6 * i));
+    }
+    return bits;
+  }
+}
@@ -0,0 +1,165 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.genomics.model.ReadGroupSet;
+import com.google.api.services.genomics.model.Reference;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.StringLineReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Persistent on-disk cache of readgroupset metadata, so short lived processes
+ * started over and over against the same readgroupsets do not have to fetch
+ * the ReadGroupSet and its references, and build the SAMFileHeader, every time.
+ * Each readgroupset is stored as one JSON file holding the ReadGroupSet,
+ * the references and the header in SAM text form. Files are written to a
+ * temporary file first and then renamed, so concurrent processes never see
+ * partially written entries.
+ * The API has no cheap way of telling whether a readgroupset changed, so
+ * entries are considered valid for a configurable time since they were written.
+ */
+public class MetadataCache {
+  private static final Logger LOG = Logger.getLogger(MetadataCache.class.getName());
+
+  /** Bumped whenever the format of the cache files changes */
+  private static final int FORMAT_VERSION = 1;
+
+  private final File directory;
+  private final long maxAgeMillis;
+
+  /**
+   * JSON form of a cache file.
+   */
+  public static class CacheFile extends GenericJson {
+    @Key
+    private Integer version;
+    @Key
+    private String rootUrl;
+    @Key
+    private String readGroupSetId;
+    @Key
+    private ReadGroupSet readGroupSet;
+    @Key
+    private List<Reference> references;
+    @Key
+    private String header;
+  }
+
+  /**
+   * @param directory where cache files are stored, created if needed
+   * @param maxAgeMillis how long an entry stays valid after it is written
+   */
+  public MetadataCache(File directory, long maxAgeMillis) {
+    this.directory = directory;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * Returns the cached metadata of the readgroupset, or null if there is
+   * no valid entry for it.
+   */
+  public ReadGroupSetMetadata get(String rootUrl, String readGroupSetId) {
+    final File file = getFile(rootUrl, readGroupSetId);
+    if (!file.exists()) {
+      return null;
+    }
+    if (System.currentTimeMillis() - file.lastModified() > maxAgeMillis) {
+      LOG.info("Cached metadata of " + readGroupSetId + " has expired");
+      return null;
+    }
+    try {
+      final CacheFile cached = JacksonFactory.getDefaultInstance().fromString(
+          Files.toString(file, Charsets.UTF_8), CacheFile.class);
+      if (cached.version == null || cached.version != FORMAT_VERSION ||
+          !rootUrl.equals(cached.rootUrl) ||
+          !readGroupSetId.equals(cached.readGroupSetId) ||
+          cached.readGroupSet == null || cached.header == null) {
+        LOG.info("Ignoring stale cached metadata of " + readGroupSetId);
+        return null;
+      }
+      final SAMTextHeaderCodec codec = new SAMTextHeaderCodec();
+      codec.setValidationStringency(ValidationStringency.SILENT);
+      final SAMFileHeader header = codec.decode(
+          new StringLineReader(cached.header), file.getPath());
+      LOG.info("Using cached metadata of " + readGroupSetId + " from " + file);
+      return new ReadGroupSetMetadata(cached.readGroupSet, cached.references, header);
+    } catch (IOException ex) {
+      LOG.warning("Error reading cached metadata from " + file + ": " + ex.getMessage());
+    } catch (RuntimeException ex) {
+      LOG.warning("Error parsing cached metadata from " + file + ": " + ex.toString());
+    }
+    return null;
+  }
+
+  /**
+   * Stores the metadata of the readgroupset. Failures are logged and otherwise
+   * ignored, since the cache is only an optimization.
+   */
+  public void put(String rootUrl, String readGroupSetId, ReadGroupSetMetadata metadata) {
+    final File file = getFile(rootUrl, readGroupSetId);
+    File tempFile = null;
+    try {
+      final CacheFile cached = new CacheFile();
+      cached.version = FORMAT_VERSION;
+      cached.rootUrl = rootUrl;
+      cached.readGroupSetId = readGroupSetId;
+      cached.readGroupSet = metadata.getReadGroupSet();
+      cached.references = metadata.getReferences();
+      final StringWriter header = new StringWriter();
+      new SAMTextHeaderCodec().encode(header, metadata.getHeader());
+      cached.header = header.toString();
+
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Can not create directory " + directory);
+      }
+      tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+      Files.write(JacksonFactory.getDefaultInstance().toString(cached), tempFile,
+          Charsets.UTF_8);
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Can not rename " + tempFile + " to " + file);
+      }
+      tempFile = null;
+      LOG.info("Cached metadata of " + readGroupSetId + " in " + file);
+    } catch (IOException ex) {
+      LOG.warning("Error caching metadata of " + readGroupSetId + ": " + ex.getMessage());
+    } finally {
+      if (tempFile != null) {
+        tempFile.delete();
+      }
+    }
+  }
+
+  private File getFile(String rootUrl, String readGroupSetId) {
+    final String key = Hashing.sha1().hashString(rootUrl + "/" + readGroupSetId,
+        Charsets.UTF_8).toString();
+    return new File(directory, key + ".json");
+  }
+}
@@ -0,0 +1,375 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * Process wide registry of counters, gauges and latency histograms of the
+ * stages of reading and pumping reads, so the stage limiting a job can be
+ * found without a profiler: API pages, bytes and latency, decoding,
+ * conversion, sorting of reads at the same position, mate injection and
+ * pump writes.
+ * The metrics are exposed over JMX through MetricsMXBean and can be written
+ * as JSON to a file periodically with startReporting.
+ * Metrics are looked up once by name and kept in static fields,
+ * updating them is lock free.
+ */
+public class Metrics implements MetricsMXBean {
+  private static final Logger LOG = Logger.getLogger(Metrics.class.getName());
+  
+  private static final String OBJECT_NAME = "com.google.cloud.genomics.gatk:type=Metrics";
+  
+  private static final Metrics INSTANCE = new Metrics();
+  
+  static {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, 
+          new ObjectName(OBJECT_NAME));
+    } catch (Exception ex) {
+      LOG.warning("Can not register metrics with JMX: " + ex.toString());
+    }
+  }
+  
+  /**
+   * Monotonic count of events or bytes.
+   */
+  public static class Counter {
+    private final AtomicLong value = new AtomicLong();
+    
+    public void increment() {
+      value.incrementAndGet();
+    }
+    
+    public void add(long delta) {
+      value.addAndGet(delta);
+    }
+    
+    public long get() {
+      return value.get();
+    }
+    
+    void reset() {
+      value.set(0);
+    }
+  }
+  
+  /**
+   * Current value of a level, e.g. a queue depth.
+   */
+  public static class Gauge {
+    private final AtomicLong value = new AtomicLong();
+    
+    public void set(long newValue) {
+      value.set(newValue);
+    }
+    
+    public long get() {
+      return value.get();
+    }
+    
+    void reset() {
+      value.set(0);
+    }
+  }
+  
+  /**
+   * Histogram of durations, in buckets of powers of two nanoseconds, so
+   * percentiles are accurate to a factor of two.
+   */
+  public static class Timer {
+    private static final int BUCKETS = 64;
+    
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    
+    /** Returns the start time to pass to stop */
+    public long start() {
+      return System.nanoTime();
+    }
+    
+    /** Records the time elapsed since start */
+    public void stop(long startNanos) {
+      record(System.nanoTime() - startNanos);
+    }
+    
+    public void record(long nanos) {
+      if (nanos < 0) {
+        nanos = 0;
+      }
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      // Bucket i holds durations in [2^i, 2^(i+1)).
+      buckets.incrementAndGet(Math.max(0, BUCKETS - 1 - Long.numberOfLeadingZeros(nanos)));
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+        max = maxNanos.get();
+      }
+    }
+    
+    public long getCount() {
+      return count.get();
+    }
+    
+    public long getTotalNanos() {
+      return totalNanos.get();
+    }
+    
+    public long getMaxNanos() {
+      return maxNanos.get();
+    }
+    
+    /** Returns the upper bound of the bucket holding the quantile, in nanoseconds */
+    public long getPercentileNanos(double quantile) {
+      final long total = count.get();
+      if (total == 0) {
+        return 0;
+      }
+      final long rank = (long)Math.ceil(quantile * total);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return Math.min(maxNanos.get(), i == BUCKETS - 1 ? Long.MAX_VALUE : (2L << i) - 1);
+        }
+      }
+      return maxNanos.get();
+    }
+    
+    void reset() {
+      count.set(0);
+      totalNanos.set(0);
+      maxNanos.set(0);
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets.set(i, 0);
+      }
+    }
+  }
+  
+  private final ConcurrentMap<String, Counter> counters = 
+      new ConcurrentHashMap<String, Counter>();
+  private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+  private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+  private final JsonFactory jsonFactory = new JsonFactory();
+  private ScheduledExecutorService reporter = null;
+  
+  private Metrics() {
+  }
+  
+  public static Metrics getInstance() {
+    return INSTANCE;
+  }
+  
+  /** Returns the counter with the name, creating it if needed */
+  public Counter counter(String name) {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      final Counter existing = counters.putIfAbsent(name, counter = new Counter());
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    return counter;
+  }
+  
+  /** Returns the timer with the name, creating it if needed */
+  public Timer timer(String name) {
+    Timer timer = timers.get(name);
+    if (timer == null) {
+      final Timer existing = timers.putIfAbsent(name, timer = new Timer());
+      if (existing != null) {
+        timer = existing;
+      }
+    }
+    return timer;
+  }
+  
+  /** Returns the gauge with the name, creating it if needed */
+  public Gauge gauge(String name) {
+    Gauge gauge = gauges.get(name);
+    if (gauge == null) {
+      final Gauge existing = gauges.putIfAbsent(name, gauge = new Gauge());
+      if (existing != null) {
+        gauge = existing;
+      }
+    }
+    return gauge;
+  }
+  
+  @Override
+  public Map<String, Long> getCounters() {
+    final Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().get());
+    }
+    return result;
+  }
+  
+  @Override
+  public Map<String, Long> getGauges() {
+    final Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().get());
+    }
+    return result;
+  }
+  
+  @Override
+  public Map<String, Double> getTimerStatistics() {
+    final Map<String, Double> result = new TreeMap<String, Double>();
+    for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+      final Timer timer = entry.getValue();
+      final String name = entry.getKey();
+      result.put(name + ".count", (double)timer.getCount());
+      result.put(name + ".totalMillis", timer.getTotalNanos() / 1e6);
+      result.put(name + ".meanMicros", 
+          timer.getCount() == 0 ? 0 : timer.getTotalNanos() / 1e3 / timer.getCount());
+      result.put(name + ".p50Micros", timer.getPercentileNanos(0.5) / 1e3);
+      result.put(name + ".p90Micros", timer.getPercentileNanos(0.9) / 1e3);
+      result.put(name + ".p99Micros", timer.getPercentileNanos(0.99) / 1e3);
+      result.put(name + ".maxMicros", timer.getMaxNanos() / 1e3);
+    }
+    return result;
+  }
+  
+  @Override
+  public String getJson() {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      writeJson(out);
+    } catch (IOException ex) {
+      throw new IllegalStateException("Error writing metrics", ex);
+    }
+    return out.toString();
+  }
+  
+  @Override
+  public void reset() {
+    for (Counter counter : counters.values()) {
+      counter.reset();
+    }
+    for (Timer timer : timers.values()) {
+      timer.reset();
+    }
+    for (Gauge gauge : gauges.values()) {
+      gauge.reset();
+    }
+  }
+  
+  /**
+   * Writes the metrics as a JSON object with the time, the counters, the
+   * gauges and the statistics of the timers.
+   */
+  public void writeJson(OutputStream out) throws IOException {
+    final JsonGenerator json = jsonFactory.createGenerator(out, JsonEncoding.UTF8);
+    json.writeStartObject();
+    json.writeNumberField("timestampMillis", System.currentTimeMillis());
+    json.writeObjectFieldStart("counters");
+    for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+      json.writeNumberField(entry.getKey(), entry.getValue());
+    }
+    json.writeEndObject();
+    json.writeObjectFieldStart("gauges");
+    for (Map.Entry<String, Long> entry : getGauges().entrySet()) {
+      json.writeNumberField(entry.getKey(), entry.getValue());
+    }
+    json.writeEndObject();
+    json.writeObjectFieldStart("timers");
+    for (Map.Entry<String, Double> entry : getTimerStatistics().entrySet()) {
+      json.writeNumberField(entry.getKey(), entry.getValue());
+    }
+    json.writeEndObject();
+    json.writeEndObject();
+    json.close();
+  }
+  
+  /**
+   * Writes the metrics to the file every period, replacing its content, and
+   * once more when the process exits. Has no effect if already reporting.
+   */
+  public synchronized void startReporting(final File file, long periodSeconds) {
+    if (reporter != null) {
+      return;
+    }
+    reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("ga4gh-metrics")
+        .build());
+    final Runnable report = new Runnable() {
+      @Override
+      public void run() {
+        writeReport(file);
+      }
+    };
+    reporter.scheduleAtFixedRate(report, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(report, "ga4gh-metrics-final"));
+    LOG.info("Writing metrics to " + file + " every " + periodSeconds + " seconds");
+  }
+  
+  private void writeReport(File file) {
+    File tempFile = null;
+    OutputStream out = null;
+    try {
+      tempFile = File.createTempFile(file.getName(), ".tmp", 
+          file.getAbsoluteFile().getParentFile());
+      out = new FileOutputStream(tempFile);
+      writeJson(out);
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Can not rename " + tempFile + " to " + file);
+      }
+      tempFile = null;
+    } catch (IOException ex) {
+      LOG.warning("Error writing metrics to " + file + ": " + ex.getMessage());
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException ex) {
+          // Already failed.
+        }
+      }
+      if (tempFile != null) {
+        tempFile.delete();
+      }
+    }
+  }
+}
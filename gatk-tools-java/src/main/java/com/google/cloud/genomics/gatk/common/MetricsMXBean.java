@@ -0,0 +1,42 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import java.util.Map;
+
+/**
+ * JMX view of the Metrics of the process, registered as
+ * com.google.cloud.genomics.gatk:type=Metrics.
+ */
+public interface MetricsMXBean {
+  /** Returns the value of every counter, by name */
+  Map<String, Long> getCounters();
+  
+  /** Returns the current value of every gauge, by name */
+  Map<String, Long> getGauges();
+  
+  /** 
+   * Returns the statistics of every timer, by timer name followed by the
+   * statistic, e.g. api.page_latency.p99Micros.
+   */
+  Map<String, Double> getTimerStatistics();
+  
+  /** Returns a snapshot of all the metrics as JSON */
+  String getJson();
+  
+  /** Sets all the metrics back to zero */
+  void reset();
+}
@@ -0,0 +1,292 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF, the block compressed format of BAM files, like htsjdk's
+ * BlockCompressedOutputStream, but compresses the blocks in parallel on an
+ * executor. Blocks are written in order, with a bounded number of blocks
+ * compressing at once.
+ * Without an executor, or at compression level 0, where deflating is only
+ * a copy, blocks are compressed on the writing thread.
+ * The stream ends with the empty block that marks the end of BGZF files.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+  private final OutputStream out;
+  private final int compressionLevel;
+  private final ExecutorService executor;
+  private final int maxPendingBlocks;
+  
+  /** Blocks being compressed, in stream order */
+  private final Queue<CompressTask> pendingBlocks = new ArrayDeque<CompressTask>();
+  /** Compressors not in use, reused across blocks */
+  private final Queue<Compressor> compressors = new ArrayDeque<Compressor>();
+  /** Every compressor created, whose Deflaters are ended on close */
+  private final List<Compressor> allCompressors = new ArrayList<Compressor>();
+  
+  private byte[] buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+  private int bufferLength = 0;
+  private boolean closed = false;
+  
+  /**
+   * Compressed block, in the buffer of its compressor.
+   */
+  private static class Block {
+    Block(Compressor compressor, int length) {
+      this.compressor = compressor;
+      this.length = length;
+    }
+    
+    final Compressor compressor;
+    final int length;
+  }
+  
+  /**
+   * Compression of a block by its compressor on the executor.
+   */
+  private static class CompressTask extends FutureTask<Block> {
+    CompressTask(final Compressor compressor, final byte[] data, final int length) {
+      super(new Callable<Block>() {
+        @Override
+        public Block call() {
+          return new Block(compressor, compressor.compress(data, length));
+        }
+      });
+    }
+  }
+  
+  /**
+   * Deflaters and buffer to compress one block at a time.
+   */
+  private static class Compressor {
+    Compressor(int compressionLevel) {
+      deflater = new Deflater(compressionLevel, true);
+      noCompressionDeflater = new Deflater(Deflater.NO_COMPRESSION, true);
+    }
+    
+    /**
+     * Compresses the data into a BGZF block in the compressed buffer and
+     * returns the length of the block.
+     */
+    int compress(byte[] data, int length) {
+      final int maxDataLength = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE - 
+          BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - 
+          BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+      deflater.reset();
+      deflater.setInput(data, 0, length);
+      deflater.finish();
+      int compressedLength = deflater.deflate(compressed, 
+          BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, maxDataLength);
+      if (!deflater.finished()) {
+        // Data that does not compress is stored, which always fits.
+        noCompressionDeflater.reset();
+        noCompressionDeflater.setInput(data, 0, length);
+        noCompressionDeflater.finish();
+        compressedLength = noCompressionDeflater.deflate(compressed, 
+            BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, maxDataLength);
+        if (!noCompressionDeflater.finished()) {
+          throw new IllegalStateException("Block of " + length + " bytes does not fit");
+        }
+      }
+      final int blockLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + 
+          compressedLength + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+      crc.reset();
+      crc.update(data, 0, length);
+      int position = 0;
+      compressed[position++] = BlockCompressedStreamConstants.GZIP_ID1;
+      compressed[position++] = (byte)BlockCompressedStreamConstants.GZIP_ID2;
+      compressed[position++] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+      compressed[position++] = BlockCompressedStreamConstants.GZIP_FLG;
+      position = putInt(position, 0);
+      compressed[position++] = BlockCompressedStreamConstants.GZIP_XFL;
+      compressed[position++] = (byte)BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+      position = putShort(position, BlockCompressedStreamConstants.GZIP_XLEN);
+      compressed[position++] = BlockCompressedStreamConstants.BGZF_ID1;
+      compressed[position++] = BlockCompressedStreamConstants.BGZF_ID2;
+      position = putShort(position, BlockCompressedStreamConstants.BGZF_LEN);
+      putShort(position, blockLength - 1);
+      position = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + compressedLength;
+      position = putInt(position, (int)crc.getValue());
+      putInt(position, length);
+      return blockLength;
+    }
+    
+    void end() {
+      deflater.end();
+      noCompressionDeflater.end();
+    }
+    
+    private int putShort(int position, int value) {
+      compressed[position] = (byte)value;
+      compressed[position + 1] = (byte)(value >>> 8);
+      return position + 2;
+    }
+    
+    private int putInt(int position, int value) {
+      putShort(position, value);
+      return putShort(position + 2, value >>> 16);
+    }
+    
+    final Deflater deflater;
+    final Deflater noCompressionDeflater;
+    final CRC32 crc = new CRC32();
+    final byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+    /** Uncompressed data of the block being compressed */
+    byte[] data;
+  }
+  
+  /**
+   * @param compressionLevel the deflate level, 0 stores the data uncompressed
+   * @param executor compresses the blocks, or null to compress them on the
+   * writing thread
+   * @param maxPendingBlocks the maximum number of blocks compressing at once
+   */
+  public ParallelBlockCompressedOutputStream(OutputStream out, int compressionLevel, 
+      ExecutorService executor, int maxPendingBlocks) {
+    this.out = out;
+    this.compressionLevel = compressionLevel;
+    this.executor = compressionLevel != Deflater.NO_COMPRESSION ? executor : null;
+    this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+  }
+  
+  @Override
+  public void write(int b) throws IOException {
+    if (bufferLength == buffer.length) {
+      compressBuffer();
+    }
+    buffer[bufferLength++] = (byte)b;
+  }
+  
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (bufferLength == buffer.length) {
+        compressBuffer();
+      }
+      final int copied = Math.min(len, buffer.length - bufferLength);
+      System.arraycopy(b, off, buffer, bufferLength, copied);
+      bufferLength += copied;
+      off += copied;
+      len -= copied;
+    }
+  }
+  
+  /**
+   * Compresses and writes all the data written so far, ending the current
+   * block.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (bufferLength > 0) {
+      compressBuffer();
+    }
+    while (!pendingBlocks.isEmpty()) {
+      writeBlock(pendingBlocks.remove());
+    }
+    out.flush();
+  }
+  
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      flush();
+      out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+    } finally {
+      // Blocks already compressing still use their Deflaters, so they are
+      // waited for before all the Deflaters are ended.
+      for (CompressTask pending : pendingBlocks) {
+        if (!pending.cancel(false)) {
+          try {
+            Uninterruptibles.getUninterruptibly(pending);
+          } catch (ExecutionException ex) {
+            // The block is discarded anyway.
+          }
+        }
+      }
+      pendingBlocks.clear();
+      try {
+        out.close();
+      } finally {
+        for (Compressor compressor : allCompressors) {
+          compressor.end();
+        }
+      }
+    }
+  }
+  
+  /** Starts compressing the buffered data as a block, waiting if too many are */
+  private void compressBuffer() throws IOException {
+    while (pendingBlocks.size() >= maxPendingBlocks) {
+      writeBlock(pendingBlocks.remove());
+    }
+    final Compressor available = compressors.poll();
+    final Compressor compressor = available != null ? available : newCompressor();
+    // The compressor takes the buffer, the stream continues in its last one.
+    final byte[] data = buffer;
+    final int length = bufferLength;
+    buffer = compressor.data != null ? compressor.data : new byte[data.length];
+    compressor.data = data;
+    bufferLength = 0;
+    if (executor == null) {
+      writeBlock(new Block(compressor, compressor.compress(data, length)));
+      return;
+    }
+    final CompressTask task = new CompressTask(compressor, data, length);
+    executor.execute(task);
+    pendingBlocks.add(task);
+  }
+  
+  private Compressor newCompressor() {
+    final Compressor compressor = new Compressor(compressionLevel);
+    allCompressors.add(compressor);
+    return compressor;
+  }
+  
+  private void writeBlock(CompressTask pending) throws IOException {
+    try {
+      writeBlock(Uninterruptibles.getUninterruptibly(pending));
+    } catch (ExecutionException ex) {
+      throw new IOException("Error compressing block: " + ex.getCause().getMessage(), 
+          ex.getCause());
+    }
+  }
+  
+  private void writeBlock(Block block) throws IOException {
+    out.write(block.compressor.compressed, 0, block.length);
+    compressors.add(block.compressor);
+  }
+}
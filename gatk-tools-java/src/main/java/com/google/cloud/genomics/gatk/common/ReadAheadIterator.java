@@ -0,0 +1,195 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.google.common.base.Throwables;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Iterates over a source iterator on a background task, buffering up to
+ * a given number of elements ahead of the consumer.
+ * Used with pages of reads, so the next pages are being fetched while
+ * the consumer converts and writes out the current one.
+ * The producer does not hold on to its thread while the buffer is full: it
+ * returns it to the executor and the consumer resumes production once it
+ * has taken an element, so a bounded executor can serve any number of
+ * iterators, whatever their consumers do.
+ * An exception thrown by the source is rethrown to the consumer once it has
+ * taken all the elements produced before the failure.
+ * The iterator can be closed from any thread: a consumer waiting for an
+ * element then sees the end of the iteration.
+ */
+public class ReadAheadIterator<T> implements Iterator<T>, Closeable {
+  private static final Logger LOG = Logger.getLogger(ReadAheadIterator.class.getName());
+
+  /** Marks the end of the source in the buffer */
+  private static final Object END = new Object();
+
+  private final Iterator<T> source;
+  private final BlockingQueue<Object> buffer;
+  private volatile boolean closed = false;
+  private volatile Throwable error = null;
+  private volatile boolean started = false;
+  
+  /** Runs the producer, set by start() */
+  private Executor executor = null;
+  
+  /** Whether the producer is running or scheduled, guarded by this */
+  private boolean producing = false;
+  
+  /** Element read from the source that did not fit in the buffer yet */
+  private Object pending = null;
+
+  /** Element taken from the buffer but not yet returned by next() */
+  private Object nextElement = null;
+
+  /**
+   * @param source the iterator to read ahead
+   * @param capacity the maximum number of elements buffered ahead of the consumer
+   */
+  public ReadAheadIterator(Iterator<T> source, int capacity) {
+    this.source = source;
+    // One extra slot so the end marker close() adds always fits, even if the
+    // producer adds one last element after close() cleared the buffer.
+    this.buffer = new ArrayBlockingQueue<Object>(Math.max(1, capacity) + 1);
+  }
+
+  /**
+   * Starts reading the source ahead on the given executor.
+   * Has no effect if already started.
+   */
+  public synchronized void start(Executor executor) {
+    if (started) {
+      return;
+    }
+    started = true;
+    this.executor = executor;
+    producing = true;
+    executor.execute(producer);
+  }
+
+  private final Runnable producer = new Runnable() {
+    @Override
+    public void run() {
+      produce();
+    }
+  };
+
+  private void produce() {
+    while (!closed) {
+      if (pending == null) {
+        pending = readSource();
+      }
+      if (buffer.offer(pending)) {
+        if (pending == END) {
+          return;
+        }
+        pending = null;
+        continue;
+      }
+      synchronized (this) {
+        // Re-checked under the lock so a concurrent take() either frees space
+        // before the check or sees producing == false and resumes us.
+        if (buffer.remainingCapacity() == 0) {
+          producing = false;
+          return;
+        }
+      }
+    }
+  }
+
+  /** Returns the next element of the source, or END once it is exhausted or failed. */
+  private Object readSource() {
+    try {
+      return source.hasNext() ? source.next() : END;
+    } catch (RuntimeException ex) {
+      LOG.warning("Error reading ahead: " + ex.toString());
+      error = ex;
+    } catch (Error ex) {
+      error = ex;
+    }
+    return END;
+  }
+
+  /** Reschedules the producer if it stopped on a full buffer. */
+  private synchronized void resume() {
+    if (!producing && !closed) {
+      producing = true;
+      executor.execute(producer);
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (closed) {
+      return false;
+    }
+    if (nextElement == null) {
+      if (!started) {
+        throw new IllegalStateException("ReadAheadIterator has not been started");
+      }
+      try {
+        nextElement = buffer.take();
+        resume();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for data", ex);
+      }
+    }
+    if (nextElement == END || closed) {
+      if (error != null && !closed) {
+        throw Throwables.propagate(error);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final T toReturn = (T)nextElement;
+    nextElement = null;
+    return toReturn;
+  }
+
+  /**
+   * Stops reading ahead and releases the buffered elements.
+   * The producer stops once its current call into the source returns.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    buffer.clear();
+    // Wakes up a consumer waiting for an element.
+    buffer.offer(END);
+  }
+
+  @Override
+  public void remove() {
+    LOG.warning("ReadAheadIterator does not implement remove() method");
+  }
+}
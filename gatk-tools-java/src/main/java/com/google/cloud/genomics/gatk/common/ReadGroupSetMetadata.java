@@ -0,0 +1,65 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.google.api.services.genomics.model.ReadGroupSet;
+import com.google.api.services.genomics.model.Reference;
+
+import htsjdk.samtools.SAMFileHeader;
+
+import java.util.List;
+
+/**
+ * Resolved metadata of a readgroupset: the ReadGroupSet itself, the references
+ * of its reference sets and the SAMFileHeader built from them.
+ */
+public class ReadGroupSetMetadata {
+  private final ReadGroupSet readGroupSet;
+  private final List<Reference> references;
+  private final SAMFileHeader header;
+
+  public ReadGroupSetMetadata(ReadGroupSet readGroupSet, List<Reference> references,
+      SAMFileHeader header) {
+    this.readGroupSet = readGroupSet;
+    this.references = references;
+    this.header = header;
+  }
+
+  public ReadGroupSet getReadGroupSet() {
+    return readGroupSet;
+  }
+
+  public List<Reference> getReferences() {
+    return references;
+  }
+
+  public SAMFileHeader getHeader() {
+    return header;
+  }
+
+  /** Returns the reference with the given name or null if there is none */
+  public Reference getReference(String name) {
+    if (references == null) {
+      return null;
+    }
+    for (Reference reference : references) {
+      if (name.equals(reference.getName())) {
+        return reference;
+      }
+    }
+    return null;
+  }
+}
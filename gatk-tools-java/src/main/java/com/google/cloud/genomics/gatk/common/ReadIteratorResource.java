@@ -15,48 +15,102 @@ limitations under the License.
 */
 package com.google.cloud.genomics.gatk.common;
 
-import com.google.api.services.genomics.model.Read;
 import com.google.api.services.genomics.model.ReadGroupSet;
 import com.google.api.services.genomics.model.Reference;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import htsjdk.samtools.SAMRecordCoordinateComparator;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
  * Provides reads data in the from of SAMRecords and SAMFileHeader, by wrapping
- * an existing source of Read and HeaderSection data and doing the conversion using
- * GenomicsConverter.
+ * an existing source of SAMRecords converted from the API and injecting
+ * unmapped mates of mapped reads, and converting the ReadGroupSet and
+ * Reference data using GenomicsConverter.
+ * The unmapped mates may still be being collected in the background when
+ * iteration starts. Reads are returned right away and iteration only waits
+ * for the collection to finish at the first mapped read with an unmapped mate.
+ * The resource can be closed from another thread than the one iterating it:
+ * fetching stops right away and the iteration ends, but the unmapped mates
+ * the iterator may be using are only released once it returns.
  */
 public class ReadIteratorResource {
   private static final Logger LOG = Logger.getLogger(ReadIteratorResource.class.getName());
   
+  private static final Metrics.Timer SORT_SAME_POSITION = 
+      Metrics.getInstance().timer("sort.same_position");
+  private static final Metrics.Counter SORTED_RECORDS = 
+      Metrics.getInstance().counter("sort.records");
+  private static final Metrics.Counter INJECTED_MATES = 
+      Metrics.getInstance().counter("mates.injected");
+  private static final Metrics.Timer MATES_WAIT = 
+      Metrics.getInstance().timer("mates.wait");
+  
   private ReadGroupSet readGroupSet;
   private SAMFileHeader cachedSAMFileHeader;
   private List<Reference> references;
-  private Iterable<Read> iterable;
+  private Iterable<SAMRecord> iterable;
+  private final Future<UnmappedReads> unmappedReadsFuture;
   private UnmappedReads unmappedReads;
-  private Iterator<Read> unmappedMatesIterator;
+  private Iterator<SAMRecord> unmappedMatesIterator;
   private Iterator<SAMRecord> samePositionIterator;
   private SAMRecord recordAtNextPosition;
+  /** Set by close(), guarded by this */
+  private boolean closed = false;
+  /** Whether the iterator is reading records, guarded by this */
+  private boolean consuming = false;
+  /** Whether the unmapped mates were released, guarded by this */
+  private boolean released = false;
   private static Comparator<SAMRecord> samRecordCoordinateComparator = new SAMRecordCoordinateComparator();
   
   public ReadIteratorResource(ReadGroupSet readGroupSet, List<Reference> references,
       UnmappedReads unmappedReads, 
-      Iterable<Read> iterable) {
+      Iterable<SAMRecord> iterable) {
+    this(readGroupSet, references, 
+        unmappedReads != null ? Futures.immediateFuture(unmappedReads) : null,
+        iterable);
+  }
+  
+  /**
+   * @param unmappedReads the unmapped mates to inject once collected, or null
+   * to not inject any
+   */
+  public ReadIteratorResource(ReadGroupSet readGroupSet, List<Reference> references,
+      Future<UnmappedReads> unmappedReads, 
+      Iterable<SAMRecord> iterable) {
     super();
     this.readGroupSet = readGroupSet;
     this.references = references;
-    this.unmappedReads = unmappedReads;
+    this.unmappedReadsFuture = unmappedReads;
     this.iterable = iterable;
   }
+  
+  public ReadIteratorResource(ReadGroupSetMetadata metadata,
+      UnmappedReads unmappedReads, 
+      Iterable<SAMRecord> iterable) {
+    this(metadata.getReadGroupSet(), metadata.getReferences(), unmappedReads, iterable);
+    this.cachedSAMFileHeader = metadata.getHeader();
+  }
+  
+  public ReadIteratorResource(ReadGroupSetMetadata metadata,
+      Future<UnmappedReads> unmappedReads, 
+      Iterable<SAMRecord> iterable) {
+    this(metadata.getReadGroupSet(), metadata.getReferences(), unmappedReads, iterable);
+    this.cachedSAMFileHeader = metadata.getHeader();
+  }
 
   public ReadGroupSet getReadGroupSet() {
     return readGroupSet;
@@ -74,14 +128,87 @@ public class ReadIteratorResource {
     this.references = references;
   }
   
-  public Iterable<Read> getIterable() {
+  public Iterable<SAMRecord> getIterable() {
     return iterable;
   }
   
-  public void setIterable(Iterable<Read> iterable) {
+  public void setIterable(Iterable<SAMRecord> iterable) {
     this.iterable = iterable;
   }
   
+  /**
+   * Releases resources held by the underlying source of reads, e.g. stops
+   * any fetching still in progress, and the collected unmapped mates, stopping
+   * their collection if it is still in progress.
+   * If another thread is reading records, it stops at the next record and
+   * releases the unmapped mates itself.
+   */
+  public void close() {
+    final boolean consumerReleases;
+    synchronized (this) {
+      closed = true;
+      consumerReleases = consuming;
+    }
+    // Cancelling the collection and closing the source are safe under a
+    // running iterator and make it stop waiting for reads. If the cancellation
+    // succeeds the collection task releases any mates it still produces.
+    if (unmappedReadsFuture != null) {
+      unmappedReadsFuture.cancel(true);
+    }
+    if (iterable instanceof Closeable) {
+      try {
+        ((Closeable)iterable).close();
+      } catch (IOException ex) {
+        LOG.warning("Error closing reads source: " + ex.toString());
+      }
+    }
+    if (!consumerReleases) {
+      releaseUnmappedReads();
+    }
+  }
+  
+  /** Releases the collected unmapped mates, if the collection completed */
+  private void releaseUnmappedReads() {
+    synchronized (this) {
+      if (released) {
+        return;
+      }
+      released = true;
+    }
+    if (unmappedReadsFuture != null && unmappedReadsFuture.isDone() && 
+        !unmappedReadsFuture.isCancelled()) {
+      try {
+        Futures.getUnchecked(unmappedReadsFuture).close();
+      } catch (RuntimeException ex) {
+        // The collection failed, there is nothing to release.
+      }
+    }
+  }
+  
+  /** Marks the iterator as reading records, returns false if already closed */
+  private synchronized boolean beginConsuming() {
+    if (closed) {
+      return false;
+    }
+    consuming = true;
+    return true;
+  }
+  
+  /** Marks the iterator as done reading, releasing the mates if closed meanwhile */
+  private void endConsuming() {
+    synchronized (this) {
+      consuming = false;
+      if (!closed) {
+        return;
+      }
+    }
+    releaseUnmappedReads();
+  }
+  
+  private synchronized boolean isClosed() {
+    return closed;
+  }
+  
   public SAMFileHeader getSAMFileHeader() {
     if (cachedSAMFileHeader == null) {
       cachedSAMFileHeader = 
@@ -90,17 +217,36 @@ public class ReadIteratorResource {
     return cachedSAMFileHeader;
   }
   
+  /**
+   * Returns the unmapped mates, waiting for their collection to finish.
+   */
+  private UnmappedReads getUnmappedReads() {
+    if (unmappedReads == null) {
+      if (!unmappedReadsFuture.isDone()) {
+        LOG.info("Waiting for the collection of unmapped mates to finish");
+      }
+      final long start = MATES_WAIT.start();
+      try {
+        unmappedReads = Uninterruptibles.getUninterruptibly(unmappedReadsFuture);
+        MATES_WAIT.stop(start);
+      } catch (ExecutionException ex) {
+        throw new RuntimeException("Error collecting unmapped mates: " + 
+            ex.getCause().getMessage(), ex.getCause());
+      }
+    }
+    return unmappedReads;
+  }
+  
   public Iterable<SAMRecord> getSAMRecordIterable() {
-    final Iterator<Read> readIterator = getIterable().iterator();
-    final SAMFileHeader header = getSAMFileHeader();
+    final Iterator<SAMRecord> readIterator = getIterable().iterator();
     return new Iterable<SAMRecord>() {
       @Override
       public Iterator<SAMRecord> iterator() {
         return new Iterator<SAMRecord>() {
-          private SAMRecord nextRecord = peek();
-          private Read mappedRead;
+          private SAMRecord nextRecord = consume();
+          private SAMRecord mappedRead;
           private final boolean injectingUnmappedPairsOfMappedRead = 
-              unmappedReads != null;
+              unmappedReadsFuture != null;
           
           @Override
           public boolean hasNext() {
@@ -110,9 +256,30 @@ public class ReadIteratorResource {
           @Override
           public SAMRecord next() {
             SAMRecord toReturn = nextRecord;
-            nextRecord = peek();
+            nextRecord = consume();
             return toReturn;
           }
+          
+          /**
+           * Returns the next record, or null at the end or once closed.
+           * Errors caused by closing the resource meanwhile, e.g. the
+           * cancelled collection of the mates, also end the iteration.
+           */
+          private SAMRecord consume() {
+            if (!beginConsuming()) {
+              return null;
+            }
+            try {
+              return peek();
+            } catch (RuntimeException ex) {
+              if (isClosed()) {
+                return null;
+              }
+              throw ex;
+            } finally {
+              endConsuming();
+            }
+          }
 
           private SAMRecord peek() {
             if (!injectingUnmappedPairsOfMappedRead) {
@@ -156,34 +323,34 @@ public class ReadIteratorResource {
               return currentRecord;
             }
             if (readsAtSamePosition.size() >= 2) {
+              final long start = SORT_SAME_POSITION.start();
               Collections.sort(readsAtSamePosition, samRecordCoordinateComparator);
+              SORT_SAME_POSITION.stop(start);
+              SORTED_RECORDS.add(readsAtSamePosition.size());
             }
             samePositionIterator =  readsAtSamePosition.iterator();
             return samePositionIterator.next();
           }
             
           /**
-           * Fetches the next SAMRecord, dealing with Read->SAMRecord
-           * conversion and fixup of unmapped pairs of mapped reads.
+           * Fetches the next SAMRecord, dealing with fixup of unmapped pairs 
+           * of mapped reads.
            */
           private SAMRecord getNextSAMRecord() {
-            Read nextRead = getNextRead();
+            SAMRecord record = getNextRead();
             
-            if (nextRead == null) {
+            if (record == null) {
               return null;
             }
             
-            SAMRecord record = GenomicsConverter.makeSAMRecord(nextRead, 
-                header);
-            
             // See https://github.com/ga4gh/schemas/issues/224
             // We fix up both the mapped read of unmapped mate pair and the mate 
             // pair itself according to SAM best practices:
             // "For a unmapped paired-end or mate-pair read whose mate is mapped, 
             // the unmapped read should have RNAME and POS identical to its mate."
             if (unmappedMatesIterator != null && mappedRead != null) {
-              if (mappedRead != nextRead) {
-                record.setReferenceName(mappedRead.getAlignment().getPosition().getReferenceName());
+              if (mappedRead != record) {
+                record.setReferenceName(mappedRead.getReferenceName());
                 record.setAlignmentStart(record.getMateAlignmentStart());
                 record.setReadNegativeStrandFlag(record.getMateNegativeStrandFlag());
               } else {
@@ -199,7 +366,7 @@ public class ReadIteratorResource {
           /**
            * Fetches next read, dealing with injection of unmapped mate pairs if needed.
            */
-          private Read getNextRead() {
+          private SAMRecord getNextRead() {
             // Are we iterating through unmapped mates ?
             if (unmappedMatesIterator != null) {
               if (unmappedMatesIterator.hasNext()) {
@@ -210,7 +377,7 @@ public class ReadIteratorResource {
               }
             }
             
-            Read nextReadToReturn = getNextReadFromMainIterator();
+            SAMRecord nextReadToReturn = getNextReadFromMainIterator();
             if (nextReadToReturn == null) {
               return null;
             }
@@ -218,9 +385,10 @@ public class ReadIteratorResource {
             // If we have unmapped mates to inject, see if we need to do it now
             if (injectingUnmappedPairsOfMappedRead && 
                 UnmappedReads.isMappedMateOfUnmappedRead(nextReadToReturn)) {
-              final  ArrayList<Read> unmappedMates = unmappedReads
+              final  ArrayList<SAMRecord> unmappedMates = getUnmappedReads()
                     .getUnmappedMates(nextReadToReturn);
               if (unmappedMates != null) {
+                  INJECTED_MATES.add(unmappedMates.size());
                   unmappedMatesIterator = unmappedMates.iterator();
                   mappedRead = nextReadToReturn;
               }
@@ -232,8 +400,8 @@ public class ReadIteratorResource {
            * Fetches next read from the underlying iterator, taking care
            * to skipped unmapped mate pairs that we have injected elsewhere.
            */
-          private Read getNextReadFromMainIterator() {
-            Read result;
+          private SAMRecord getNextReadFromMainIterator() {
+            SAMRecord result;
             if (readIterator.hasNext()) {
               result = readIterator.next();
               
@@ -0,0 +1,278 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local disk cache of raw Reads.search response pages, so repeated runs over
+ * the same regions of the same readgroupsets do not re-download them.
+ * Each page is stored gzip compressed in its own file, named after a hash of
+ * the request that returned it.
+ * Pages expire a fixed time after they were fetched, so a readgroupset that
+ * is re-imported is eventually served fresh. The write time of a page is its
+ * file modification time, which is never touched by reads.
+ * The total size of the cache is bounded and least recently used pages are
+ * evicted first. Recency is only kept in memory, so across processes pages
+ * are evicted in the order they were written.
+ * The size bound is enforced on the whole directory when the cache is opened,
+ * but while running each process only accounts for the pages it wrote or
+ * found at that time: processes sharing a directory can together exceed the
+ * bound until the next one opens it.
+ */
+public class ReadPageCache {
+  private static final Logger LOG = Logger.getLogger(ReadPageCache.class.getName());
+
+  private static final String PAGE_FILE_SUFFIX = ".json.gz";
+
+  private final File directory;
+  private final long maxBytes;
+  private final long maxAgeMillis;
+
+  /** Size and write time of a cached page file */
+  private static class Entry {
+    Entry(long bytes, long writtenMillis) {
+      this.bytes = bytes;
+      this.writtenMillis = writtenMillis;
+    }
+    final long bytes;
+    final long writtenMillis;
+  }
+
+  /** Each cached page file by key, in least recently used order */
+  private final LinkedHashMap<String, Entry> pages =
+      new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+  private long totalBytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+
+  /**
+   * @param directory where pages are stored, created if needed
+   * @param maxBytes the maximum total size of the stored pages
+   * @param maxAgeMillis how long a page stays valid after it is written
+   */
+  public ReadPageCache(File directory, long maxBytes, long maxAgeMillis) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+    loadIndex();
+  }
+
+  /**
+   * Returns a cache key for a page of a search request, made of all the
+   * parameters that affect its contents.
+   */
+  public static String getKey(String rootUrl, String readGroupSetIds, String referenceName,
+      Long start, Long end, Integer pageSize, String pageToken, String fields) {
+    return Hashing.sha1().hashString(rootUrl + "|" + readGroupSetIds + "|" + referenceName +
+        "|" + start + "|" + end + "|" + pageSize + "|" + pageToken + "|" + fields,
+        Charsets.UTF_8).toString();
+  }
+
+  /**
+   * Returns the raw page stored for the key, or null if there is none or
+   * it has expired.
+   */
+  public byte[] get(String key) {
+    final File file = getFile(key);
+    synchronized (this) {
+      final Entry entry = pages.get(key);
+      if (entry == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+      if (isExpired(entry.writtenMillis)) {
+        remove(key);
+        file.delete();
+        expirations.incrementAndGet();
+        misses.incrementAndGet();
+        return null;
+      }
+    }
+    InputStream in = null;
+    try {
+      in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)));
+      final byte[] page = ByteStreams.toByteArray(in);
+      hits.incrementAndGet();
+      return page;
+    } catch (IOException ex) {
+      // Most likely evicted by another process sharing the directory.
+      LOG.fine("Can not read cached page " + file + ": " + ex.getMessage());
+      synchronized (this) {
+        remove(key);
+      }
+      misses.incrementAndGet();
+      return null;
+    } finally {
+      Closeables.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Stores the raw page under the key, evicting least recently used pages
+   * if the cache grows too large. Failures are logged and otherwise ignored.
+   */
+  public void put(String key, byte[] page) {
+    final File file = getFile(key);
+    File tempFile = null;
+    OutputStream out = null;
+    try {
+      tempFile = File.createTempFile(key + PAGE_FILE_SUFFIX, ".tmp", directory);
+      out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      out.write(page);
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Can not rename " + tempFile + " to " + file);
+      }
+      tempFile = null;
+    } catch (IOException ex) {
+      LOG.warning("Error caching page " + key + ": " + ex.getMessage());
+      return;
+    } finally {
+      try {
+        Closeables.close(out, true);
+      } catch (IOException ex) {
+        // Can not happen, exceptions are swallowed.
+      }
+      if (tempFile != null) {
+        tempFile.delete();
+      }
+    }
+    synchronized (this) {
+      remove(key);
+      pages.put(key, new Entry(file.length(), file.lastModified()));
+      totalBytes += file.length();
+      evict();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getExpirations() {
+    return expirations.get();
+  }
+
+  public synchronized long getSizeBytes() {
+    return totalBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "ReadPageCache " + directory + ": " + getHits() + " hits, " + getMisses() +
+        " misses, " + getEvictions() + " evictions, " + getExpirations() + " expirations, " +
+        getSizeBytes() + " bytes";
+  }
+
+  private boolean isExpired(long writtenMillis) {
+    return System.currentTimeMillis() - writtenMillis > maxAgeMillis;
+  }
+
+  private void remove(String key) {
+    final Entry entry = pages.remove(key);
+    if (entry != null) {
+      totalBytes -= entry.bytes;
+    }
+  }
+
+  private void evict() {
+    final Iterator<Map.Entry<String, Entry>> it = pages.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      final Map.Entry<String, Entry> eldest = it.next();
+      it.remove();
+      totalBytes -= eldest.getValue().bytes;
+      getFile(eldest.getKey()).delete();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /** Builds the in-memory index from pages stored by previous runs. */
+  private synchronized void loadIndex() {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      LOG.warning("Can not create page cache directory " + directory);
+      return;
+    }
+    final File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(PAGE_FILE_SUFFIX);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        return Long.compare(f1.lastModified(), f2.lastModified());
+      }
+    });
+    for (File file : files) {
+      final long writtenMillis = file.lastModified();
+      if (isExpired(writtenMillis)) {
+        file.delete();
+        expirations.incrementAndGet();
+        continue;
+      }
+      final String name = file.getName();
+      pages.put(name.substring(0, name.length() - PAGE_FILE_SUFFIX.length()),
+          new Entry(file.length(), writtenMillis));
+      totalBytes += file.length();
+    }
+    evict();
+    LOG.info("Page cache " + directory + " holds " + pages.size() + " pages, " +
+        totalBytes + " bytes");
+  }
+
+  private File getFile(String key) {
+    return new File(directory, key + PAGE_FILE_SUFFIX);
+  }
+}
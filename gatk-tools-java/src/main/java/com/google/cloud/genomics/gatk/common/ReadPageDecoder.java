@@ -0,0 +1,469 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Charsets;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes a Reads.search response straight into SAMRecords with a streaming
+ * JSON parser, as an alternative to parsing it into Read objects and converting
+ * those with GenomicsConverter.makeSAMRecord.
+ * Qualities are read into a byte[] and CIGAR units into a Cigar as they are
+ * parsed, so no per read maps, lists or boxed values are created.
+ * The records are the same as those made by GenomicsConverter.makeSAMRecord.
+ * Reference names are resolved to indexes in the header once for runs of
+ * reads on the same reference, so a decoder must not be shared by threads.
+ * Optionally records are LazySAMRecords, which decode the bases and tags
+ * only when they are accessed.
+ */
+public class ReadPageDecoder {
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  /** The quoted name of the next page token field, as it appears in a response */
+  private static final byte[] NEXT_PAGE_TOKEN_FIELD = 
+      "\"nextPageToken\"".getBytes(Charsets.US_ASCII);
+
+  private final SAMFileHeader header;
+  private final boolean lazyRecords;
+
+  /** Reference name of the previously decoded read and its index in the header */
+  private String lastReferenceName = null;
+  private int lastReferenceIndex = -1;
+
+  /**
+   * A decoded page of the response: its reads and the token of the next page.
+   */
+  public static class Page {
+    public Page(List<SAMRecord> records, String nextPageToken) {
+      this.records = records;
+      this.nextPageToken = nextPageToken;
+    }
+
+    public List<SAMRecord> getRecords() {
+      return records;
+    }
+
+    public String getNextPageToken() {
+      return nextPageToken;
+    }
+
+    private final List<SAMRecord> records;
+    private final String nextPageToken;
+  }
+
+  /**
+   * Position fields of a Read, as parsed from alignment.position or
+   * nextMatePosition.
+   */
+  private static class Position {
+    String referenceName;
+    Long position;
+    boolean reverseStrand;
+  }
+
+  /**
+   * @param header the header the decoded records belong to
+   * @param lazyRecords whether to make LazySAMRecords
+   */
+  public ReadPageDecoder(SAMFileHeader header, boolean lazyRecords) {
+    this.header = header;
+    this.lazyRecords = lazyRecords;
+  }
+
+  /**
+   * Decodes a SearchReadsResponse in JSON form.
+   */
+  public Page decode(InputStream in) throws IOException {
+    final JsonParser parser = JSON_FACTORY.createParser(in);
+    try {
+      List<SAMRecord> records = new ArrayList<SAMRecord>();
+      String nextPageToken = null;
+      expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = parser.getCurrentName();
+        final JsonToken value = parser.nextToken();
+        if (value == JsonToken.VALUE_NULL) {
+          continue;
+        }
+        if (field.equals("alignments")) {
+          expect(parser, value, JsonToken.START_ARRAY);
+          while (parser.nextToken() != JsonToken.END_ARRAY) {
+            records.add(decodeRead(parser));
+          }
+        } else if (field.equals("nextPageToken")) {
+          nextPageToken = parser.getText();
+        } else {
+          parser.skipChildren();
+        }
+      }
+      return new Page(records, nextPageToken);
+    } finally {
+      parser.close();
+    }
+  }
+
+  /**
+   * Returns the token of the next page of a SearchReadsResponse in JSON form,
+   * without tokenizing the reads, so the next page can be requested before
+   * the page is decoded.
+   * The API writes the token after the reads, so the raw bytes are scanned
+   * backwards for its field name and the scan stops at the first match that
+   * is a field with a string or null value. Reads have no such field, and
+   * the name can not be matched inside a string, where its quotes are escaped.
+   */
+  public static String readNextPageToken(byte[] page) throws IOException {
+    for (int i = page.length - NEXT_PAGE_TOKEN_FIELD.length; i >= 0; i--) {
+      if (page[i] != '"' || !isNextPageTokenField(page, i)) {
+        continue;
+      }
+      int value = skipWhitespace(page, i + NEXT_PAGE_TOKEN_FIELD.length);
+      if (value >= page.length || page[value] != ':') {
+        continue;
+      }
+      value = skipWhitespace(page, value + 1);
+      if (value < page.length && page[value] == '"') {
+        final JsonParser parser = JSON_FACTORY.createParser(page, value, page.length - value);
+        try {
+          expect(parser, parser.nextToken(), JsonToken.VALUE_STRING);
+          return parser.getText();
+        } finally {
+          parser.close();
+        }
+      }
+      if (value + 4 <= page.length && page[value] == 'n' && page[value + 1] == 'u' &&
+          page[value + 2] == 'l' && page[value + 3] == 'l') {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /** Whether the quoted field name at the offset is the name of a field */
+  private static boolean isNextPageTokenField(byte[] page, int offset) {
+    for (int i = 1; i < NEXT_PAGE_TOKEN_FIELD.length; i++) {
+      if (page[offset + i] != NEXT_PAGE_TOKEN_FIELD[i]) {
+        return false;
+      }
+    }
+    int before = offset - 1;
+    while (before >= 0 && isWhitespace(page[before])) {
+      before--;
+    }
+    return before >= 0 && (page[before] == '{' || page[before] == ',');
+  }
+
+  private static int skipWhitespace(byte[] page, int offset) {
+    while (offset < page.length && isWhitespace(page[offset])) {
+      offset++;
+    }
+    return offset;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+  }
+
+  /**
+   * Decodes the Read object at the current token of the parser.
+   */
+  private SAMRecord decodeRead(JsonParser parser) throws IOException {
+    expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+    String fragmentName = null;
+    String readGroupId = null;
+    Integer numberReads = null;
+    Integer readNumber = null;
+    boolean properPlacement = false;
+    boolean secondaryAlignment = false;
+    boolean supplementaryAlignment = false;
+    boolean failedVendorQualityChecks = false;
+    boolean duplicateFragment = false;
+    Integer fragmentLength = null;
+    Position position = null;
+    Integer mappingQuality = null;
+    Cigar cigar = null;
+    Position matePosition = null;
+    String alignedSequence = null;
+    byte[] alignedQuality = null;
+    List<String> info = null;
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.getCurrentName();
+      final JsonToken value = parser.nextToken();
+      if (value == JsonToken.VALUE_NULL) {
+        continue;
+      }
+      if (field.equals("fragmentName")) {
+        fragmentName = parser.getText();
+      } else if (field.equals("readGroupId")) {
+        readGroupId = parser.getText();
+      } else if (field.equals("numberReads")) {
+        numberReads = getInt(parser);
+      } else if (field.equals("readNumber")) {
+        readNumber = getInt(parser);
+      } else if (field.equals("properPlacement")) {
+        properPlacement = parser.getBooleanValue();
+      } else if (field.equals("secondaryAlignment")) {
+        secondaryAlignment = parser.getBooleanValue();
+      } else if (field.equals("supplementaryAlignment")) {
+        supplementaryAlignment = parser.getBooleanValue();
+      } else if (field.equals("failedVendorQualityChecks")) {
+        failedVendorQualityChecks = parser.getBooleanValue();
+      } else if (field.equals("duplicateFragment")) {
+        duplicateFragment = parser.getBooleanValue();
+      } else if (field.equals("fragmentLength")) {
+        fragmentLength = getInt(parser);
+      } else if (field.equals("alignment")) {
+        expect(parser, value, JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          final String alignmentField = parser.getCurrentName();
+          final JsonToken alignmentValue = parser.nextToken();
+          if (alignmentValue == JsonToken.VALUE_NULL) {
+            continue;
+          }
+          if (alignmentField.equals("position")) {
+            position = decodePosition(parser);
+          } else if (alignmentField.equals("mappingQuality")) {
+            mappingQuality = getInt(parser);
+          } else if (alignmentField.equals("cigar")) {
+            cigar = decodeCigar(parser);
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else if (field.equals("nextMatePosition")) {
+        matePosition = decodePosition(parser);
+      } else if (field.equals("alignedSequence")) {
+        alignedSequence = parser.getText();
+      } else if (field.equals("alignedQuality")) {
+        alignedQuality = decodeQualities(parser);
+      } else if (field.equals("info")) {
+        info = decodeInfo(parser);
+      } else {
+        parser.skipChildren();
+      }
+    }
+
+    // Set the fields in the same order as GenomicsConverter.makeSAMRecord,
+    // since the order of the JSON fields is not defined.
+    final LazySAMRecord lazyRecord = lazyRecords ? new LazySAMRecord(header) : null;
+    final SAMRecord record = lazyRecords ? lazyRecord : new SAMRecord(header);
+    if (fragmentName != null) {
+      record.setReadName(fragmentName);
+    }
+    if (readGroupId != null) {
+      record.setAttribute("RG", readGroupId);
+    }
+    final boolean unmapped = position == null || position.position == null;
+    final boolean mateUnmapped = matePosition == null || matePosition.position == null;
+    int flags = 0;
+    flags += (numberReads != null && numberReads >= 2) ? 1 : 0; // read_paired
+    flags += properPlacement ? 2 : 0; // read_proper_pair
+    flags += unmapped ? 4 : 0; // read_unmapped
+    flags += mateUnmapped ? 8 : 0; // mate_unmapped
+    flags += (position != null && position.reverseStrand) ? 16 : 0; // read_reverse_strand
+    flags += (matePosition != null && matePosition.reverseStrand) ? 32 : 0; // mate_reverse_strand
+    flags += (readNumber != null && readNumber == 0) ? 64 : 0; // first_in_pair
+    flags += (readNumber != null && readNumber == 1) ? 128 : 0; // second_in_pair
+    flags += secondaryAlignment ? 256 : 0; // secondary_alignment
+    flags += failedVendorQualityChecks ? 512 : 0; // failed_quality_check
+    flags += duplicateFragment ? 1024 : 0; // duplicate_read
+    flags += supplementaryAlignment ? 2048 : 0; // supplementary_alignment
+    record.setFlags(flags);
+
+    if (position != null) {
+      if (position.referenceName != null) {
+        final int referenceIndex = getReferenceIndex(position.referenceName);
+        if (referenceIndex >= 0) {
+          record.setReferenceIndex(referenceIndex);
+        } else {
+          record.setReferenceName(position.referenceName);
+        }
+      }
+      if (position.position != null) {
+        // API positions are 0-based and SAMRecord is 1-based.
+        record.setAlignmentStart(position.position.intValue() + 1);
+      }
+    }
+    if (mappingQuality != null) {
+      record.setMappingQuality(mappingQuality);
+    }
+    if (cigar != null && cigar.numCigarElements() > 0) {
+      record.setCigar(cigar);
+    }
+    if (matePosition != null) {
+      if (matePosition.referenceName != null) {
+        final int referenceIndex = getReferenceIndex(matePosition.referenceName);
+        if (referenceIndex >= 0) {
+          record.setMateReferenceIndex(referenceIndex);
+        } else {
+          record.setMateReferenceName(matePosition.referenceName);
+        }
+      }
+      if (matePosition.position != null) {
+        // API positions are 0-based and SAMRecord is 1-based.
+        record.setMateAlignmentStart(matePosition.position.intValue() + 1);
+      }
+    }
+    if (fragmentLength != null) {
+      record.setInferredInsertSize(fragmentLength);
+    }
+    if (alignedQuality != null && alignedQuality.length > 0) {
+      record.setBaseQualities(alignedQuality);
+    }
+    if (lazyRecords) {
+      lazyRecord.setPendingReadString(alignedSequence);
+      lazyRecord.setPendingTagsAndValues(info);
+      return record;
+    }
+    if (alignedSequence != null) {
+      record.setReadString(alignedSequence);
+    }
+    if (info != null) {
+      for (int i = 0; i < info.size(); i += 2) {
+        GenomicsConverter.setAttribute(record, info.get(i), info.get(i + 1));
+      }
+    }
+    return record;
+  }
+
+  /** Returns the index of the reference in the header, -1 if it is not there */
+  private int getReferenceIndex(String referenceName) {
+    if (!referenceName.equals(lastReferenceName)) {
+      lastReferenceName = referenceName;
+      lastReferenceIndex = header.getSequenceIndex(referenceName);
+    }
+    return lastReferenceIndex;
+  }
+
+  private static Position decodePosition(JsonParser parser) throws IOException {
+    expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+    final Position position = new Position();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.getCurrentName();
+      if (parser.nextToken() == JsonToken.VALUE_NULL) {
+        continue;
+      }
+      if (field.equals("referenceName")) {
+        position.referenceName = parser.getText();
+      } else if (field.equals("position")) {
+        position.position = getLong(parser);
+      } else if (field.equals("reverseStrand")) {
+        position.reverseStrand = parser.getBooleanValue();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return position;
+  }
+
+  private static Cigar decodeCigar(JsonParser parser) throws IOException {
+    expect(parser, parser.getCurrentToken(), JsonToken.START_ARRAY);
+    final Cigar cigar = new Cigar();
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+      String operation = null;
+      long length = 0;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = parser.getCurrentName();
+        if (parser.nextToken() == JsonToken.VALUE_NULL) {
+          continue;
+        }
+        if (field.equals("operation")) {
+          operation = parser.getText();
+        } else if (field.equals("operationLength")) {
+          length = getLong(parser);
+        } else {
+          parser.skipChildren();
+        }
+      }
+      cigar.add(new CigarElement((int)length, GenomicsConverter.getCigarOperator(operation)));
+    }
+    return cigar;
+  }
+
+  private static byte[] decodeQualities(JsonParser parser) throws IOException {
+    expect(parser, parser.getCurrentToken(), JsonToken.START_ARRAY);
+    byte[] qualities = new byte[256];
+    int length = 0;
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      if (length == qualities.length) {
+        qualities = Arrays.copyOf(qualities, 2 * length);
+      }
+      qualities[length++] = (byte)parser.getIntValue();
+    }
+    return Arrays.copyOf(qualities, length);
+  }
+
+  /**
+   * Decodes the info map into a list of alternating tags and values, so they
+   * can be set after the other fields, in the order makeSAMRecord sets them.
+   */
+  private static List<String> decodeInfo(JsonParser parser) throws IOException {
+    expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+    final List<String> info = new ArrayList<String>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String tag = parser.getCurrentName();
+      final JsonToken values = parser.nextToken();
+      if (values == JsonToken.VALUE_NULL) {
+        continue;
+      }
+      expect(parser, values, JsonToken.START_ARRAY);
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        info.add(tag);
+        info.add(parser.getText());
+      }
+    }
+    return info;
+  }
+
+  /** Reads an int32 field, which the API sends as a JSON number */
+  private static int getInt(JsonParser parser) throws IOException {
+    if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+      return Integer.parseInt(parser.getText());
+    }
+    return parser.getIntValue();
+  }
+
+  /** Reads an int64 field, which the API sends as a JSON string */
+  private static long getLong(JsonParser parser) throws IOException {
+    if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+      return Long.parseLong(parser.getText());
+    }
+    return parser.getLongValue();
+  }
+
+  private static void expect(JsonParser parser, JsonToken actual, JsonToken expected)
+      throws IOException {
+    if (actual != expected) {
+      throw new IOException("Unexpected " + actual + " in reads search response at " +
+          parser.getCurrentLocation() + ", expected " + expected);
+    }
+  }
+}
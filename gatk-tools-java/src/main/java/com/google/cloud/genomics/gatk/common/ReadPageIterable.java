@@ -0,0 +1,437 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.genomics.Genomics;
+import com.google.api.services.genomics.model.Read;
+import com.google.api.services.genomics.model.SearchReadsRequest;
+import com.google.api.services.genomics.model.SearchReadsResponse;
+import com.google.cloud.genomics.utils.RetryPolicy;
+import com.google.common.base.Joiner;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Pages of reads returned by the Reads.search API for a request, as SAMRecords.
+ * Unlike Paginator.Reads, which flattens the pages into a single stream of reads,
+ * this exposes each page, so the pages can be fetched ahead of the consumer.
+ * Each page is fetched with one API call, following the page tokens, as the
+ * pages are iterated, and converted to SAMRecords on the fetching thread.
+ * Pages are either decoded straight from the response with ReadPageDecoder,
+ * or parsed into Read objects that are converted with GenomicsConverter.
+ * If a ReadPageCache is given, raw pages are looked up in it first and pages
+ * fetched from the API are stored in it.
+ * If a conversion executor is given, pages are instead converted on it: the
+ * iterating thread only fetches raw pages and reads their next page token,
+ * keeping a bounded number of pages converting in parallel, and returns the
+ * converted pages in their original order.
+ * API calls, bytes fetched, decoding and conversion are recorded in Metrics,
+ * and traced as spans by the Tracer.
+ * When a page is decoded as it streams from the API, the time spent waiting
+ * for its bytes is recorded as API latency and the rest as decoding, so
+ * neither includes the other; the fetch span covers both.
+ */
+public class ReadPageIterable implements Iterable<List<SAMRecord>> {
+  private static final Logger LOG = Logger.getLogger(ReadPageIterable.class.getName());
+  
+  private static final Metrics.Counter API_PAGES = 
+      Metrics.getInstance().counter("api.pages");
+  private static final Metrics.Counter API_BYTES = 
+      Metrics.getInstance().counter("api.bytes");
+  private static final Metrics.Counter API_RETRIES = 
+      Metrics.getInstance().counter("api.retries");
+  private static final Metrics.Timer API_PAGE_LATENCY = 
+      Metrics.getInstance().timer("api.page_latency");
+  private static final Metrics.Timer API_FIRST_BYTE_LATENCY = 
+      Metrics.getInstance().timer("api.first_byte_latency");
+  private static final Metrics.Timer DECODE_PAGE = 
+      Metrics.getInstance().timer("decode.page");
+  private static final Metrics.Timer CONVERT_PAGE = 
+      Metrics.getInstance().timer("convert.page");
+  private static final Metrics.Counter CONVERT_RECORDS = 
+      Metrics.getInstance().counter("convert.records");
+
+  private final Genomics api;
+  private final SearchReadsRequest request;
+  private final String fields;
+  private final ReadPageCache cache;
+  private final SAMFileHeader header;
+  private final boolean lazyRecords;
+  private final ReadPageDecoder decoder;
+  private final boolean streamingDecode;
+  private final ExecutorService convertExecutor;
+  private final int maxConvertingPages;
+
+  /**
+   * Reads the content of a search response.
+   */
+  private interface ResponseReader<T> {
+    T read(InputStream content) throws IOException;
+  }
+
+  /**
+   * Counts the bytes read from a response, and records when the first byte
+   * arrived and how long reads of the following bytes waited, up to the last
+   * byte. Together they are the time spent waiting for the API while a reader
+   * decodes the response as it reads it, the rest being decoding.
+   */
+  private static class TimedInputStream extends FilterInputStream {
+    private long count = 0;
+    private long firstByteNanos = 0;
+    private long readNanosAfterFirstByte = 0;
+
+    TimedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final long start = System.nanoTime();
+      final int result = super.read();
+      recordRead(start, result < 0 ? 0 : 1);
+      return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      final long start = System.nanoTime();
+      final int result = super.read(buffer, offset, length);
+      recordRead(start, result);
+      return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      final long start = System.nanoTime();
+      final long result = super.skip(n);
+      recordRead(start, result);
+      return result;
+    }
+
+    private void recordRead(long start, long bytes) {
+      if (bytes <= 0) {
+        return;
+      }
+      final long end = System.nanoTime();
+      if (firstByteNanos == 0) {
+        firstByteNanos = end;
+      } else {
+        readNanosAfterFirstByte += end - start;
+      }
+      count += bytes;
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    /** Returns when the first byte was read, 0 if none was */
+    long getFirstByteNanos() {
+      return firstByteNanos;
+    }
+
+    /** Returns the time reads after the first byte waited for more bytes */
+    long getReadNanosAfterFirstByte() {
+      return readNanosAfterFirstByte;
+    }
+  }
+
+  /**
+   * @param fields partial response selector of the search responses, or null
+   * to get complete responses
+   * @param cache cache of raw pages, or null to always fetch pages from the API
+   * @param header the header the records belong to
+   * @param streamingDecode whether to decode responses with ReadPageDecoder
+   * rather than converting parsed Read objects
+   * @param lazyRecords whether to make LazySAMRecords
+   */
+  public ReadPageIterable(Genomics api, SearchReadsRequest request, String fields,
+      ReadPageCache cache, SAMFileHeader header, boolean streamingDecode,
+      boolean lazyRecords) {
+    this(api, request, fields, cache, header, streamingDecode, lazyRecords, null, 0);
+  }
+
+  /**
+   * @param convertExecutor converts the pages in parallel, or null to convert
+   * them on the iterating thread
+   * @param maxConvertingPages the maximum number of pages fetched but not yet
+   * returned while converting on the executor
+   */
+  public ReadPageIterable(Genomics api, SearchReadsRequest request, String fields,
+      ReadPageCache cache, SAMFileHeader header, boolean streamingDecode,
+      boolean lazyRecords, ExecutorService convertExecutor, int maxConvertingPages) {
+    this.api = api;
+    this.request = request;
+    this.fields = fields;
+    this.cache = cache;
+    this.header = header;
+    this.lazyRecords = lazyRecords;
+    this.decoder = streamingDecode ? new ReadPageDecoder(header, lazyRecords) : null;
+    this.streamingDecode = streamingDecode;
+    this.convertExecutor = convertExecutor;
+    this.maxConvertingPages = Math.max(1, maxConvertingPages);
+  }
+
+  @Override
+  public Iterator<List<SAMRecord>> iterator() {
+    return new Iterator<List<SAMRecord>>() {
+      private String pageToken = null;
+      private boolean lastPageFetched = false;
+      private List<SAMRecord> nextPage = null;
+      /** Pages being converted on the executor, in page order */
+      private final Queue<Future<List<SAMRecord>>> convertingPages = 
+          new ArrayDeque<Future<List<SAMRecord>>>();
+
+      @Override
+      public boolean hasNext() {
+        // Skip empty pages, the API may return them with a valid next page token.
+        while ((nextPage == null || nextPage.isEmpty()) && 
+            (!lastPageFetched || !convertingPages.isEmpty())) {
+          nextPage = convertExecutor != null ? takeConvertedPage() : fetchPage();
+        }
+        return nextPage != null && !nextPage.isEmpty();
+      }
+
+      @Override
+      public List<SAMRecord> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final List<SAMRecord> toReturn = nextPage;
+        nextPage = null;
+        return toReturn;
+      }
+
+      /**
+       * Fetches pages until enough are converting, then waits for the oldest.
+       */
+      private List<SAMRecord> takeConvertedPage() {
+        while (!lastPageFetched && convertingPages.size() < maxConvertingPages) {
+          final SearchReadsRequest pageRequest = request.clone().setPageToken(pageToken);
+          final byte[] rawPage;
+          try {
+            rawPage = cache != null ? getCachedPage(pageRequest) : fetchRawPage(pageRequest);
+            pageToken = ReadPageDecoder.readNextPageToken(rawPage);
+          } catch (IOException ex) {
+            throw new RuntimeException("Error searching reads: " + ex.getMessage(), ex);
+          }
+          lastPageFetched = pageToken == null || pageToken.isEmpty();
+          if (lastPageFetched && cache != null) {
+            LOG.info(cache.toString());
+          }
+          convertingPages.add(convertExecutor.submit(new Callable<List<SAMRecord>>() {
+            @Override
+            public List<SAMRecord> call() throws IOException {
+              // Decoders are not thread safe, so each page gets its own.
+              return streamingDecode ?
+                  decode(new ReadPageDecoder(header, lazyRecords), rawPage).getRecords() :
+                  convertPage(parsePage(rawPage)).getRecords();
+            }
+          }));
+        }
+        try {
+          return Uninterruptibles.getUninterruptibly(convertingPages.remove());
+        } catch (ExecutionException ex) {
+          throw new RuntimeException("Error converting reads: " + 
+              ex.getCause().getMessage(), ex.getCause());
+        }
+      }
+
+      private List<SAMRecord> fetchPage() {
+        final SearchReadsRequest pageRequest = request.clone().setPageToken(pageToken);
+        final ReadPageDecoder.Page page;
+        try {
+          if (cache != null) {
+            final byte[] rawPage = getCachedPage(pageRequest);
+            page = decoder != null ? decode(decoder, rawPage) : convertPage(parsePage(rawPage));
+          } else if (decoder != null) {
+            page = fetchUnparsed(pageRequest, true, new ResponseReader<ReadPageDecoder.Page>() {
+              @Override
+              public ReadPageDecoder.Page read(InputStream content) throws IOException {
+                final ReadPageDecoder.Page decoded = decoder.decode(content);
+                CONVERT_RECORDS.add(decoded.getRecords().size());
+                return decoded;
+              }
+            });
+          } else {
+            final Tracer.Span span = Tracer.begin("fetch page", "api", 
+                pageRequest.getReferenceName());
+            final SearchReadsResponse response;
+            try {
+              final long start = API_PAGE_LATENCY.start();
+              response = RetryPolicy.defaultPolicy().execute(search(pageRequest));
+              API_PAGE_LATENCY.stop(start);
+            } finally {
+              span.end();
+            }
+            API_PAGES.increment();
+            page = convertPage(response);
+          }
+        } catch (IOException ex) {
+          throw new RuntimeException("Error searching reads: " + ex.getMessage(), ex);
+        }
+        pageToken = page.getNextPageToken();
+        lastPageFetched = pageToken == null || pageToken.isEmpty();
+        if (lastPageFetched && cache != null) {
+          LOG.info(cache.toString());
+        }
+        return page.getRecords();
+      }
+
+      @Override
+      public void remove() {
+        LOG.warning("ReadPageIterable does not implement remove() method");
+      }
+    };
+  }
+
+  private byte[] getCachedPage(SearchReadsRequest pageRequest) throws IOException {
+    final String key = ReadPageCache.getKey(api.getRootUrl(),
+        Joiner.on(',').useForNull("").join(pageRequest.getReadGroupSetIds()),
+        pageRequest.getReferenceName(), pageRequest.getStart(), pageRequest.getEnd(),
+        pageRequest.getPageSize(), pageRequest.getPageToken(), fields);
+    byte[] page = cache.get(key);
+    if (page == null) {
+      page = fetchRawPage(pageRequest);
+      cache.put(key, page);
+    }
+    return page;
+  }
+
+  private byte[] fetchRawPage(SearchReadsRequest pageRequest) throws IOException {
+    return fetchUnparsed(pageRequest, false, new ResponseReader<byte[]>() {
+      @Override
+      public byte[] read(InputStream content) throws IOException {
+        return ByteStreams.toByteArray(content);
+      }
+    });
+  }
+
+  /**
+   * Fetches a page without parsing it into a SearchReadsResponse, retrying
+   * failed calls the same way RetryPolicy.execute does for parsed ones.
+   * The time the reader waits for the response is recorded as API latency,
+   * and if it decodes the page the rest of its time is recorded as decoding.
+   */
+  private <T> T fetchUnparsed(SearchReadsRequest pageRequest, boolean readerDecodes,
+      ResponseReader<T> reader) throws IOException {
+    final Genomics.Reads.Search search = search(pageRequest);
+    final RetryPolicy.Instance retryPolicy = RetryPolicy.defaultPolicy().createInstance();
+    while (true) {
+      final Tracer.Span span = Tracer.begin("fetch page", "api", 
+          pageRequest.getReferenceName());
+      try {
+        final long start = System.nanoTime();
+        final HttpResponse response = search.executeUnparsed();
+        try {
+          final TimedInputStream content = new TimedInputStream(response.getContent());
+          final T result = reader.read(content);
+          final long end = System.nanoTime();
+          final long firstByte = content.getFirstByteNanos() != 0 ? 
+              content.getFirstByteNanos() : end;
+          final long apiNanos = firstByte - start + content.getReadNanosAfterFirstByte();
+          API_FIRST_BYTE_LATENCY.record(firstByte - start);
+          API_PAGE_LATENCY.record(apiNanos);
+          if (readerDecodes) {
+            DECODE_PAGE.record(end - start - apiNanos);
+          }
+          API_PAGES.increment();
+          API_BYTES.add(content.getCount());
+          return result;
+        } finally {
+          response.disconnect();
+        }
+      } catch (IOException ex) {
+        if (!retryPolicy.shouldRetry(search, ex)) {
+          throw ex;
+        }
+        API_RETRIES.increment();
+      } finally {
+        span.end();
+      }
+    }
+  }
+
+  private Genomics.Reads.Search search(SearchReadsRequest pageRequest) throws IOException {
+    final Genomics.Reads.Search search = api.reads().search(pageRequest);
+    if (fields != null) {
+      search.setFields(fields);
+    }
+    return search;
+  }
+
+  private static ReadPageDecoder.Page decode(ReadPageDecoder decoder, byte[] page) 
+      throws IOException {
+    final Tracer.Span span = Tracer.begin("decode page", "convert");
+    final long start = DECODE_PAGE.start();
+    final ReadPageDecoder.Page result = decoder.decode(new ByteArrayInputStream(page));
+    DECODE_PAGE.stop(start);
+    span.end();
+    CONVERT_RECORDS.add(result.getRecords().size());
+    return result;
+  }
+
+  private SearchReadsResponse parsePage(byte[] page) throws IOException {
+    final Tracer.Span span = Tracer.begin("parse page", "convert");
+    final long start = DECODE_PAGE.start();
+    final SearchReadsResponse result = api.getJsonFactory().fromInputStream(
+        new ByteArrayInputStream(page), SearchReadsResponse.class);
+    DECODE_PAGE.stop(start);
+    span.end();
+    return result;
+  }
+
+  private ReadPageDecoder.Page convertPage(SearchReadsResponse response) {
+    final Tracer.Span span = Tracer.begin("convert page", "convert");
+    final long start = CONVERT_PAGE.start();
+    final List<Read> reads = response.getAlignments();
+    final List<SAMRecord> records = new ArrayList<SAMRecord>(
+        reads != null ? reads.size() : 0);
+    if (reads != null) {
+      final GenomicsConverter.ReferenceIndexCache references = 
+          new GenomicsConverter.ReferenceIndexCache(header);
+      for (Read read : reads) {
+        records.add(lazyRecords ? 
+            GenomicsConverter.makeLazySAMRecord(read, references) :
+            GenomicsConverter.makeSAMRecord(read, references));
+      }
+    }
+    CONVERT_PAGE.stop(start);
+    span.end();
+    CONVERT_RECORDS.add(records.size());
+    return new ReadPageDecoder.Page(records, response.getNextPageToken());
+  }
+}
@@ -0,0 +1,146 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.google.api.services.genomics.Genomics;
+import com.google.api.services.genomics.model.Reference;
+import com.google.api.services.genomics.model.ReferenceSet;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+/**
+ * Process wide cache of reference metadata, shared by all GenomicsApiDataSource
+ * objects, so the references of a reference set are fetched once per process
+ * rather than once per query.
+ * The references of a set are fetched concurrently, since getting e.g. GRCh37
+ * with decoys one reference at a time takes ~90 serial API calls.
+ * Entries are keyed by the API root url and the reference set id. Concurrent
+ * requests for the same reference set wait for a single fetch, and a failed
+ * fetch is not cached so it will be retried by the next request.
+ */
+public class ReferenceSetCache {
+  private static final Logger LOG = Logger.getLogger(ReferenceSetCache.class.getName());
+
+  /** Maximum number of references fetched at the same time */
+  private static final int FETCH_THREADS = 16;
+
+  private static final ReferenceSetCache INSTANCE = new ReferenceSetCache();
+
+  private final ConcurrentMap<String, Future<List<Reference>>> referenceSets =
+      new ConcurrentHashMap<String, Future<List<Reference>>>();
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(FETCH_THREADS,
+      new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("ga4gh-reference-%d")
+          .build());
+
+  public static ReferenceSetCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the references of a reference set, in the order listed by the set,
+   * fetching them if this is the first request for the set.
+   */
+  public List<Reference> getReferences(final Genomics api, String rootUrl,
+      final String referenceSetId) throws IOException {
+    final String key = rootUrl + "/" + referenceSetId;
+    Future<List<Reference>> references = referenceSets.get(key);
+    if (references == null) {
+      final FutureTask<List<Reference>> fetch = new FutureTask<List<Reference>>(
+          new Callable<List<Reference>>() {
+            @Override
+            public List<Reference> call() throws IOException {
+              return fetchReferences(api, referenceSetId);
+            }
+          });
+      references = referenceSets.putIfAbsent(key, fetch);
+      if (references == null) {
+        references = fetch;
+        fetch.run();
+      }
+    }
+    try {
+      return references.get();
+    } catch (ExecutionException ex) {
+      referenceSets.remove(key, references);
+      Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+      throw new IOException("Error getting reference set " + referenceSetId, ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while getting reference set " + referenceSetId);
+    }
+  }
+
+  private List<Reference> fetchReferences(final Genomics api, String referenceSetId)
+      throws IOException {
+    LOG.info("Getting reference set " + referenceSetId);
+    final Stopwatch timer = Stopwatch.createStarted();
+    final ReferenceSet referenceSet = api.referencesets().get(referenceSetId).execute();
+    if (referenceSet == null || referenceSet.getReferenceIds() == null) {
+      return Collections.emptyList();
+    }
+    final List<Future<Reference>> fetches = new ArrayList<Future<Reference>>(
+        referenceSet.getReferenceIds().size());
+    for (final String referenceId : referenceSet.getReferenceIds()) {
+      fetches.add(executor.submit(new Callable<Reference>() {
+        @Override
+        public Reference call() throws IOException {
+          return api.references().get(referenceId).execute();
+        }
+      }));
+    }
+    final List<Reference> references = new ArrayList<Reference>(fetches.size());
+    try {
+      for (Future<Reference> fetch : fetches) {
+        references.add(fetch.get());
+      }
+    } catch (ExecutionException ex) {
+      cancel(fetches);
+      Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+      throw new IOException("Error getting references of " + referenceSetId, ex.getCause());
+    } catch (InterruptedException ex) {
+      cancel(fetches);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while getting references of " + referenceSetId);
+    }
+    LOG.info("Got " + references.size() + " references of reference set " +
+        referenceSetId + " in " + timer);
+    return references;
+  }
+
+  private static void cancel(List<Future<Reference>> fetches) {
+    for (Future<Reference> fetch : fetches) {
+      fetch.cancel(true);
+    }
+  }
+}
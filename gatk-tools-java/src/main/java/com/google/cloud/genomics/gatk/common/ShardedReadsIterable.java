@@ -0,0 +1,195 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import htsjdk.samtools.SAMRecord;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+
+/**
+ * Reads of a single reference range, fetched as a number of shards (sub-ranges)
+ * that are searched concurrently and stitched back together in coordinate order.
+ * The pages of each shard are read ahead on a background task into a bounded
+ * buffer, and at most "parallelism" shards, counting from the one currently
+ * being consumed, are fetched at any given time.
+ * With a single shard this simply reads the pages of the range ahead of the
+ * consumer.
+ * The API returns all reads *overlapping* the requested range, so a read that
+ * spans a shard boundary is returned for both shards. Every shard but the first
+ * skips reads that start before the shard, since the previous shard has already
+ * returned them.
+ * The reads can only be iterated once.
+ */
+public class ShardedReadsIterable implements Iterable<SAMRecord>, Closeable {
+  private static final Logger LOG = Logger.getLogger(ShardedReadsIterable.class.getName());
+
+  /**
+   * One sub-range of the requested range and the pages of reads overlapping it.
+   */
+  public static class Shard {
+    public Shard(long start, Iterable<List<SAMRecord>> pages) {
+      this.start = start;
+      this.pages = pages;
+    }
+
+    public long getStart() {
+      return start;
+    }
+
+    public Iterable<List<SAMRecord>> getPages() {
+      return pages;
+    }
+
+    private final long start;
+    private final Iterable<List<SAMRecord>> pages;
+  }
+
+  private final List<Shard> shards;
+  private final ExecutorService executor;
+  private final int parallelism;
+  private final int bufferedPages;
+  private final List<ReadAheadIterator<List<SAMRecord>>> readAheads;
+  private volatile boolean closed = false;
+  private boolean iterated = false;
+
+  /**
+   * @param shards the sub-ranges in coordinate order
+   * @param executor executes the shard fetching tasks
+   * @param parallelism the maximum number of shards fetched at the same time
+   * @param bufferedPages the number of pages a shard may buffer ahead of the consumer
+   */
+  public ShardedReadsIterable(List<Shard> shards, ExecutorService executor,
+      int parallelism, int bufferedPages) {
+    this.shards = shards;
+    this.executor = executor;
+    this.parallelism = Math.max(1, parallelism);
+    this.bufferedPages = Math.max(1, bufferedPages);
+    this.readAheads = new ArrayList<ReadAheadIterator<List<SAMRecord>>>(shards.size());
+  }
+
+  /**
+   * Splits [start, end) into the given number of equal sub-ranges, returning
+   * the start of each of them.
+   */
+  public static long[] getShardStarts(long start, long end, int numberOfShards) {
+    final long length = end - start;
+    final int count = (int)Math.max(1, Math.min(numberOfShards, length));
+    final long[] starts = new long[count];
+    for (int i = 0; i < count; i++) {
+      starts[i] = start + (length * i) / count;
+    }
+    return starts;
+  }
+
+  @Override
+  public synchronized Iterator<SAMRecord> iterator() {
+    if (iterated) {
+      throw new IllegalStateException("Sharded reads can only be iterated once");
+    }
+    iterated = true;
+    if (closed) {
+      return Collections.<SAMRecord>emptyList().iterator();
+    }
+    if (shards.size() > 1) {
+      LOG.info("Fetching " + shards.size() + " shards, " + parallelism + " at a time");
+    }
+    for (Shard shard : shards) {
+      readAheads.add(new ReadAheadIterator<List<SAMRecord>>(
+          shard.getPages().iterator(), bufferedPages));
+    }
+    for (int i = 0; i < Math.min(parallelism, readAheads.size()); i++) {
+      readAheads.get(i).start(executor);
+    }
+    return new ShardedIterator();
+  }
+
+  /**
+   * Stops all fetching and releases the buffered reads.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    for (ReadAheadIterator<List<SAMRecord>> readAhead : readAheads) {
+      readAhead.close();
+    }
+  }
+
+  /**
+   * Returns reads of each shard in turn, skipping those already returned by
+   * the previous shards.
+   */
+  private class ShardedIterator implements Iterator<SAMRecord> {
+    private int shardIndex = 0;
+    private Iterator<SAMRecord> pageIterator = Collections.<SAMRecord>emptyList().iterator();
+    private SAMRecord nextRecord = seek();
+
+    @Override
+    public boolean hasNext() {
+      return nextRecord != null;
+    }
+
+    @Override
+    public SAMRecord next() {
+      if (nextRecord == null) {
+        throw new NoSuchElementException();
+      }
+      final SAMRecord toReturn = nextRecord;
+      nextRecord = seek();
+      return toReturn;
+    }
+
+    private SAMRecord seek() {
+      while (shardIndex < readAheads.size()) {
+        while (pageIterator.hasNext()) {
+          final SAMRecord record = pageIterator.next();
+          if (shardIndex == 0) {
+            return record;
+          }
+          // SAMRecord positions are 1-based and shard starts are 0-based.
+          if (!record.getReadUnmappedFlag() &&
+              record.getAlignmentStart() - 1 >= shards.get(shardIndex).getStart()) {
+            return record;
+          }
+        }
+        final ReadAheadIterator<List<SAMRecord>> pages = readAheads.get(shardIndex);
+        if (pages.hasNext()) {
+          pageIterator = pages.next().iterator();
+          continue;
+        }
+        // Move on to the next shard and start fetching the one that now
+        // falls into the window of shards fetched in parallel.
+        shardIndex++;
+        final int toStart = shardIndex + parallelism - 1;
+        if (toStart < readAheads.size() && !closed) {
+          readAheads.get(toStart).start(executor);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void remove() {
+      LOG.warning("ShardedReadsIterable does not implement remove() method");
+    }
+  }
+}
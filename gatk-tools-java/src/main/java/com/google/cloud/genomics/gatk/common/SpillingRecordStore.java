@@ -0,0 +1,216 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Append-only store of SAMRecords in BAM encoding, addressed by the offset
+ * returned when a record is added.
+ * Records are kept in memory, packed into large slabs so there is no per record
+ * object overhead, until their total size reaches a heap budget. After that
+ * further records are appended to a temporary file and read back from it with
+ * positional reads. Offsets of records in memory are positive and offsets of
+ * records on disk are the negated file positions minus one.
+ * Records can be read while others are still being added, but the store
+ * must not be used by several threads at once.
+ */
+public class SpillingRecordStore implements Closeable {
+  private static final Logger LOG = Logger.getLogger(SpillingRecordStore.class.getName());
+
+  /** Size of the block_size field that starts each BAM encoded record */
+  private static final int BLOCK_SIZE_LENGTH = 4;
+
+  /** Records are stored in memory in slabs of 2^SLAB_BITS bytes */
+  private static final int SLAB_BITS = 22;
+  private static final int SLAB_SIZE = 1 << SLAB_BITS;
+
+  private final long maxHeapBytes;
+  private final File spillDirectory;
+  /** Codecs are open either for writing or for reading, so there is one of each */
+  private final BAMRecordCodec encoder;
+  private final BAMRecordCodec decoder;
+  private final EncodedRecord encoded = new EncodedRecord();
+
+  /** Records stored in memory, a record never spans two slabs */
+  private final List<byte[]> slabs = new ArrayList<byte[]>();
+  /** Position in the last slab where the next record goes */
+  private int slabPosition = SLAB_SIZE;
+  private long memoryLength = 0;
+  /** Set once the memory is full, all later records go to the file */
+  private boolean spilling = false;
+
+  /** Records stored on disk */
+  private File spillFile = null;
+  private OutputStream spillOutput = null;
+  private FileChannel spillChannel = null;
+  private long spillLength = 0;
+  private boolean spillOutputFlushed = true;
+
+  /**
+   * Buffer a record is encoded into before it is stored.
+   */
+  private static class EncodedRecord extends ByteArrayOutputStream {
+    EncodedRecord() {
+      super(1024);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+
+  /**
+   * @param header the header of the stored records
+   * @param maxHeapBytes how many bytes of records are kept in memory
+   * @param spillDirectory where the temporary file is created, or null for
+   * the default temporary directory
+   */
+  public SpillingRecordStore(SAMFileHeader header, long maxHeapBytes, File spillDirectory) {
+    this.maxHeapBytes = maxHeapBytes;
+    this.spillDirectory = spillDirectory;
+    this.encoder = new BAMRecordCodec(header);
+    this.encoder.setOutputStream(encoded);
+    this.decoder = new BAMRecordCodec(header);
+  }
+
+  /**
+   * Stores the record and returns its offset.
+   */
+  public long add(SAMRecord record) throws IOException {
+    encoded.reset();
+    encoder.encode(record);
+    final int length = encoded.size();
+    if (!spilling && length <= SLAB_SIZE && slabPosition + length > SLAB_SIZE) {
+      if ((slabs.size() + 1L) * SLAB_SIZE > maxHeapBytes) {
+        spilling = true;
+        LOG.info("Kept " + memoryLength + " bytes of records in memory, " +
+            "spilling the rest to disk");
+      } else {
+        slabs.add(new byte[SLAB_SIZE]);
+        slabPosition = 0;
+      }
+    }
+    if (!spilling && length <= SLAB_SIZE) {
+      final long offset = ((long)(slabs.size() - 1) << SLAB_BITS) + slabPosition;
+      System.arraycopy(encoded.getBuffer(), 0, slabs.get(slabs.size() - 1),
+          slabPosition, length);
+      slabPosition += length;
+      memoryLength += length;
+      return offset;
+    }
+    // Memory is full or the record does not fit in a slab.
+    if (spillFile == null) {
+      createSpillFile();
+    }
+    final long offset = -spillLength - 1;
+    spillOutput.write(encoded.getBuffer(), 0, length);
+    spillLength += length;
+    spillOutputFlushed = false;
+    return offset;
+  }
+
+  /**
+   * Reads back the record stored at the offset.
+   */
+  public SAMRecord get(long offset) throws IOException {
+    final byte[] bytes;
+    final int start;
+    if (offset >= 0) {
+      bytes = slabs.get((int)(offset >>> SLAB_BITS));
+      start = (int)(offset & (SLAB_SIZE - 1));
+    } else {
+      if (!spillOutputFlushed) {
+        spillOutput.flush();
+        spillOutputFlushed = true;
+      }
+      final long position = -offset - 1;
+      final ByteBuffer blockSize = ByteBuffer.allocate(BLOCK_SIZE_LENGTH)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      readFully(blockSize, position);
+      bytes = new byte[BLOCK_SIZE_LENGTH + blockSize.getInt(0)];
+      start = 0;
+      readFully(ByteBuffer.wrap(bytes), position);
+    }
+    decoder.setInputStream(new ByteArrayInputStream(bytes, start, bytes.length - start));
+    return decoder.decode();
+  }
+
+  /** Returns the number of bytes of records kept in memory */
+  public long getHeapBytes() {
+    return memoryLength;
+  }
+
+  /** Returns the number of bytes of records spilled to disk */
+  public long getSpilledBytes() {
+    return spillLength;
+  }
+
+  /**
+   * Deletes the temporary file, if any.
+   */
+  @Override
+  public void close() {
+    if (spillFile == null) {
+      return;
+    }
+    try {
+      spillOutput.close();
+      spillChannel.close();
+    } catch (IOException ex) {
+      LOG.warning("Error closing " + spillFile + ": " + ex.getMessage());
+    }
+    if (!spillFile.delete()) {
+      LOG.warning("Can not delete " + spillFile);
+    }
+    spillFile = null;
+  }
+
+  private void createSpillFile() throws IOException {
+    spillFile = File.createTempFile("unmapped-mates", ".bam", spillDirectory);
+    spillFile.deleteOnExit();
+    spillOutput = new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 16);
+    spillChannel = new RandomAccessFile(spillFile, "r").getChannel();
+    LOG.info("Spilling records to " + spillFile);
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (spillChannel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Truncated record in " + spillFile);
+      }
+    }
+  }
+}
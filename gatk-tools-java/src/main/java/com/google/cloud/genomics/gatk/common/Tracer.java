@@ -0,0 +1,233 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Records spans of work, e.g. page fetches, conversions and pump writes, on a
+ * timeline written in the Chrome trace event format, which chrome://tracing
+ * and Perfetto open. Unlike Metrics it shows when each thread was busy or
+ * waiting, so stalls between stages can be seen.
+ * Tracing is off unless start is called, and begin then returns a shared
+ * no-op span without allocating, so spans can be left in hot paths.
+ * When tracing, ended spans are queued and written to the file by a
+ * background thread.
+ */
+public class Tracer {
+  private static final Logger LOG = Logger.getLogger(Tracer.class.getName());
+  
+  /** How often queued spans are written to the file */
+  private static final long WRITE_PERIOD_MILLIS = 200;
+  
+  /**
+   * Span of work on a thread, ended with end().
+   */
+  public static class Span {
+    private final String name;
+    private final String category;
+    private final Object detail;
+    private final long startNanos;
+    private final long threadId;
+    private long durationNanos;
+    
+    private Span(String name, String category, Object detail) {
+      this.name = name;
+      this.category = category;
+      this.detail = detail;
+      this.threadId = Thread.currentThread().getId();
+      final Tracer tracer = instance;
+      if (tracer != null && !tracer.threadNames.containsKey(threadId)) {
+        tracer.threadNames.put(threadId, Thread.currentThread().getName());
+      }
+      this.startNanos = System.nanoTime();
+    }
+    
+    public void end() {
+      durationNanos = System.nanoTime() - startNanos;
+      final Tracer tracer = instance;
+      if (tracer != null) {
+        tracer.events.add(this);
+      }
+    }
+  }
+  
+  /** Span returned while tracing is off */
+  private static final Span NO_SPAN = new Span("", "", null) {
+    @Override
+    public void end() {
+    }
+  };
+  
+  /** The tracer writing the trace, null while tracing is off */
+  private static volatile Tracer instance = null;
+  
+  private final File file;
+  private final long originNanos = System.nanoTime();
+  private final Queue<Span> events = new ConcurrentLinkedQueue<Span>();
+  /** Names of the threads that began spans, by thread id */
+  private final ConcurrentHashMap<Long, String> threadNames = 
+      new ConcurrentHashMap<Long, String>();
+  /** Threads whose name was written */
+  private final Set<Long> namedThreads = new HashSet<Long>();
+  private final JsonGenerator json;
+  private final ScheduledExecutorService writer;
+  
+  private Tracer(File file) throws IOException {
+    this.file = file;
+    this.json = new JsonFactory().createGenerator(
+        new BufferedOutputStream(new FileOutputStream(file), 1 << 16), JsonEncoding.UTF8);
+    json.writeStartObject();
+    json.writeStringField("displayTimeUnit", "ms");
+    json.writeArrayFieldStart("traceEvents");
+    this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("ga4gh-tracer")
+        .build());
+    writer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        writeEvents();
+      }
+    }, WRITE_PERIOD_MILLIS, WRITE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * Starts tracing to the file, until stop is called or the process exits.
+   * Has no effect if already tracing.
+   */
+  public static synchronized void start(File file) throws IOException {
+    if (instance != null) {
+      return;
+    }
+    instance = new Tracer(file);
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        stop();
+      }
+    }, "ga4gh-tracer-stop"));
+    LOG.info("Tracing to " + file);
+  }
+  
+  /**
+   * Stops tracing and completes the trace file.
+   */
+  public static synchronized void stop() {
+    final Tracer tracer = instance;
+    if (tracer == null) {
+      return;
+    }
+    instance = null;
+    tracer.close();
+  }
+  
+  public static boolean isEnabled() {
+    return instance != null;
+  }
+  
+  /** Begins a span of the current thread */
+  public static Span begin(String name, String category) {
+    return instance == null ? NO_SPAN : new Span(name, category, null);
+  }
+  
+  /**
+   * Begins a span of the current thread, with a detail whose string is
+   * shown with it. The string is only made when tracing.
+   */
+  public static Span begin(String name, String category, Object detail) {
+    return instance == null ? NO_SPAN : new Span(name, category, detail);
+  }
+  
+  private void close() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      writeEvents();
+      try {
+        json.writeEndArray();
+        json.writeEndObject();
+        json.close();
+      } catch (IOException ex) {
+        LOG.warning("Error closing trace " + file + ": " + ex.getMessage());
+      }
+    }
+    LOG.info("Wrote trace to " + file);
+  }
+  
+  /** Writes the queued spans, as complete events with times in microseconds */
+  private synchronized void writeEvents() {
+    try {
+      Span span;
+      while ((span = events.poll()) != null) {
+        if (namedThreads.add(span.threadId)) {
+          writeThreadName(span.threadId);
+        }
+        json.writeStartObject();
+        json.writeStringField("name", span.name);
+        json.writeStringField("cat", span.category);
+        json.writeStringField("ph", "X");
+        json.writeNumberField("ts", (span.startNanos - originNanos) / 1000.0);
+        json.writeNumberField("dur", span.durationNanos / 1000.0);
+        json.writeNumberField("pid", 1);
+        json.writeNumberField("tid", span.threadId);
+        if (span.detail != null) {
+          json.writeObjectFieldStart("args");
+          json.writeStringField("detail", span.detail.toString());
+          json.writeEndObject();
+        }
+        json.writeEndObject();
+      }
+      json.flush();
+    } catch (IOException ex) {
+      LOG.warning("Error writing trace " + file + ": " + ex.getMessage());
+    }
+  }
+  
+  private void writeThreadName(long threadId) throws IOException {
+    final String threadName = threadNames.get(threadId);
+    json.writeStartObject();
+    json.writeStringField("name", "thread_name");
+    json.writeStringField("ph", "M");
+    json.writeNumberField("pid", 1);
+    json.writeNumberField("tid", threadId);
+    json.writeObjectFieldStart("args");
+    json.writeStringField("name", threadName != null ? threadName : "thread-" + threadId);
+    json.writeEndObject();
+    json.writeEndObject();
+  }
+}
@@ -1,17 +1,19 @@
 package com.google.cloud.genomics.gatk.common;
 
-import com.google.api.services.genomics.model.Position;
-import com.google.api.services.genomics.model.Read;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
 
 /**
- * In-memory container for unmapped reads, so we can inject them
+ * Container for unmapped reads, so we can inject them
  * at the right positions to satisfy Picard tools expectations of the order,
  * which are violated by the current API implementation.
  * See https://github.com/ga4gh/schemas/issues/224
@@ -21,130 +23,352 @@ import java.util.logging.Logger;
  * and references its mapped mate and so fails this condition.
  * We fix this by reading all unmapped reads and injecting them right after their mapped mates
  * as we iterate.
- * This is NOT feasible if the number of unmapped reads is very large.
- * We detect this condition and if that happens we will output such unmapped
- * reads with flags changed to make it look like they are not paired.
- * Since most of the tools do precious little with unmapped reads we hope
- * we can get away with this.
+ * There can be a very large number of unmapped reads, so the reads are BAM
+ * encoded in a SpillingRecordStore, which packs them into large byte arrays
+ * and moves them to disk beyond a heap budget.
+ * They are indexed by a 64-bit hash of their mate reference and read name,
+ * in an open addressing table of primitive arrays. The table points to a chain
+ * of the mates of the fragment, kept in read number order as they are added.
+ * Reads whose names collide share a chain and are told apart when the chain is
+ * read back.
+ * While the reads are collected their keys are also added to a LongBloomFilter
+ * per mate reference, so looking up a mapped read without collected mates
+ * usually costs a few word probes of its reference's filter and no table probe.
+ * The filter sizes and expected false positive rates are logged and set in
+ * Metrics at the first lookup, and the lookups they filtered out or let
+ * through in vain are added to Metrics when the reads are closed.
  */
-public class UnmappedReads {
+public class UnmappedReads implements Closeable {
   private static final Logger LOG = Logger.getLogger(UnmappedReads.class.getName());
   
+  private static final int INITIAL_CAPACITY = 1024;
+  
   /**
-   * Maximum number of reads we are prepared to keep in memory.
-   * If this number is exceeded, we will switch to the mode of ignoring
-   * unmapped mate pairs.
+   * Maximum number of reads we are prepared to index, so the table of keys
+   * fits in an array at its load factor of 1/2. Further unmapped mates are
+   * ignored and their mapped mates are written as if they had none.
    */
-  private static final long MAX_READS = 100000000;
+  private static final int MAX_READS = 1 << 29;
+  
+  private static final Metrics.Gauge FILTER_BYTES = 
+      Metrics.getInstance().gauge("mates.filter_bytes");
+  private static final Metrics.Gauge FILTER_EXPECTED_FALSE_POSITIVES_PPM = 
+      Metrics.getInstance().gauge("mates.filter_expected_false_positives_ppm");
+  private static final Metrics.Counter FILTER_LOOKUPS = 
+      Metrics.getInstance().counter("mates.filter_lookups");
+  private static final Metrics.Counter FILTER_NEGATIVES = 
+      Metrics.getInstance().counter("mates.filter_negatives");
+  private static final Metrics.Counter FILTER_FALSE_POSITIVES = 
+      Metrics.getInstance().counter("mates.filter_false_positives");
+  
+  private final SpillingRecordStore store;
+  private final int maxReads;
+  
+  /** Hash table of fragment keys and the first read of their chains, -1 if empty */
+  private long[] tableKeys = new long[INITIAL_CAPACITY];
+  private int[] tableHeads = newTableHeads(INITIAL_CAPACITY);
+  private int tableCount = 0;
+  
+  /** Store offset, read number and next read in the chain of each read */
+  private long[] readOffsets = new long[INITIAL_CAPACITY];
+  private byte[] readNumbers = new byte[INITIAL_CAPACITY];
+  private int[] nextReads = new int[INITIAL_CAPACITY];
+  private int readCount = 0;
+  private boolean limitReached = false;
   
-  public static boolean isUnmappedMateOfMappedRead(Read read) {
-    final boolean paired = (read.getNumberReads() != null && 
-        read.getNumberReads() >= 2);
-    if (!paired) {
+  /** Filter of the keys of the reads by mate reference, filled as reads are added */
+  private final Map<String, LongBloomFilter> filters = new HashMap<String, LongBloomFilter>();
+  private boolean filtersReported = false;
+  private long lookups = 0;
+  private long filterNegatives = 0;
+  private long filterFalsePositives = 0;
+  
+  /**
+   * @param header the header of the reads
+   * @param maxHeapBytes how many bytes of encoded reads are kept in memory
+   * before spilling them to a temporary file
+   * @param spillDirectory where the temporary file is created, or null for
+   * the default temporary directory
+   */
+  public UnmappedReads(SAMFileHeader header, long maxHeapBytes, File spillDirectory) {
+    this(header, maxHeapBytes, spillDirectory, MAX_READS);
+  }
+  
+  UnmappedReads(SAMFileHeader header, long maxHeapBytes, File spillDirectory, int maxReads) {
+    this.store = new SpillingRecordStore(header, maxHeapBytes, spillDirectory);
+    this.maxReads = Math.min(maxReads, MAX_READS);
+  }
+  
+  public static boolean isUnmappedMateOfMappedRead(SAMRecord record) {
+    if (!record.getReadPairedFlag()) {
       return false;
     }
-    final boolean unmapped = (read.getAlignment() == null || 
-        read.getAlignment().getPosition() == null || 
-        read.getAlignment().getPosition().getPosition() == null);
-    if (!unmapped) {
+    if (!record.getReadUnmappedFlag()) {
       return false;
     }
-    final Position matePosition = read.getNextMatePosition();
-    if  (matePosition == null) {
+    if (record.getMateUnmappedFlag()) {
       return false;
     }
-    if (read.getFragmentName() == null) {
+    if (record.getReadName() == null) {
       return false;
     }
-    if (matePosition.getReferenceName() != null && matePosition.getPosition() != null) {
-      return true;
-    }
-    return false;
+    return !SAMRecord.NO_ALIGNMENT_REFERENCE_NAME.equals(record.getMateReferenceName());
   }
   
-  public static boolean isMappedMateOfUnmappedRead(Read read) {
-    return read.getNumberReads() > 0 && 
-        (read.getNextMatePosition() == null || 
-         read.getNextMatePosition().getPosition() == null);
+  public static boolean isMappedMateOfUnmappedRead(SAMRecord record) {
+    return record.getReadPairedFlag() && record.getMateUnmappedFlag();
   }
   
   /**
    * Checks and adds the read if we need to remember it for injection.
    * Returns true if the read was added.
    */
-  public boolean maybeAddRead(Read read) {
+  public boolean maybeAddRead(SAMRecord read) throws IOException {
     if (!isUnmappedMateOfMappedRead(read)) {
       return false;
     }
-    final String reference = read.getNextMatePosition().getReferenceName();
-    String key = getReadKey(read);
-    Map<String, ArrayList<Read>> reads = unmappedReads.get(reference);
-    if (reads == null) {
-      reads = new HashMap<String, ArrayList<Read>>();
-      unmappedReads.put(reference, reads);
-    }
-    ArrayList<Read> mates = reads.get(key);
-    if (mates == null) {
-      mates = new ArrayList<Read>();
-      reads.put(key, mates);
-    }
-    if (getReadCount() < MAX_READS) {
-      mates.add(read);
-      readCount++;
+    if (readCount == maxReads) {
+      if (!limitReached) {
+        LOG.warning("Reached the limit of " + maxReads + " unmapped mates for injection.");
+        limitReached = true;
+      }
+      return false;
+    }
+    final long offset = store.add(read);
+    if (readCount == readOffsets.length) {
+      final int capacity = (int)Math.min(readCount * 2L, maxReads);
+      readOffsets = Arrays.copyOf(readOffsets, capacity);
+      readNumbers = Arrays.copyOf(readNumbers, capacity);
+      nextReads = Arrays.copyOf(nextReads, capacity);
+    }
+    final int index = readCount++;
+    readOffsets[index] = offset;
+    readNumbers[index] = (byte)getReadNumber(read);
+    
+    final long key = getKey(read.getMateReferenceName(), read.getReadName());
+    LongBloomFilter filter = filters.get(read.getMateReferenceName());
+    if (filter == null) {
+      filter = new LongBloomFilter();
+      filters.put(read.getMateReferenceName(), filter);
+    }
+    filter.add(key);
+    final int slot = findSlot(key);
+    if (tableHeads[slot] < 0) {
+      tableKeys[slot] = key;
+      tableHeads[slot] = index;
+      nextReads[index] = -1;
+      if (++tableCount * 2 > tableKeys.length) {
+        resizeTable();
+      }
       return true;
+    }
+    // Insert in read number order, after mates with the same number.
+    int previous = -1;
+    int next = tableHeads[slot];
+    while (next >= 0 && readNumbers[next] <= readNumbers[index]) {
+      previous = next;
+      next = nextReads[next];
+    }
+    nextReads[index] = next;
+    if (previous < 0) {
+      tableHeads[slot] = index;
     } else {
-      LOG.warning("Reached the limit of in-memory unmapped mates for injection.");
+      nextReads[previous] = index;
     }
-    return false;
+    return true;
   }
   
   /**
    * Checks if the passed read has unmapped mates that need to be injected and
-   * if so - returns them. The returned list is sorted by read number to
+   * if so - returns them. The returned list is in read number order to
    * handle the case of multi-read fragments.
    */
-  public ArrayList<Read> getUnmappedMates(Read read) {
-    if (read.getNumberReads() == null ||
-        read.getNumberReads() < 2 ||
-        (read.getNextMatePosition() != null && 
-        read.getNextMatePosition().getPosition() != null) ||
-        read.getAlignment() == null ||
-        read.getAlignment().getPosition() == null ||
-        read.getAlignment().getPosition().getReferenceName() == null ||
-        read.getFragmentName() == null) {
+  public ArrayList<SAMRecord> getUnmappedMates(SAMRecord read) {
+    if (!read.getReadPairedFlag() ||
+        !read.getMateUnmappedFlag() ||
+        read.getReadUnmappedFlag() ||
+        SAMRecord.NO_ALIGNMENT_REFERENCE_NAME.equals(read.getReferenceName()) ||
+        read.getReadName() == null) {
       return null;
     }
-    final String reference = read.getAlignment().getPosition().getReferenceName();
-    final String key = getReadKey(read);
-    
-    Map<String, ArrayList<Read>> reads = unmappedReads.get(reference);
-    if (reads != null) {
-      final ArrayList<Read> mates = reads.get(key);
-      if (mates != null && mates.size() > 1) {
-        Collections.sort(mates, matesComparator);
+    if (!filtersReported) {
+      reportFilters();
+    }
+    final String reference = read.getReferenceName();
+    final String readName = read.getReadName();
+    final long key = getKey(reference, readName);
+    lookups++;
+    final LongBloomFilter filter = filters.get(reference);
+    if (filter == null || !filter.mightContain(key)) {
+      filterNegatives++;
+      return null;
+    }
+    final int slot = findSlot(key);
+    if (tableHeads[slot] < 0) {
+      filterFalsePositives++;
+      return null;
+    }
+    final ArrayList<SAMRecord> mates = new ArrayList<SAMRecord>(2);
+    try {
+      for (int index = tableHeads[slot]; index >= 0; index = nextReads[index]) {
+        final SAMRecord mate = store.get(readOffsets[index]);
+        // Skip reads of other fragments whose key collides.
+        if (readName.equals(mate.getReadName()) && 
+            reference.equals(mate.getMateReferenceName())) {
+          mates.add(mate);
+        }
       }
-      return mates;
+    } catch (IOException ex) {
+      throw new RuntimeException("Error reading unmapped mates: " + ex.getMessage(), ex);
+    }
+    if (mates.isEmpty()) {
+      filterFalsePositives++;
+      return null;
     }
-    return null;
+    return mates;
   }
   
   public long getReadCount() {
     return readCount;
   }
   
-  private static String getReadKey(Read read) {
-    return read.getFragmentName();
+  /**
+   * Deletes the reads spilled to disk.
+   */
+  @Override
+  public void close() {
+    store.close();
+    FILTER_LOOKUPS.add(lookups);
+    FILTER_NEGATIVES.add(filterNegatives);
+    FILTER_FALSE_POSITIVES.add(filterFalsePositives);
+    if (lookups > 0) {
+      LOG.info("Unmapped mate lookups: " + lookups + ", filtered out " + filterNegatives + 
+          ", false positives " + filterFalsePositives);
+    }
+    lookups = 0;
+    filterNegatives = 0;
+    filterFalsePositives = 0;
+  }
+  
+  long getLookups() {
+    return lookups;
+  }
+  
+  long getFilterNegatives() {
+    return filterNegatives;
+  }
+  
+  long getFilterFalsePositives() {
+    return filterFalsePositives;
+  }
+  
+  /** Returns the total size of the filters of the keys */
+  public long getFilterBytes() {
+    long bytes = 0;
+    for (LongBloomFilter filter : filters.values()) {
+      bytes += filter.getSizeBytes();
+    }
+    return bytes;
+  }
+  
+  /** 
+   * Returns the expected false positive rate of the filters of the keys, 
+   * weighted by their number of keys.
+   */
+  public double getFilterExpectedFalsePositiveRate() {
+    double rate = 0;
+    long keyCount = 0;
+    for (LongBloomFilter filter : filters.values()) {
+      rate += filter.getExpectedFalsePositiveRate() * filter.getKeyCount();
+      keyCount += filter.getKeyCount();
+    }
+    return keyCount > 0 ? rate / keyCount : 0;
+  }
+  
+  @Override
+  public String toString() {
+    return "UnmappedReads: " + readCount + " reads, " + store.getHeapBytes() + 
+        " bytes in memory, " + store.getSpilledBytes() + " bytes on disk, " +
+        filters.size() + " filters of " + getFilterBytes() + " bytes, " +
+        "expected false positive rate " + 
+        String.format("%.4f", getFilterExpectedFalsePositiveRate());
+  }
+  
+  /** 
+   * Logs the filters and sets them in Metrics, once the reads are collected
+   * and being looked up.
+   */
+  private void reportFilters() {
+    filtersReported = true;
+    FILTER_BYTES.set(getFilterBytes());
+    FILTER_EXPECTED_FALSE_POSITIVES_PPM.set(
+        Math.round(getFilterExpectedFalsePositiveRate() * 1000000));
+    for (Map.Entry<String, LongBloomFilter> filter : filters.entrySet()) {
+      LOG.fine("Unmapped mates filter of " + filter.getKey() + ": " + filter.getValue());
+    }
+    LOG.info("Unmapped mates filters: " + filters.size() + " references, " + 
+        getFilterBytes() + " bytes, expected false positive rate " + 
+        String.format("%.4f", getFilterExpectedFalsePositiveRate()));
   }
   
-  private static Comparator<Read> matesComparator = new Comparator<Read>() {
-    @Override
-    public int compare(Read r1, Read r2) {
-        return r1.getReadNumber() - r2.getReadNumber();
+  /** 
+   * Returns the 64-bit FNV-1a hash of the reference and read name, used as
+   * the key of the fragment's mates.
+   */
+  static long getReadKey(String reference, String readName) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < reference.length(); i++) {
+      hash = (hash ^ reference.charAt(i)) * 0x100000001b3L;
     }
-  };
+    // Separate the reference from the name, so "chr1" + "0x" != "chr10" + "x".
+    hash = (hash ^ 0xffff) * 0x100000001b3L;
+    for (int i = 0; i < readName.length(); i++) {
+      hash = (hash ^ readName.charAt(i)) * 0x100000001b3L;
+    }
+    return hash;
+  }
   
-  private Map<String, Map<String, ArrayList<Read>>> unmappedReads = 
-      new HashMap<String, Map<String, ArrayList<Read>>>();
+  /** Returns the key of the fragment's mates, overridden by tests to force collisions */
+  long getKey(String reference, String readName) {
+    return getReadKey(reference, readName);
+  }
+  
+  /** Returns the slot of the key in the table, or the empty slot it would go to */
+  private int findSlot(long key) {
+    final int mask = tableKeys.length - 1;
+    // Mix the high bits in, FNV-1a low bits alone spread poorly.
+    int slot = (int)(key ^ (key >>> 32) ^ (key >>> 47)) & mask;
+    while (tableHeads[slot] >= 0 && tableKeys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
   
-  private long readCount = 0;
+  private void resizeTable() {
+    final long[] oldKeys = tableKeys;
+    final int[] oldHeads = tableHeads;
+    tableKeys = new long[oldKeys.length * 2];
+    tableHeads = newTableHeads(oldKeys.length * 2);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldHeads[i] >= 0) {
+        final int slot = findSlot(oldKeys[i]);
+        tableKeys[slot] = oldKeys[i];
+        tableHeads[slot] = oldHeads[i];
+      }
+    }
+  }
+  
+  private static int[] newTableHeads(int capacity) {
+    final int[] heads = new int[capacity];
+    Arrays.fill(heads, -1);
+    return heads;
+  }
+  
+  /** Returns the number of the read in its fragment, as the API numbers them */
+  private static int getReadNumber(SAMRecord read) {
+    if (read.getFirstOfPairFlag()) {
+      return 0;
+    }
+    return read.getSecondOfPairFlag() ? 1 : 2;
+  }
 }
@@ -0,0 +1,419 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import com.google.common.io.Closeables;
+
+import htsjdk.samtools.Bin;
+import htsjdk.samtools.BinList;
+import htsjdk.samtools.GA4GHIndexUtil;
+import htsjdk.samtools.GenomicIndexUtil;
+import htsjdk.samtools.LinearIndex;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Index of the reads of a readgroupset built locally from its reads, with the
+ * same bins as a BAM index, since GA4GH reads have no index to download.
+ * For each reference it holds the number of aligned and unaligned reads, the
+ * first and last aligned positions and the number of reads in each non-empty
+ * bin, each read counted in the smallest bin containing it as in a BAM index.
+ * Like the linear index of a BAM index it also holds, for each 16 kb window,
+ * the smallest start of the reads overlapping the window, which bounds where
+ * reads overlapping a position can start.
+ * Instead of file offsets it returns GA4GHFileSpans of genomic ranges, which
+ * GA4GHIndexing can iterate. The bin methods mirror BrowseableBAMIndex, whose
+ * return types are package-private to htsjdk, so GA4GHBrowseableIndex
+ * implements it from htsjdk's package on top of this index.
+ */
+public class GA4GHCoverageIndex {
+  /** Version of the file format, stored at the start of index files */
+  private static final int FILE_VERSION = 2;
+  
+  /**
+   * Statistics of the reads of a reference.
+   */
+  private static class ReferenceStats {
+    long alignedCount = 0;
+    long unalignedCount = 0;
+    int firstLocus = 0;
+    int lastLocus = 0;
+    /** Non-empty bins in increasing order and their read counts */
+    int[] bins = new int[0];
+    long[] binCounts = new long[0];
+    /** Smallest start of the aligned reads overlapping each window, 0 if none */
+    int[] windowStarts = new int[0];
+  }
+  
+  /**
+   * Collects the statistics of reads added in any order.
+   */
+  public static class Builder {
+    private final SAMSequenceDictionary dictionary;
+    private final ReferenceStats[] references;
+    /** Read counts of every bin, for references with reads */
+    private final long[][] binCounts;
+    /** Window starts, grown as reads are added, for references with reads */
+    private final int[][] windowStarts;
+    
+    public Builder(SAMSequenceDictionary dictionary) {
+      this.dictionary = dictionary;
+      this.references = new ReferenceStats[dictionary.size()];
+      this.binCounts = new long[dictionary.size()][];
+      this.windowStarts = new int[dictionary.size()][];
+      for (int i = 0; i < references.length; i++) {
+        references[i] = new ReferenceStats();
+      }
+    }
+    
+    public void add(SAMRecord record) {
+      final int referenceIndex = record.getReferenceIndex();
+      if (referenceIndex < 0 || referenceIndex >= references.length) {
+        return;
+      }
+      final ReferenceStats stats = references[referenceIndex];
+      if (record.getReadUnmappedFlag()) {
+        stats.unalignedCount++;
+        return;
+      }
+      final int start = record.getAlignmentStart();
+      final int end = Math.max(start, record.getAlignmentEnd());
+      stats.alignedCount++;
+      if (stats.firstLocus == 0 || start < stats.firstLocus) {
+        stats.firstLocus = start;
+      }
+      stats.lastLocus = Math.max(stats.lastLocus, end);
+      if (binCounts[referenceIndex] == null) {
+        binCounts[referenceIndex] = new long[GenomicIndexUtil.MAX_BINS];
+      }
+      binCounts[referenceIndex][GA4GHIndexUtil.regionToBin(start - 1, end)]++;
+      addToWindows(referenceIndex, start, end);
+    }
+    
+    private void addToWindows(int referenceIndex, int start, int end) {
+      final int lastWindow = (end - 1) >> LinearIndex.BAM_LIDX_SHIFT;
+      int[] starts = windowStarts[referenceIndex];
+      if (starts == null) {
+        starts = new int[lastWindow + 1];
+        windowStarts[referenceIndex] = starts;
+      } else if (starts.length <= lastWindow) {
+        starts = Arrays.copyOf(starts, Math.max(lastWindow + 1, starts.length * 2));
+        windowStarts[referenceIndex] = starts;
+      }
+      for (int window = (start - 1) >> LinearIndex.BAM_LIDX_SHIFT; window <= lastWindow; 
+          window++) {
+        if (starts[window] == 0 || start < starts[window]) {
+          starts[window] = start;
+        }
+      }
+    }
+    
+    /** 
+     * Compacts the counts of a reference once all its reads are added, to
+     * release the memory of its full bin array.
+     */
+    public void finishReference(int referenceIndex) {
+      final long[] counts = binCounts[referenceIndex];
+      if (counts == null) {
+        return;
+      }
+      final ReferenceStats stats = references[referenceIndex];
+      final int[] starts = windowStarts[referenceIndex];
+      int windowCount = starts.length;
+      while (windowCount > 0 && starts[windowCount - 1] == 0) {
+        windowCount--;
+      }
+      stats.windowStarts = Arrays.copyOf(starts, windowCount);
+      windowStarts[referenceIndex] = null;
+      int binCount = 0;
+      for (long count : counts) {
+        if (count != 0) {
+          binCount++;
+        }
+      }
+      stats.bins = new int[binCount];
+      stats.binCounts = new long[binCount];
+      for (int bin = 0, i = 0; bin < counts.length; bin++) {
+        if (counts[bin] != 0) {
+          stats.bins[i] = bin;
+          stats.binCounts[i++] = counts[bin];
+        }
+      }
+      binCounts[referenceIndex] = null;
+    }
+    
+    public GA4GHCoverageIndex build() {
+      for (int i = 0; i < references.length; i++) {
+        finishReference(i);
+      }
+      return new GA4GHCoverageIndex(dictionary, references);
+    }
+  }
+  
+  private final SAMSequenceDictionary dictionary;
+  private final ReferenceStats[] references;
+  
+  private GA4GHCoverageIndex(SAMSequenceDictionary dictionary, ReferenceStats[] references) {
+    this.dictionary = dictionary;
+    this.references = references;
+  }
+  
+  /**
+   * Loads an index saved with save(), for the given dictionary.
+   */
+  public static GA4GHCoverageIndex load(File file, SAMSequenceDictionary dictionary) 
+      throws IOException {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(
+          new GZIPInputStream(new FileInputStream(file))));
+      if (in.readInt() != FILE_VERSION) {
+        throw new IOException("Unsupported index version in " + file);
+      }
+      if (in.readInt() != dictionary.size()) {
+        throw new IOException("Index " + file + " does not match the sequence dictionary");
+      }
+      final ReferenceStats[] references = new ReferenceStats[dictionary.size()];
+      for (int i = 0; i < references.length; i++) {
+        final ReferenceStats stats = new ReferenceStats();
+        stats.alignedCount = in.readLong();
+        stats.unalignedCount = in.readLong();
+        stats.firstLocus = in.readInt();
+        stats.lastLocus = in.readInt();
+        final int binCount = in.readInt();
+        stats.bins = new int[binCount];
+        stats.binCounts = new long[binCount];
+        for (int j = 0; j < binCount; j++) {
+          stats.bins[j] = in.readInt();
+          stats.binCounts[j] = in.readLong();
+        }
+        stats.windowStarts = new int[in.readInt()];
+        for (int j = 0; j < stats.windowStarts.length; j++) {
+          stats.windowStarts[j] = in.readInt();
+        }
+        references[i] = stats;
+      }
+      return new GA4GHCoverageIndex(dictionary, references);
+    } finally {
+      Closeables.closeQuietly(in);
+    }
+  }
+  
+  /**
+   * Saves the index to a file, replacing it atomically.
+   */
+  public void save(File file) throws IOException {
+    final File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(
+          new GZIPOutputStream(new FileOutputStream(tempFile))));
+      out.writeInt(FILE_VERSION);
+      out.writeInt(references.length);
+      for (ReferenceStats stats : references) {
+        out.writeLong(stats.alignedCount);
+        out.writeLong(stats.unalignedCount);
+        out.writeInt(stats.firstLocus);
+        out.writeInt(stats.lastLocus);
+        out.writeInt(stats.bins.length);
+        for (int j = 0; j < stats.bins.length; j++) {
+          out.writeInt(stats.bins[j]);
+          out.writeLong(stats.binCounts[j]);
+        }
+        out.writeInt(stats.windowStarts.length);
+        for (int windowStart : stats.windowStarts) {
+          out.writeInt(windowStart);
+        }
+      }
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Can not rename " + tempFile + " to " + file);
+      }
+    } finally {
+      Closeables.close(out, true);
+      tempFile.delete();
+    }
+  }
+  
+  public int getNumberOfReferences() {
+    return references.length;
+  }
+  
+  public long getAlignedRecordCount(int referenceIndex) {
+    return references[referenceIndex].alignedCount;
+  }
+  
+  /** Returns the number of unmapped reads placed on the reference */
+  public long getUnalignedRecordCount(int referenceIndex) {
+    return references[referenceIndex].unalignedCount;
+  }
+  
+  /** Returns the first aligned position on the reference, 0 if there are no reads */
+  public int getFirstLocus(int referenceIndex) {
+    return references[referenceIndex].firstLocus;
+  }
+  
+  /** Returns the last aligned position on the reference, 0 if there are no reads */
+  public int getLastLocus(int referenceIndex) {
+    return references[referenceIndex].lastLocus;
+  }
+  
+  /** Returns the number of reads whose smallest containing bin is the bin */
+  public long getRecordCount(int referenceIndex, Bin bin) {
+    final ReferenceStats stats = references[referenceIndex];
+    final int i = Arrays.binarySearch(stats.bins, bin.getBinNumber());
+    return i >= 0 ? stats.binCounts[i] : 0;
+  }
+  
+  /**
+   * Returns an estimate of the number of reads overlapping [start, end]: the
+   * reads of all bins overlapping it, so it is an upper bound.
+   */
+  public long getRecordCountOverlapping(int referenceIndex, int start, int end) {
+    long count = 0;
+    final BinList bins = getBinsOverlapping(referenceIndex, start, end);
+    for (Bin bin : bins) {
+      count += getRecordCount(referenceIndex, bin);
+    }
+    return count;
+  }
+  
+  /**
+   * Returns the non-empty bins overlapping [start, end], so empty regions can
+   * be skipped.
+   */
+  public BinList getBinsOverlapping(int referenceIndex, int start, int end) {
+    final BitSet bins = GenomicIndexUtil.regionToBins(start, end);
+    final ReferenceStats stats = references[referenceIndex];
+    if (bins == null) {
+      return new BinList(referenceIndex, new BitSet()) {};
+    }
+    final BitSet nonEmpty = new BitSet();
+    for (int bin : stats.bins) {
+      if (bins.get(bin)) {
+        nonEmpty.set(bin);
+      }
+    }
+    return new BinList(referenceIndex, nonEmpty) {};
+  }
+  
+  /**
+   * Returns the span of the reads overlapping [start, end], trimmed to the
+   * aligned positions of the reference, or null if there are none.
+   */
+  public GA4GHFileSpan getSpanOverlapping(int referenceIndex, int start, int end) {
+    final ReferenceStats stats = references[referenceIndex];
+    if (stats.alignedCount == 0 || end < stats.firstLocus || start > stats.lastLocus) {
+      return null;
+    }
+    // Reads overlapping the range may start before it, but not before the
+    // smallest start of the reads overlapping the window of its start.
+    final int window = (Math.max(start, 1) - 1) >> LinearIndex.BAM_LIDX_SHIFT;
+    int spanStart = Math.max(start, stats.firstLocus);
+    if (window < stats.windowStarts.length && stats.windowStarts[window] != 0) {
+      spanStart = Math.min(spanStart, stats.windowStarts[window]);
+    }
+    return new GA4GHFileSpan(dictionary, Collections.singletonList(
+        new GA4GHFileSpan.Range(referenceIndex, spanStart, 
+            Math.min(end, stats.lastLocus))));
+  }
+  
+  /**
+   * Returns the span of the reads of the bin, which are contained in it, or
+   * null if it has none. It also holds the reads of the smaller bins it contains.
+   */
+  public GA4GHFileSpan getSpanInBin(int referenceIndex, Bin bin) {
+    final ReferenceStats stats = references[referenceIndex];
+    if (getRecordCount(referenceIndex, bin) == 0) {
+      return null;
+    }
+    return new GA4GHFileSpan(dictionary, Collections.singletonList(
+        new GA4GHFileSpan.Range(referenceIndex, 
+            Math.max(getFirstLocusInBin(bin), stats.firstLocus), 
+            Math.min(getLastLocusInBin(bin), stats.lastLocus))));
+  }
+  
+  /** 
+   * Returns the smallest start of the reads overlapping the last window with
+   * reads of the reference, 0 if there are no reads.
+   */
+  public int getStartOfLastWindow(int referenceIndex) {
+    final int[] windowStarts = references[referenceIndex].windowStarts;
+    return windowStarts.length == 0 ? 0 : windowStarts[windowStarts.length - 1];
+  }
+  
+  /** Returns the number of bins of the level, each level has 8 times more */
+  public int getLevelSize(int levelNumber) {
+    return 1 << (3 * levelNumber);
+  }
+  
+  public int getLevelForBin(Bin bin) {
+    for (int i = GenomicIndexUtil.LEVEL_STARTS.length - 1; i >= 0; i--) {
+      if (bin.getBinNumber() >= GenomicIndexUtil.LEVEL_STARTS[i]) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Invalid bin " + bin.getBinNumber());
+  }
+  
+  public int getFirstLocusInBin(Bin bin) {
+    final int level = getLevelForBin(bin);
+    final int levelStart = GenomicIndexUtil.LEVEL_STARTS[level];
+    return (bin.getBinNumber() - levelStart) * getBinSpan(level) + 1;
+  }
+  
+  public int getLastLocusInBin(Bin bin) {
+    final int level = getLevelForBin(bin);
+    final int levelStart = GenomicIndexUtil.LEVEL_STARTS[level];
+    return (bin.getBinNumber() - levelStart + 1) * getBinSpan(level);
+  }
+  
+  @Override
+  public String toString() {
+    final List<String> references = new ArrayList<String>();
+    for (int i = 0; i < this.references.length; i++) {
+      if (this.references[i].alignedCount + this.references[i].unalignedCount > 0) {
+        references.add(dictionary.getSequence(i).getSequenceName() + ": " + 
+            this.references[i].alignedCount + " aligned, " + 
+            this.references[i].unalignedCount + " unaligned, " + 
+            this.references[i].bins.length + " bins");
+      }
+    }
+    return "GA4GHCoverageIndex " + references;
+  }
+  
+  /** Returns the number of positions covered by a bin of the level */
+  private int getBinSpan(int level) {
+    return GenomicIndexUtil.BIN_GENOMIC_SPAN / getLevelSize(level);
+  }
+}
@@ -0,0 +1,150 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import htsjdk.samtools.SAMFileSpan;
+import htsjdk.samtools.SAMSequenceDictionary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SAMFileSpan of GA4GH reads. There are no file offsets to point to, so a span
+ * is a list of genomic ranges in dictionary order, and contains the reads
+ * that start in them, as a span of a BAM file contains the records that start
+ * in its chunks.
+ */
+public class GA4GHFileSpan implements SAMFileSpan {
+  /**
+   * Positions [start, end] of a reference, 1-based.
+   */
+  public static class Range {
+    public Range(int referenceIndex, int start, int end) {
+      this.referenceIndex = referenceIndex;
+      this.start = start;
+      this.end = end;
+    }
+    
+    public int getReferenceIndex() {
+      return referenceIndex;
+    }
+    
+    public int getStart() {
+      return start;
+    }
+    
+    public int getEnd() {
+      return end;
+    }
+    
+    @Override
+    public String toString() {
+      return referenceIndex + ":" + start + "-" + end;
+    }
+    
+    private final int referenceIndex;
+    private final int start;
+    private final int end;
+  }
+  
+  private final SAMSequenceDictionary dictionary;
+  private final List<Range> ranges;
+  
+  /**
+   * @param ranges the ranges in dictionary order, not overlapping
+   */
+  public GA4GHFileSpan(SAMSequenceDictionary dictionary, List<Range> ranges) {
+    this.dictionary = dictionary;
+    this.ranges = Collections.unmodifiableList(new ArrayList<Range>(ranges));
+  }
+  
+  /** Returns the span of all reads on the references of the dictionary */
+  public static GA4GHFileSpan getSpanOfAll(SAMSequenceDictionary dictionary) {
+    return getSpanFrom(dictionary, 0, 1);
+  }
+  
+  /** Returns the span from a position to the end of the last reference */
+  private static GA4GHFileSpan getSpanFrom(SAMSequenceDictionary dictionary,
+      int referenceIndex, int start) {
+    final List<Range> ranges = new ArrayList<Range>();
+    for (int i = referenceIndex; i < dictionary.size(); i++) {
+      final int end = dictionary.getSequence(i).getSequenceLength();
+      final int rangeStart = i == referenceIndex ? start : 1;
+      if (rangeStart <= end) {
+        ranges.add(new Range(i, rangeStart, end));
+      }
+    }
+    return new GA4GHFileSpan(dictionary, ranges);
+  }
+  
+  public List<Range> getRanges() {
+    return ranges;
+  }
+  
+  /**
+   * Returns the intervals to query to get the reads of the span.
+   */
+  public GA4GHQueryInterval[] toQueryIntervals() {
+    final GA4GHQueryInterval[] intervals = new GA4GHQueryInterval[ranges.size()];
+    for (int i = 0; i < intervals.length; i++) {
+      final Range range = ranges.get(i);
+      intervals[i] = new GA4GHQueryInterval(
+          dictionary.getSequence(range.getReferenceIndex()).getSequenceName(),
+          range.getStart(), range.getEnd(),
+          GA4GHQueryInterval.ReadPositionConstraint.STARTS_IN);
+    }
+    return intervals;
+  }
+
+  @Override
+  public SAMFileSpan getContentsFollowing() {
+    if (ranges.isEmpty()) {
+      return getSpanOfAll(dictionary);
+    }
+    final Range last = ranges.get(ranges.size() - 1);
+    return getSpanFrom(dictionary, last.getReferenceIndex(), last.getEnd() + 1);
+  }
+
+  @Override
+  public SAMFileSpan removeContentsBefore(SAMFileSpan fileSpan) {
+    if (!(fileSpan instanceof GA4GHFileSpan) || ((GA4GHFileSpan)fileSpan).isEmpty()) {
+      return this;
+    }
+    final Range first = ((GA4GHFileSpan)fileSpan).ranges.get(0);
+    final List<Range> following = new ArrayList<Range>();
+    for (Range range : ranges) {
+      if (range.getReferenceIndex() > first.getReferenceIndex()) {
+        following.add(range);
+      } else if (range.getReferenceIndex() == first.getReferenceIndex() &&
+          range.getEnd() >= first.getStart()) {
+        following.add(new Range(range.getReferenceIndex(), 
+            Math.max(range.getStart(), first.getStart()), range.getEnd()));
+      }
+    }
+    return new GA4GHFileSpan(dictionary, following);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return ranges.isEmpty();
+  }
+  
+  @Override
+  public String toString() {
+    return ranges.toString();
+  }
+}
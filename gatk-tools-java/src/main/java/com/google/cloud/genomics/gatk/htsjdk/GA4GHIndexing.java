@@ -0,0 +1,77 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BrowseableBAMIndex;
+import htsjdk.samtools.GA4GHBrowseableIndex;
+import htsjdk.samtools.SAMFileSpan;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+
+/**
+ * SamReader.Indexing of a GA4GHSamReader.
+ * GA4GH reads have no BAM index, so getIndex and getBrowseableIndex return a
+ * GA4GHBrowseableIndex over GA4GHSamReader.getCoverageIndex, which is built
+ * on first use by streaming all the reads unless it is cached. Spans are
+ * GA4GHFileSpans, or the GA4GHBrowseableIndex.Spans wrapping them that the
+ * index returns, and iterating one queries the reads starting in its ranges.
+ */
+public class GA4GHIndexing implements SamReader.Indexing {
+  private final GA4GHSamReader reader;
+  private final SAMSequenceDictionary dictionary;
+  private GA4GHBrowseableIndex index;
+  
+  GA4GHIndexing(GA4GHSamReader reader, SAMSequenceDictionary dictionary) {
+    this.reader = reader;
+    this.dictionary = dictionary;
+  }
+  
+  @Override
+  public BAMIndex getIndex() {
+    return getBrowseableIndex();
+  }
+
+  @Override
+  public boolean hasBrowseableIndex() {
+    return true;
+  }
+
+  @Override
+  public synchronized BrowseableBAMIndex getBrowseableIndex() {
+    if (index == null) {
+      index = new GA4GHBrowseableIndex(reader.getCoverageIndex());
+    }
+    return index;
+  }
+
+  @Override
+  public SAMRecordIterator iterator(SAMFileSpan chunks) {
+    if (chunks instanceof GA4GHBrowseableIndex.Span) {
+      chunks = ((GA4GHBrowseableIndex.Span)chunks).getFileSpan();
+    }
+    if (!(chunks instanceof GA4GHFileSpan)) {
+      throw new IllegalArgumentException("Not a span of GA4GH reads: " + chunks);
+    }
+    return reader.newIterator(((GA4GHFileSpan)chunks).toQueryIntervals());
+  }
+
+  @Override
+  public SAMFileSpan getFilePointerSpanningReads() {
+    return GA4GHFileSpan.getSpanOfAll(dictionary);
+  }
+}
@@ -31,7 +31,9 @@ public class GA4GHQueryInterval {
   public enum ReadPositionConstraint {
     OVERLAPPING,
     CONTAINED,
-    START_AT
+    START_AT,
+    /** The read starts within the interval */
+    STARTS_IN
   }
   private ReadPositionConstraint readPositionConstraint;
 
@@ -91,6 +93,8 @@ public class GA4GHQueryInterval {
             record.getAlignmentStart(), record.getAlignmentEnd());
       case START_AT:
         return start == record.getAlignmentStart();
+      case STARTS_IN:
+        return record.getAlignmentStart() >= start && record.getAlignmentStart() <= myEnd;
     }
     return false;
   }
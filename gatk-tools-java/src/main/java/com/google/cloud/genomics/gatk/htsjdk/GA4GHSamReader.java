@@ -19,52 +19,162 @@ import com.google.cloud.genomics.gatk.common.GA4GHUrl;
 import com.google.cloud.genomics.gatk.common.GenomicsApiDataSource;
 import com.google.cloud.genomics.gatk.common.GenomicsApiDataSourceFactory;
 import com.google.cloud.genomics.gatk.common.GenomicsApiDataSourceFactory.Settings;
+import com.google.cloud.genomics.gatk.common.Metrics;
+import com.google.cloud.genomics.gatk.common.Tracer;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 
 import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFormatException;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.util.CloseableIterator;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
 
 /**
  * SamReader implementation that reads data from GA4GH API.
  * For client_secrets file, specify the path in the ga4gh.client_secrets system property.
+ * To fetch each reference range as several concurrently fetched shards, set
+ * ga4gh.shards (and optionally ga4gh.fetch_threads) system properties.
+ * The number of pages fetched ahead of the consumer is set with 
+ * ga4gh.read_ahead_pages.
+ * Readgroupset metadata, headers and pages of reads are cached across processes
+ * under the directory set with ga4gh.cache_dir. The size of the page cache is
+ * bounded by ga4gh.page_cache_max_mb and its pages expire after
+ * ga4gh.page_cache_max_age_hours.
+ * Tools that only use positions and flags can avoid fetching bases, qualities
+ * and tags by listing alignedSequence, alignedQuality and info in
+ * ga4gh.omit_read_fields.
+ * Setting ga4gh.streaming_decode to false parses responses into Read objects
+ * before converting them to SAMRecords, rather than decoding them directly.
+ * Records only convert bases, qualities, CIGAR and tags when they are first
+ * accessed, unless ga4gh.lazy_records is set to false.
+ * Setting ga4gh.convert_threads decodes pages on that many threads in
+ * parallel, while the fetching threads only download them.
+ * Unmapped mates collected for injection beyond ga4gh.unmapped_reads_heap_mb
+ * are spilled to a temporary file.
+ * Queries of several intervals merge intervals closer than
+ * ga4gh.interval_batch_gap into a single API query spanning at most
+ * ga4gh.interval_batch_max_span, and ga4gh.prefetch_intervals such queries are
+ * made ahead of the one being iterated.
+ * Once queryMate has been called, it answers from records streamed within
+ * ga4gh.mate_cache_window positions, or fetches a region of
+ * ga4gh.mate_region_size positions at the mate, which also serves the
+ * following lookups of nearby mates. The mates it returns are copies.
+ * The reader has no BAM index, but getCoverageIndex() returns a coverage index
+ * built by streaming all the reads once, which is saved under ga4gh.cache_dir
+ * and reused by later readers. indexing() exposes it as a BrowseableBAMIndex.
+ * Pipeline metrics are available over JMX, and are written as JSON to the file
+ * set with ga4gh.metrics_file every ga4gh.metrics_period_seconds.
+ * Setting ga4gh.trace_file writes a timeline of fetches and conversions to
+ * that file in Chrome trace event format.
+ * The reader can be used from several threads at once. Every query and every
+ * call to iterator() returns a new independent iterator, sharing the reader's
+ * data source, header and caches; each iterator must be used by one thread at
+ * a time. Closing the reader closes the iterators that are still open.
  */
 public class GA4GHSamReader implements SamReader {
-  private GA4GHUrl url;
-  private GenomicsApiDataSourceFactory factory;
-  GenomicsApiDataSource dataSource;
-  GA4GHSamRecordIterator iterator;
+  private static final Logger LOG = Logger.getLogger(GA4GHSamReader.class.getName());
+  private static final String INDEX_CACHE_DIRECTORY = "index";
+  
+  private final GA4GHUrl url;
+  private final GenomicsApiDataSourceFactory factory;
+  volatile GenomicsApiDataSource dataSource;
+  /** Iterators returned by the reader and not closed yet */
+  private final Set<GA4GHSamRecordIterator> openIterators = Collections.newSetFromMap(
+      new ConcurrentHashMap<GA4GHSamRecordIterator, Boolean>());
+  private final String cacheDirectory;
+  private GA4GHIndexing indexing;
+  private GA4GHCoverageIndex coverageIndex;
+  private final int intervalBatchGap = Integer.getInteger("ga4gh.interval_batch_gap",
+      GA4GHSamRecordIterator.DEFAULT_BATCH_GAP);
+  private final int intervalBatchMaxSpan = Integer.getInteger(
+      "ga4gh.interval_batch_max_span", GA4GHSamRecordIterator.DEFAULT_BATCH_MAX_SPAN);
+  private final int prefetchIntervals = Integer.getInteger("ga4gh.prefetch_intervals",
+      GA4GHSamRecordIterator.DEFAULT_PREFETCH_BATCHES);
+  /** Mates of records streamed by the iterator and of regions fetched by queryMate */
+  private final MateCache mateCache = new MateCache(
+      Integer.getInteger("ga4gh.mate_cache_window", MateCache.DEFAULT_WINDOW),
+      Integer.getInteger("ga4gh.mate_region_size", MateCache.DEFAULT_REGION_SIZE));
   
   public GA4GHSamReader(URL url) throws URISyntaxException, IOException, GeneralSecurityException {
     this.url = new GA4GHUrl(url);
     this.factory = new GenomicsApiDataSourceFactory();
-    factory.configure(this.url.getRootUrl(), 
-        new Settings(
-            System.getProperty("ga4gh.client_secrets", "client_secrets.json"),
-            System.getProperty("ga4gh.no_local_server","")
-              .toLowerCase().equals("true")));
+    final Settings settings = new Settings(
+        System.getProperty("ga4gh.client_secrets", "client_secrets.json"),
+        System.getProperty("ga4gh.no_local_server","")
+          .toLowerCase().equals("true"));
+    settings.shards = Integer.getInteger("ga4gh.shards", settings.shards);
+    settings.fetchThreads = Integer.getInteger("ga4gh.fetch_threads", 
+        settings.fetchThreads);
+    settings.readAheadPages = Integer.getInteger("ga4gh.read_ahead_pages", 
+        settings.readAheadPages);
+    settings.cacheDirectory = System.getProperty("ga4gh.cache_dir", 
+        settings.cacheDirectory);
+    settings.metadataCacheMaxAgeHours = Integer.getInteger(
+        "ga4gh.metadata_cache_max_age_hours", settings.metadataCacheMaxAgeHours);
+    settings.pageCacheMaxMegabytes = Integer.getInteger("ga4gh.page_cache_max_mb",
+        settings.pageCacheMaxMegabytes);
+    settings.pageCacheMaxAgeHours = Integer.getInteger("ga4gh.page_cache_max_age_hours",
+        settings.pageCacheMaxAgeHours);
+    settings.omitReadFields = System.getProperty("ga4gh.omit_read_fields",
+        settings.omitReadFields);
+    settings.streamingDecode = Boolean.parseBoolean(System.getProperty(
+        "ga4gh.streaming_decode", String.valueOf(settings.streamingDecode)));
+    settings.lazyRecords = Boolean.parseBoolean(System.getProperty(
+        "ga4gh.lazy_records", String.valueOf(settings.lazyRecords)));
+    settings.convertThreads = Integer.getInteger(
+        "ga4gh.convert_threads", settings.convertThreads);
+    settings.unmappedReadsHeapMegabytes = Integer.getInteger(
+        "ga4gh.unmapped_reads_heap_mb", settings.unmappedReadsHeapMegabytes);
+    cacheDirectory = settings.cacheDirectory;
+    factory.configure(this.url.getRootUrl(), settings);
     dataSource = factory.get(this.url.getRootUrl());
-    queryOverlapping(this.url.getSequence(), this.url.getRangeStart(), 
-        this.url.getRangeEnd());
+    final String metricsFile = System.getProperty("ga4gh.metrics_file", "");
+    if (!metricsFile.isEmpty()) {
+      Metrics.getInstance().startReporting(new File(metricsFile), 
+          Integer.getInteger("ga4gh.metrics_period_seconds", 60));
+    }
+    final String traceFile = System.getProperty("ga4gh.trace_file", "");
+    if (!traceFile.isEmpty()) {
+      Tracer.start(new File(traceFile));
+    }
   }
   
+  /**
+   * Closes the iterators that are still open, the reader can not be queried
+   * afterwards.
+   */
   @Override
   public void close() throws IOException {
     this.dataSource = null;
-    this.factory = null;
+    for (GA4GHSamRecordIterator openIterator : openIterators) {
+      openIterator.close();
+    }
   }
 
   @Override
   public SAMFileHeader getFileHeader() {
-    return iterator.getFileHeader();
+    try {
+      // Resolved once by the data source and shared by all the iterators.
+      return getDataSource().getReadGroupSetMetadata(url.getReadset()).getHeader();
+    } catch (Exception ex) {
+      LOG.warning("Error getting header of " + url.getReadset() + ": " + ex.toString());
+    }
+    return null;
   }
 
   @Override
@@ -73,14 +183,79 @@ public class GA4GHSamReader implements SamReader {
     return Type.SAM_TYPE;
   }
 
+  /** 
+   * Returns true, as the reads can be queried by interval and indexing()
+   * returns an index built from them.
+   */
   @Override
   public boolean hasIndex() {
     return true;
   }
 
+  /** Returns an Indexing whose index is the coverage index of the readgroupset */
   @Override
-  public Indexing indexing() {
-    return null;
+  public synchronized Indexing indexing() {
+    if (indexing == null) {
+      indexing = new GA4GHIndexing(this, getFileHeader().getSequenceDictionary());
+    }
+    return indexing;
+  }
+  
+  /**
+   * Returns the coverage index of the readgroupset. It is loaded from the
+   * cache, or built from all its reads and cached, which streams every read
+   * of the readgroupset.
+   */
+  public synchronized GA4GHCoverageIndex getCoverageIndex() {
+    if (coverageIndex == null) {
+      coverageIndex = loadOrBuildCoverageIndex(getFileHeader().getSequenceDictionary());
+    }
+    return coverageIndex;
+  }
+  
+  private GA4GHCoverageIndex loadOrBuildCoverageIndex(SAMSequenceDictionary dictionary) {
+    final File file = cacheDirectory.isEmpty() ? null : new File(
+        new File(cacheDirectory, INDEX_CACHE_DIRECTORY), 
+        Hashing.sha1().hashString(url.getRootUrl() + "/" + url.getReadset(),
+            Charsets.UTF_8).toString() + ".idx.gz");
+    if (file != null && file.isFile()) {
+      try {
+        final GA4GHCoverageIndex index = GA4GHCoverageIndex.load(file, dictionary);
+        LOG.info("Loaded index of " + url.getReadset() + " from " + file);
+        return index;
+      } catch (IOException ex) {
+        LOG.warning("Error loading index from " + file + ": " + ex.getMessage());
+      }
+    }
+    LOG.info("Building index of " + url.getReadset());
+    final GA4GHCoverageIndex.Builder builder = new GA4GHCoverageIndex.Builder(dictionary);
+    for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+      final GA4GHSamRecordIterator sequenceIterator = newIterator(new GA4GHQueryInterval[] {
+          new GA4GHQueryInterval(sequence.getSequenceName(), 0, 0, 
+              GA4GHQueryInterval.ReadPositionConstraint.OVERLAPPING)});
+      try {
+        while (sequenceIterator.hasNext()) {
+          builder.add(sequenceIterator.next());
+        }
+      } finally {
+        sequenceIterator.close();
+      }
+      builder.finishReference(sequence.getSequenceIndex());
+    }
+    final GA4GHCoverageIndex index = builder.build();
+    LOG.info("Built " + index);
+    if (file != null) {
+      try {
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+          throw new IOException("Can not create directory " + file.getParentFile());
+        }
+        index.save(file);
+        LOG.info("Cached index of " + url.getReadset() + " in " + file);
+      } catch (IOException ex) {
+        LOG.warning("Error caching index of " + url.getReadset() + ": " + ex.getMessage());
+      }
+    }
+    return index;
   }
   
   @Override
@@ -150,12 +325,32 @@ public class GA4GHSamReader implements SamReader {
             "SAMRecord must be either first and second of pair, but not both.");
     }
     final boolean firstOfPair = rec.getFirstOfPairFlag();
-    final CloseableIterator<SAMRecord> it;
-    if (rec.getMateReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-        it = queryUnmapped();
-    } else {
-        it = queryAlignmentStart(rec.getMateReferenceName(), rec.getMateAlignmentStart());
+    final SAMRecord cachedMate = mateCache.findMate(rec);
+    if (cachedMate != null) {
+      return cachedMate;
+    }
+    if (rec.getMateReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+      // Fetch the region starting at the mate, unless it was already fetched
+      // and the mate is not there.
+      final String reference = rec.getMateReferenceName();
+      final int position = rec.getMateAlignmentStart();
+      if (mateCache.isFetched(reference, position)) {
+        return null;
+      }
+      final int end = position + mateCache.getRegionSize() - 1;
+      final GA4GHSamRecordIterator regionIterator = newIterator(new GA4GHQueryInterval[] {
+          new GA4GHQueryInterval(reference, position, end, 
+              GA4GHQueryInterval.ReadPositionConstraint.OVERLAPPING)});
+      try {
+        mateCache.addRegion(reference, position, end, regionIterator);
+      } finally {
+        regionIterator.close();
+      }
+      return mateCache.findMate(rec);
     }
+    final CloseableIterator<SAMRecord> it = newIterator(new GA4GHQueryInterval[] {
+        new GA4GHQueryInterval("*", 0, 0, 
+            GA4GHQueryInterval.ReadPositionConstraint.OVERLAPPING)});
     try {
         SAMRecord mateRec = null;
         while (it.hasNext()) {
@@ -191,15 +386,40 @@ public class GA4GHSamReader implements SamReader {
     }
   }
   
+  /**
+   * Returns a new iterator over the intervals, whose records are remembered
+   * for queryMate.
+   */
   public SAMRecordIterator query(GA4GHQueryInterval[] intervals) {
-    iterator = new GA4GHSamRecordIterator(dataSource, url.getReadset(), 
-        intervals);
-    return iterator();
+    final GA4GHSamRecordIterator queryIterator = newIterator(intervals);
+    queryIterator.setMateCache(mateCache);
+    return queryIterator;
+  }
+  
+  /** 
+   * Makes an iterator over the intervals, which is closed with the reader if
+   * it is still open.
+   */
+  GA4GHSamRecordIterator newIterator(GA4GHQueryInterval[] intervals) {
+    final GA4GHSamRecordIterator newIterator = new GA4GHSamRecordIterator(getDataSource(), 
+        url.getReadset(), intervals, intervalBatchGap, intervalBatchMaxSpan, 
+        prefetchIntervals);
+    newIterator.setOpenIterators(openIterators);
+    return newIterator;
   }
   
+  /** Returns a new iterator over the range of the reader's url */
   @Override
   public SAMRecordIterator iterator() {
-    return iterator;
+    return queryOverlapping(url.getSequence(), url.getRangeStart(), url.getRangeEnd());
+  }
+  
+  private GenomicsApiDataSource getDataSource() {
+    final GenomicsApiDataSource result = dataSource;
+    if (result == null) {
+      throw new IllegalStateException("The reader of " + url.getReadset() + " is closed");
+    }
+    return result;
   }
 
   @Override
@@ -16,16 +16,37 @@ limitations under the License.
 package com.google.cloud.genomics.gatk.htsjdk;
 
 import com.google.cloud.genomics.gatk.common.GenomicsApiDataSource;
+import com.google.cloud.genomics.gatk.common.Metrics;
 import com.google.cloud.genomics.gatk.common.ReadIteratorResource;
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileHeader.SortOrder;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.util.IntervalTree;
 
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -36,73 +57,386 @@ import java.util.logging.Logger;
  * Since the API always return *overlapping* reads and SAMRecordIterator
  * supports contained and start-at queries, this class filters reads
  * returned from the API to make sure they conform to the requested intervals.
+ * Intervals are sorted in the order of the sequence dictionary, overlapping
+ * ones are merged and nearby ones are batched into a single API query, so
+ * panels of many small intervals do not need a query each. Reads are matched
+ * against the requested intervals with an interval tree, and a read matching
+ * intervals of several batches is only returned by the first of them.
+ * The next batches are queried ahead of the consumer on background threads.
+ * The iterator is used by one thread, but can be closed from another one, e.g.
+ * by its reader: the batch being iterated and the queued queries are only
+ * changed under the iterator's lock, and a batch the consumer receives after
+ * the iterator was closed is released by the consumer. Closing the batch being
+ * iterated ends its iteration, waking up a consumer waiting for reads, and
+ * leaves the unmapped mates it may be using to the consumer to release.
  */
 public class GA4GHSamRecordIterator implements SAMRecordIterator{
   private static final Logger LOG = Logger.getLogger(GA4GHSamRecordIterator.class.getName());
 
   private static final long STATS_DUMP_INTERVAL_READS = 100000;
   
+  private static final Metrics.Timer BATCH_WAIT = 
+      Metrics.getInstance().timer("iterator.batch_wait");
+  private static final Metrics.Counter ITERATOR_RECORDS = 
+      Metrics.getInstance().counter("iterator.records");
+  
+  /** Default maximum gap between intervals queried together */
+  public static final int DEFAULT_BATCH_GAP = 16384;
+  
+  /** Default maximum length of the range of intervals queried together */
+  public static final int DEFAULT_BATCH_MAX_SPAN = 1000000;
+  
+  /** Default number of batches queried ahead of the one being iterated */
+  public static final int DEFAULT_PREFETCH_BATCHES = 2;
+  
+  /** Queries batches ahead of the consumer */
+  private static final ExecutorService PREFETCH_EXECUTOR = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("ga4gh-prefetch-%d")
+          .build());
+  
+  /**
+   * A range queried with a single API call and the intervals it covers.
+   * Batches of intervals on a sequence of the dictionary match reads with the
+   * interval tree of the sequence, others with their own single interval.
+   */
+  static class Batch {
+    Batch(GA4GHQueryInterval interval, boolean inTree) {
+      this.sequence = interval.getSequence();
+      this.start = interval.getStart();
+      this.end = interval.getEnd();
+      this.interval = inTree ? null : interval;
+    }
+    
+    final String sequence;
+    final int start;
+    int end;
+    final GA4GHQueryInterval interval;
+    int intervalCount = 1;
+  }
+  
+  /**
+   * A requested interval and the index of the batch that queries it.
+   */
+  static class TreeEntry {
+    TreeEntry(GA4GHQueryInterval interval, int batchIndex) {
+      this.interval = interval;
+      this.batchIndex = batchIndex;
+    }
+    
+    final GA4GHQueryInterval interval;
+    final int batchIndex;
+  }
+  
+  /**
+   * A queried batch, with its iterator already started.
+   */
+  static class QueriedBatch {
+    QueriedBatch(ReadIteratorResource resource, Iterator<SAMRecord> iterator) {
+      this.resource = resource;
+      this.iterator = iterator;
+    }
+    
+    final ReadIteratorResource resource;
+    final Iterator<SAMRecord> iterator;
+  }
+  
+  /**
+   * Query of a batch ahead of the consumer, which releases the reads it
+   * returns if it was cancelled in the meantime, since nobody else can.
+   */
+  static class PrefetchTask extends FutureTask<QueriedBatch> {
+    PrefetchTask(Callable<QueriedBatch> callable) {
+      super(callable);
+    }
+    
+    @Override
+    protected void set(QueriedBatch queried) {
+      super.set(queried);
+      if (isCancelled() && queried != null) {
+        queried.resource.close();
+      }
+    }
+  }
+  
   Iterator<SAMRecord> iterator;
+  /** Resource of the batch being iterated, guarded by this */
+  ReadIteratorResource resource;
   GenomicsApiDataSource dataSource;
-  GA4GHQueryInterval[] intervals;
   String readSetId;
-  int intervalIndex = -1;
+  List<Batch> batches;
+  /**
+   * Requested intervals by sequence, for batches matching reads with a tree.
+   * Intervals with identical ranges share a node, in batch order.
+   */
+  Map<String, IntervalTree<List<TreeEntry>>> intervalTrees;
+  int batchIndex = -1;
+  /** Queries of the batches following the current one, in batch order, guarded by this */
+  final Deque<Future<QueriedBatch>> prefetched = new ArrayDeque<Future<QueriedBatch>>();
+  int prefetchedBatches = 0;
+  int prefetchCount;
   boolean hasNext;
   SAMRecord nextRead;
   SAMFileHeader header;
   long processedReads;
   Stopwatch timer;
+  /** Remembers returned records for mate lookups, or null */
+  MateCache.Window mateWindow;
+  /** Set of open iterators this one is removed from when closed, or null */
+  Set<GA4GHSamRecordIterator> openIterators;
+  /** Set when the iterator is closed, possibly by another thread */
+  volatile boolean closed = false;
   
   public GA4GHSamRecordIterator(GenomicsApiDataSource dataSource,
       String readSetId,
       GA4GHQueryInterval[] intervals) {
+    this(dataSource, readSetId, intervals, DEFAULT_BATCH_GAP, DEFAULT_BATCH_MAX_SPAN,
+        DEFAULT_PREFETCH_BATCHES);
+  }
+  
+  /**
+   * @param batchGap the maximum gap between intervals queried together
+   * @param batchMaxSpan the maximum length of the range of intervals queried together
+   * @param prefetchCount the number of batches queried ahead of the one being
+   * iterated, 0 queries each batch when the previous one is exhausted
+   */
+  public GA4GHSamRecordIterator(GenomicsApiDataSource dataSource,
+      String readSetId,
+      GA4GHQueryInterval[] intervals,
+      int batchGap, int batchMaxSpan, int prefetchCount) {
     this.dataSource = dataSource;
     this.readSetId = readSetId;
-    this.intervals = intervals;
+    this.prefetchCount = Math.max(0, prefetchCount);
     this.timer = Stopwatch.createUnstarted();
+    makeBatches(intervals == null ? new GA4GHQueryInterval[0] : intervals, 
+        batchGap, batchMaxSpan);
     seekMatchingRead();
   }
   
+  /**
+   * Sorts and merges the intervals on sequences of the dictionary into batches
+   * and builds their interval trees. Other intervals, e.g. unmapped reads or
+   * open ended ones, are queried on their own after those, in request order.
+   */
+  void makeBatches(GA4GHQueryInterval[] intervals, int batchGap, int batchMaxSpan) {
+    batches = new ArrayList<Batch>();
+    intervalTrees = new HashMap<String, IntervalTree<List<TreeEntry>>>();
+    final SAMFileHeader dictionaryHeader = getDictionaryHeader();
+    final List<GA4GHQueryInterval> sorted = new ArrayList<GA4GHQueryInterval>();
+    final List<GA4GHQueryInterval> others = new ArrayList<GA4GHQueryInterval>();
+    for (GA4GHQueryInterval interval : intervals) {
+      if (dictionaryHeader != null && interval.getEnd() != 0 && 
+          dictionaryHeader.getSequenceIndex(interval.getSequence()) >= 0) {
+        sorted.add(interval);
+      } else {
+        others.add(interval);
+      }
+    }
+    if (!sorted.isEmpty()) {
+      Collections.sort(sorted, new Comparator<GA4GHQueryInterval>() {
+        @Override
+        public int compare(GA4GHQueryInterval i1, GA4GHQueryInterval i2) {
+          int result = dictionaryHeader.getSequenceIndex(i1.getSequence()) - 
+              dictionaryHeader.getSequenceIndex(i2.getSequence());
+          if (result == 0) {
+            result = i1.getStart() - i2.getStart();
+          }
+          return result != 0 ? result : i1.getEnd() - i2.getEnd();
+        }
+      });
+    }
+    Batch batch = null;
+    GA4GHQueryInterval previous = null;
+    for (GA4GHQueryInterval interval : sorted) {
+      final boolean sameSequence = previous != null && 
+          previous.getSequence().equals(interval.getSequence());
+      // Overlapping reads of adjacent or overlapping OVERLAPPING intervals 
+      // are those overlapping their union, other constraints can not be merged.
+      if (sameSequence && isOverlapping(previous) && isOverlapping(interval) &&
+          interval.getStart() <= previous.getEnd() + 1) {
+        previous = new GA4GHQueryInterval(previous.getSequence(), previous.getStart(),
+            Math.max(previous.getEnd(), interval.getEnd()), 
+            GA4GHQueryInterval.ReadPositionConstraint.OVERLAPPING);
+      } else {
+        if (previous != null) {
+          batch = addToBatch(batch, previous, batchGap, batchMaxSpan);
+        }
+        previous = interval;
+      }
+    }
+    if (previous != null) {
+      addToBatch(batch, previous, batchGap, batchMaxSpan);
+    }
+    for (GA4GHQueryInterval interval : others) {
+      batches.add(new Batch(interval, false));
+    }
+    if (intervals.length > 1) {
+      LOG.info("Querying " + intervals.length + " intervals with " + batches.size() + 
+          " API queries");
+    }
+  }
+  
+  /**
+   * Adds the interval to the current batch if it is close enough, otherwise to
+   * a new batch, and returns the batch it was added to.
+   */
+  Batch addToBatch(Batch batch, GA4GHQueryInterval interval, int batchGap, 
+      int batchMaxSpan) {
+    if (batch == null || !batch.sequence.equals(interval.getSequence()) ||
+        interval.getStart() - batch.end > batchGap ||
+        interval.getEnd() - batch.start > batchMaxSpan) {
+      batch = new Batch(interval, true);
+      batches.add(batch);
+    } else {
+      batch.end = Math.max(batch.end, interval.getEnd());
+      batch.intervalCount++;
+    }
+    IntervalTree<List<TreeEntry>> tree = intervalTrees.get(interval.getSequence());
+    if (tree == null) {
+      tree = new IntervalTree<List<TreeEntry>>();
+      intervalTrees.put(interval.getSequence(), tree);
+    }
+    // Identical intervals may have different constraints, a read matching
+    // any of them matches.
+    final IntervalTree.Node<List<TreeEntry>> node = 
+        tree.find(interval.getStart(), interval.getEnd());
+    final List<TreeEntry> entries;
+    if (node != null) {
+      entries = node.getValue();
+    } else {
+      entries = new ArrayList<TreeEntry>(1);
+      tree.put(interval.getStart(), interval.getEnd(), entries);
+    }
+    entries.add(new TreeEntry(interval, batches.size() - 1));
+    return batch;
+  }
+  
+  static boolean isOverlapping(GA4GHQueryInterval interval) {
+    return interval.getReadPositionConstraint() == 
+        GA4GHQueryInterval.ReadPositionConstraint.OVERLAPPING;
+  }
+  
+  /** Returns the header with the sequence dictionary, or null if it can not be had */
+  SAMFileHeader getDictionaryHeader() {
+    try {
+      return dataSource.getReadGroupSetMetadata(readSetId).getHeader();
+    } catch (Exception ex) {
+      LOG.warning("Error getting header, intervals will not be merged: " + ex.toString());
+    }
+    return null;
+  }
+  
+  /** 
+   * Adds the iterator to a set of open iterators, it removes itself when
+   * closed. 
+   */
+  void setOpenIterators(Set<GA4GHSamRecordIterator> openIterators) {
+    this.openIterators = openIterators;
+    openIterators.add(this);
+  }
+  
+  /** Sets the cache that returned records are added to */
+  public void setMateCache(MateCache mateCache) {
+    this.mateWindow = mateCache.newWindow();
+  }
+  
   /** Returns true when we truly reached the end of all requested data */
   boolean isAtEnd() {
-    return intervals == null || intervals.length == 0 ||  
-        intervalIndex >= intervals.length;
+    return closed || batches == null || batchIndex >= batches.size();
   }
   
-  /** Returns the current interval being processed or null if we have reached the end */
-  GA4GHQueryInterval currentInterval() {
+  /** Returns the current batch being processed or null if we have reached the end */
+  Batch currentBatch() {
     if (isAtEnd()) {
       return null;
     }
-    return intervals[intervalIndex];
+    return batches.get(batchIndex);
   }
   
-  /** Re-queries the API for the next interval */
-  ReadIteratorResource queryNextInterval() {
+  /** 
+   * Moves to the next batch and returns its queried reads, or null if the
+   * query failed, making sure the following batches are being queried.
+   */
+  QueriedBatch queryNextBatch() {
     Stopwatch w = Stopwatch.createStarted();
     if (!isAtEnd()) {
-      intervalIndex++;
+      batchIndex++;
     }
     if (isAtEnd()) {
       return null;
     }
-    ReadIteratorResource result =  queryForInterval(currentInterval());
+    final Future<QueriedBatch> future;
+    synchronized (this) {
+      if (closed) {
+        return null;
+      }
+      while (prefetchedBatches < batches.size() && 
+          prefetchedBatches <= batchIndex + prefetchCount) {
+        final Batch batch = batches.get(prefetchedBatches++);
+        final PrefetchTask task = new PrefetchTask(new Callable<QueriedBatch>() {
+          @Override
+          public QueriedBatch call() {
+            return queryForBatch(batch);
+          }
+        });
+        PREFETCH_EXECUTOR.execute(task);
+        prefetched.add(task);
+      }
+      future = prefetched.remove();
+    }
+    // Waited for without the lock, so close() is not blocked meanwhile.
+    QueriedBatch result = null;
+    try {
+      result = Uninterruptibles.getUninterruptibly(future);
+    } catch (ExecutionException ex) {
+      LOG.warning("Error getting data for interval " + ex.getCause().toString());
+    } catch (CancellationException ex) {
+      // Cancelled by close(), the consumer sees the iterator is at its end.
+      return null;
+    }
+    BATCH_WAIT.record(w.elapsed(TimeUnit.NANOSECONDS));
     LOG.info("Interval query took: " + w);
     startTiming();
     return result;
   }
   
-  /** Queries the API for an interval and returns the iterator resource, or null if failed */
-  ReadIteratorResource queryForInterval(GA4GHQueryInterval interval) {
+  /** Queries the API for a batch and returns its reads, or null if failed */
+  QueriedBatch queryForBatch(Batch batch) {
     try {
-      return dataSource.getReadsFromGenomicsApi(readSetId, interval.getSequence(),
-          interval.getStart(), interval.getEnd());
+      final ReadIteratorResource resource = dataSource.getReadsFromGenomicsApi(
+          readSetId, batch.sequence, batch.start, batch.end);
+      // Starting the iterator starts fetching the reads.
+      return new QueriedBatch(resource, resource.getSAMRecordIterable().iterator());
     } catch (Exception ex) {
       LOG.warning("Error getting data for interval " + ex.toString());
     }
     return null;
   }
   
+  /**
+   * Returns true if the read matches a requested interval of the current batch
+   * and no interval of an earlier batch.
+   */
+  boolean matches(SAMRecord read) {
+    final Batch batch = currentBatch();
+    if (batch.interval != null) {
+      return batch.interval.matches(read);
+    }
+    final int start = read.getAlignmentStart();
+    final Iterator<IntervalTree.Node<List<TreeEntry>>> overlappers = intervalTrees
+        .get(batch.sequence).overlappers(start, Math.max(start, read.getAlignmentEnd()));
+    // Overlappers come in start order, so the first match is in the earliest batch.
+    while (overlappers.hasNext()) {
+      for (TreeEntry entry : overlappers.next().getValue()) {
+        if (entry.batchIndex <= batchIndex && entry.interval.matches(read)) {
+          return entry.batchIndex == batchIndex;
+        }
+      }
+    }
+    return false;
+  }
+  
   /**
    * Ensures next returned read will match the currently requested interval.
    * Since the API always returns overlapping reads we might need to skip some
@@ -118,33 +452,79 @@ public class GA4GHSamRecordIterator implements SAMRecordIterator{
             "interval from the API");
         // We have hit an end (or this is first time) so we need to go fish
         // to the API.
-        ReadIteratorResource resource = queryNextInterval();
-        if (resource != null) {
-          LOG.info("Got next interval from the API");
-          header = resource.getSAMFileHeader();
-          iterator = resource.getSAMRecordIterable().iterator();
-        } else {
-          LOG.info("Failed to get next interval from the API");
-          header = null;
-          iterator = null;
+        synchronized (this) {
+          if (resource != null) {
+            resource.close();
+            resource = null;
+          }
+        }
+        final QueriedBatch queried = queryNextBatch();
+        synchronized (this) {
+          if (closed) {
+            // Closed while the batch was queried, it is ours to release.
+            if (queried != null) {
+              queried.resource.close();
+            }
+            return;
+          }
+          if (queried != null) {
+            LOG.info("Got next interval from the API");
+            resource = queried.resource;
+            header = resource.getSAMFileHeader();
+            iterator = queried.iterator;
+          } else if (!isAtEnd()) {
+            LOG.info("Failed to get next interval from the API");
+            header = null;
+            iterator = null;
+          }
         }
       } else {
         nextRead = iterator.next();
-        if (currentInterval().matches(nextRead)) {
+        if (matches(nextRead)) {
           return; // Happy case, otherwise we keep spinning in the loop.
-        } else {
-          LOG.info("Skipping non matching read");
         }
       }
     }
   }
  
   
+  /**
+   * Can be called by the reader closing it from another thread. Only the
+   * consumer thread changes the batch being iterated, so this only releases
+   * resources and lets the consumer see the iterator is at its end.
+   */
   @Override
-  public void close() {
-    this.iterator = null;
-    this.dataSource = null;
-    this.intervalIndex = intervals.length;
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (this.resource != null) {
+      this.resource.close();
+      this.resource = null;
+    }
+    // Queries in progress are not waited for, they release their reads
+    // themselves once cancelled.
+    for (Future<QueriedBatch> future : prefetched) {
+      if (!future.cancel(false)) {
+        try {
+          final QueriedBatch queried = Futures.getUnchecked(future);
+          if (queried != null) {
+            queried.resource.close();
+          }
+        } catch (RuntimeException ex) {
+          // The query failed, there is nothing to release.
+        }
+      }
+    }
+    prefetched.clear();
+    if (mateWindow != null) {
+      mateWindow.close();
+    }
+    if (openIterators != null) {
+      openIterators.remove(this);
+      openIterators = null;
+    }
   }
 
   @Override
@@ -155,6 +535,9 @@ public class GA4GHSamRecordIterator implements SAMRecordIterator{
   @Override
   public SAMRecord next() {
     SAMRecord retVal = nextRead;
+    if (mateWindow != null) {
+      mateWindow.add(retVal);
+    }
     seekMatchingRead();
     updateTiming();
     return retVal;
@@ -177,11 +560,13 @@ public class GA4GHSamRecordIterator implements SAMRecordIterator{
   
   void startTiming() {
     processedReads = 0;
-    timer.start(); 
+    // Restarted for every batch, it is still running from the previous one.
+    timer.reset().start();
   }
   
   void updateTiming() {
     processedReads++;
+    ITERATOR_RECORDS.increment();
     if ((processedReads % STATS_DUMP_INTERVAL_READS) == 0) {
       dumpTiming();
     }
@@ -0,0 +1,272 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import htsjdk.samtools.SAMRecord;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers primary records by fragment name, so GA4GHSamReader.queryMate
+ * can find most mates without a query of its own.
+ * Records streamed by each iterator of the reader are kept while they are
+ * within a window of positions behind the latest record that iterator
+ * streamed. Streamed records are only kept once queryMate has been called, so
+ * readers that never look up mates pay nothing for the cache.
+ * Mates that were not streamed recently are looked up by fetching a whole
+ * region starting at the mate position, and the records of the last few
+ * regions are kept, so the following lookups of nearby mates are answered
+ * from the same fetch.
+ * The cache is shared by all the iterators of a reader and can be used from
+ * several threads. Each iterator adds to its own window, and streamed
+ * records are indexed in a concurrent map, so iterators on different threads
+ * do not contend for a lock. Records are copied when they are kept and when
+ * they are returned, so callers can modify the mates they get and records
+ * are never shared with the thread that streamed them.
+ */
+public class MateCache {
+  /** Default number of positions streamed records are kept for */
+  public static final int DEFAULT_WINDOW = 20000;
+  
+  /** Default length of the regions fetched on a miss */
+  public static final int DEFAULT_REGION_SIZE = 20000;
+  
+  /** Number of fetched regions kept */
+  private static final int MAX_REGIONS = 8;
+  
+  /**
+   * Records of a fetched region. A record starting in the region is always
+   * in it, since reads overlapping the region were fetched.
+   */
+  private static class Region {
+    Region(String reference, int start, int end) {
+      this.reference = reference;
+      this.start = start;
+      this.end = end;
+    }
+    
+    boolean contains(String reference, int position) {
+      return this.reference.equals(reference) && position >= start && position <= end;
+    }
+    
+    final String reference;
+    final int start;
+    final int end;
+    final Map<String, SAMRecord> records = new HashMap<String, SAMRecord>();
+  }
+  
+  /**
+   * A kept copy of a streamed record. Entries are compared by identity, so
+   * a window only removes the entries it added.
+   */
+  private static class Entry {
+    Entry(String key, SAMRecord record) {
+      this.key = key;
+      this.record = record;
+    }
+    
+    final String key;
+    final SAMRecord record;
+  }
+  
+  /**
+   * The records streamed by one iterator that are still within the window.
+   * Only contended when the iterator is closed from another thread.
+   */
+  public class Window {
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    private boolean closed = false;
+    
+    private Window() {
+    }
+    
+    /**
+     * Remembers a record streamed by the iterator, forgetting those that are
+     * now too far behind it.
+     */
+    public void add(SAMRecord record) {
+      if (!enabled) {
+        return;
+      }
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        while (!entries.isEmpty()) {
+          final Entry oldest = entries.peekFirst();
+          if (record.getReferenceIndex().equals(oldest.record.getReferenceIndex()) &&
+              record.getAlignmentStart() - oldest.record.getAlignmentStart() <= window) {
+            break;
+          }
+          entries.removeFirst();
+          streamed.remove(oldest.key, oldest);
+        }
+        if (isCached(record)) {
+          final Entry entry = new Entry(getKey(record), copy(record));
+          streamed.put(entry.key, entry);
+          entries.addLast(entry);
+        }
+      }
+    }
+    
+    /** Forgets the records of the iterator, which is closed. */
+    public synchronized void close() {
+      closed = true;
+      for (Entry entry : entries) {
+        streamed.remove(entry.key, entry);
+      }
+      entries.clear();
+    }
+  }
+  
+  private final int window;
+  private final int regionSize;
+  
+  /** Set by the first lookup, records are only streamed into windows from then on */
+  private volatile boolean enabled = false;
+  
+  /** Streamed records of all the windows by key */
+  private final ConcurrentMap<String, Entry> streamed = new ConcurrentHashMap<String, Entry>();
+  
+  /** Fetched regions, most recent first */
+  private final LinkedList<Region> regions = new LinkedList<Region>();
+  
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  
+  /**
+   * @param window the number of positions streamed records are kept for
+   * @param regionSize the length of the regions fetched on a miss
+   */
+  public MateCache(int window, int regionSize) {
+    this.window = window;
+    this.regionSize = Math.max(1, regionSize);
+  }
+  
+  public int getRegionSize() {
+    return regionSize;
+  }
+  
+  /** Returns a new window for the records streamed by an iterator */
+  public Window newWindow() {
+    return new Window();
+  }
+  
+  /**
+   * Returns a copy of the mate of the record if it is known, or null.
+   * Streamed records are kept from the first call on.
+   */
+  public SAMRecord findMate(SAMRecord record) {
+    if (!enabled) {
+      enabled = true;
+    }
+    final String mateKey = getMateKey(record);
+    SAMRecord mate = null;
+    final Entry entry = streamed.get(mateKey);
+    if (entry != null) {
+      mate = entry.record;
+    } else {
+      synchronized (this) {
+        for (Region region : regions) {
+          mate = region.records.get(mateKey);
+          if (mate != null) {
+            break;
+          }
+        }
+      }
+    }
+    if (mate == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return copy(mate);
+  }
+  
+  /**
+   * Returns true if a region containing the position was fetched, so a mate
+   * starting there that was not found does not exist.
+   */
+  public synchronized boolean isFetched(String reference, int position) {
+    for (Region region : regions) {
+      if (region.contains(reference, position)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Remembers the records of a fetched region, forgetting the oldest region
+   * if there are too many. The records are read without holding the lock.
+   */
+  public void addRegion(String reference, int start, int end, Iterator<SAMRecord> records) {
+    final Region region = new Region(reference, start, end);
+    while (records.hasNext()) {
+      final SAMRecord record = records.next();
+      if (isCached(record)) {
+        region.records.put(getKey(record), record);
+      }
+    }
+    synchronized (this) {
+      regions.addFirst(region);
+      if (regions.size() > MAX_REGIONS) {
+        regions.removeLast();
+      }
+    }
+  }
+  
+  @Override
+  public synchronized String toString() {
+    return "MateCache: " + hits + " hits, " + misses + " misses, " + streamed.size() + 
+        " streamed records, " + regions.size() + " regions";
+  }
+  
+  /** Only primary records of pairs can be returned as mates */
+  private static boolean isCached(SAMRecord record) {
+    return record.getReadPairedFlag() && !record.isSecondaryOrSupplementary() &&
+        record.getReadName() != null &&
+        record.getFirstOfPairFlag() != record.getSecondOfPairFlag();
+  }
+  
+  /**
+   * Returns a shallow copy of the record. Copies of lazily converted records
+   * convert their own fields, so the copy and the record can be used from
+   * different threads.
+   */
+  private static SAMRecord copy(SAMRecord record) {
+    try {
+      return (SAMRecord)record.clone();
+    } catch (CloneNotSupportedException ex) {
+      throw new IllegalStateException("SAMRecord can not be copied", ex);
+    }
+  }
+  
+  private static String getKey(SAMRecord record) {
+    return record.getReadName() + (record.getFirstOfPairFlag() ? "/1" : "/2");
+  }
+  
+  private static String getMateKey(SAMRecord record) {
+    return record.getReadName() + (record.getFirstOfPairFlag() ? "/2" : "/1");
+  }
+}
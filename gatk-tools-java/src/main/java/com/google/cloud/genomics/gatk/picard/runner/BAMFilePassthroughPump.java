@@ -0,0 +1,115 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.picard.runner;
+
+import com.google.cloud.genomics.gatk.common.Metrics;
+import com.google.cloud.genomics.gatk.common.Tracer;
+
+import htsjdk.samtools.SamStreams;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedInputStream.FileTermination;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Logger;
+
+/**
+ * Pumps a local BAM file into an OutputStream unchanged, without decoding
+ * its records, since the tool reading the pipe accepts BAM as well as SAM.
+ * The bytes are moved with FileChannel.transferTo, which the kernel does
+ * without copying them through the JVM when the stream is a file or a
+ * named pipe, so passing a file through costs about as much as cat.
+ */
+public class BAMFilePassthroughPump implements SAMFilePump {
+  private static final Logger LOG = Logger.getLogger(BAMFilePassthroughPump.class.getName());
+  
+  /** Most bytes moved by a single transferTo call */
+  private static final long TRANSFER_BYTES = 8L << 20;
+  
+  private static final Metrics.Timer PUMP_WRITE = 
+      Metrics.getInstance().timer("pump.write");
+  private static final Metrics.Counter PASSTHROUGH_BYTES = 
+      Metrics.getInstance().counter("pump.passthrough_bytes");
+  
+  private final File file;
+  
+  public BAMFilePassthroughPump(File file) {
+    this.file = file;
+  }
+  
+  /**
+   * Returns true if the file is a BAM file whose last block is intact, so
+   * the tool can read it as it is. Other files have to be decoded, and are
+   * written to the pipe by a SamReaderToSAMFilePump.
+   */
+  public static boolean canPassThrough(File file) throws IOException {
+    if (!file.isFile()) {
+      return false;
+    }
+    final InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      if (!SamStreams.isBAMFile(in)) {
+        return false;
+      }
+    } finally {
+      in.close();
+    }
+    return BlockCompressedInputStream.checkTermination(file) != FileTermination.DEFECTIVE;
+  }
+  
+  @Override
+  public void pump(OutputStream out) throws IOException {
+    final Tracer.Span pumpSpan = Tracer.begin("pump", "pump");
+    final FileInputStream in = new FileInputStream(file);
+    try {
+      final FileChannel source = in.getChannel();
+      final WritableByteChannel target;
+      if (out instanceof FileOutputStream) {
+        target = ((FileOutputStream)out).getChannel();
+      } else {
+        // Such as a process' stdin, the transfer goes through a buffer.
+        out.flush();
+        target = Channels.newChannel(out);
+      }
+      final long size = source.size();
+      long position = 0;
+      while (position < size) {
+        final long start = PUMP_WRITE.start();
+        final long transferred = source.transferTo(position, 
+            Math.min(TRANSFER_BYTES, size - position), target);
+        PUMP_WRITE.stop(start);
+        if (transferred <= 0) {
+          throw new IOException("Could not pass " + file + " through at byte " + position);
+        }
+        position += transferred;
+        PASSTHROUGH_BYTES.add(transferred);
+      }
+      out.flush();
+      LOG.info("Passed " + size + " bytes of " + file + " through unchanged");
+    } finally {
+      in.close();
+      pumpSpan.end();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.picard.runner;
+
+import com.google.common.base.Charsets;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+/**
+ * SAMFileWriter writing BAM into a stream that does the BGZF compression,
+ * e.g. a ParallelBlockCompressedOutputStream, whereas htsjdk's BAM writer
+ * always compresses on the writing thread. Records are written in the order
+ * they are added, without an index.
+ */
+public class BAMStreamWriter implements SAMFileWriter {
+  private static final byte[] BAM_MAGIC = "BAM\1".getBytes(Charsets.US_ASCII);
+  
+  private final SAMFileHeader header;
+  private final OutputStream out;
+  private final BAMRecordCodec codec;
+  private ProgressLoggerInterface progressLogger = null;
+  
+  /**
+   * Writes the header to the stream.
+   * @param out the stream compressing the BAM into BGZF, closed with the writer
+   */
+  public BAMStreamWriter(SAMFileHeader header, OutputStream out) {
+    this.header = header;
+    this.out = out;
+    final BinaryCodec binaryCodec = new BinaryCodec(out);
+    final StringWriter headerText = new StringWriter();
+    new SAMTextHeaderCodec().encode(headerText, header);
+    binaryCodec.writeBytes(BAM_MAGIC);
+    binaryCodec.writeString(headerText.toString(), true, false);
+    binaryCodec.writeInt(header.getSequenceDictionary().size());
+    for (SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+      binaryCodec.writeString(sequence.getSequenceName(), true, true);
+      binaryCodec.writeInt(sequence.getSequenceLength());
+    }
+    this.codec = new BAMRecordCodec(header);
+    codec.setOutputStream(out);
+  }
+  
+  @Override
+  public void addAlignment(SAMRecord record) {
+    codec.encode(record);
+    if (progressLogger != null) {
+      progressLogger.record(record);
+    }
+  }
+
+  @Override
+  public SAMFileHeader getFileHeader() {
+    return header;
+  }
+
+  @Override
+  public void setProgressLogger(ProgressLoggerInterface progressLogger) {
+    this.progressLogger = progressLogger;
+  }
+
+  @Override
+  public void close() {
+    try {
+      out.close();
+    } catch (IOException ex) {
+      throw new RuntimeIOException(ex);
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.picard.runner;
+
+import com.google.cloud.genomics.gatk.common.Metrics;
+import com.google.cloud.genomics.gatk.common.Tracer;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Writes records to a SAMFileWriter on the calling thread while a producer
+ * thread iterates them, so a stall in reading the records, e.g. waiting for a
+ * page, does not stall the tool reading the output, and the reverse.
+ * The records are handed over in batches through a bounded blocking queue,
+ * so a side waiting for the other blocks until it is signalled. Time each
+ * side spends waiting for the other, the time to write each batch and the
+ * number of batches queued in all the pumps are recorded in Metrics: a writer
+ * often waiting for records means fetching is the bottleneck, a producer
+ * often waiting for room means the tool is.
+ */
+class DecoupledRecordWriter {
+  private static final Logger LOG = Logger.getLogger(DecoupledRecordWriter.class.getName());
+  
+  /** Number of records handed over at once */
+  static final int BATCH_RECORDS = 1024;
+  
+  /** Number of batches the buffer holds */
+  static final int BUFFER_BATCHES = 64;
+  
+  /** Number of records written in each traced span */
+  static final int SPAN_RECORDS = 10000;
+  
+  private static final Metrics.Timer PUMP_WRITE = 
+      Metrics.getInstance().timer("pump.write");
+  private static final Metrics.Counter PUMP_RECORDS = 
+      Metrics.getInstance().counter("pump.records");
+  private static final Metrics.Timer PRODUCER_WAIT = 
+      Metrics.getInstance().timer("pump.producer_wait");
+  private static final Metrics.Timer WRITER_WAIT = 
+      Metrics.getInstance().timer("pump.writer_wait");
+  private static final Metrics.Gauge QUEUE_DEPTH = 
+      Metrics.getInstance().gauge("pump.queue_depth");
+  
+  private static final AtomicInteger PRODUCER_NUMBER = new AtomicInteger();
+  
+  /** Batches queued in all the pumps, reported as the queue depth */
+  private static final AtomicInteger QUEUED_BATCHES = new AtomicInteger();
+  
+  /** Batch marking the end of the records */
+  private static final List<SAMRecord> END = Collections.emptyList();
+  
+  private final BlockingQueue<List<SAMRecord>> buffer = 
+      new ArrayBlockingQueue<List<SAMRecord>>(BUFFER_BATCHES);
+  /** Set when the writer gives up, before it empties the buffer, so the producer stops */
+  private volatile boolean writerFailed = false;
+  /** Why the producer stopped before the end of the records */
+  private volatile RuntimeException producerFailure = null;
+  
+  /**
+   * Writes all the records, iterated on a new thread, and returns when they
+   * are written or rethrows why they could not be read.
+   */
+  static void write(Iterable<SAMRecord> records, SAMFileWriter writer) {
+    new DecoupledRecordWriter().run(records, writer);
+  }
+  
+  /**
+   * Closes a writer whose records could not all be written, so its threads
+   * and buffers are released. Errors closing it are ignored in favour of the
+   * one that stopped the writing.
+   */
+  static void closeAfterFailure(SAMFileWriter writer) {
+    try {
+      writer.close();
+    } catch (RuntimeException ex) {
+      LOG.fine("Error closing writer after a failure: " + ex.getMessage());
+    }
+  }
+  
+  private void run(final Iterable<SAMRecord> records, SAMFileWriter writer) {
+    final Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        produce(records.iterator());
+      }
+    }, "ga4gh-pump-producer-" + PRODUCER_NUMBER.incrementAndGet());
+    producer.setDaemon(true);
+    producer.start();
+    boolean written = false;
+    try {
+      consume(writer);
+      written = true;
+    } finally {
+      if (!written) {
+        writerFailed = true;
+        // Makes room for a producer blocked on a full buffer, which then
+        // sees the failure before its next batch.
+        discardQueued();
+      }
+    }
+    if (producerFailure != null) {
+      throw producerFailure;
+    }
+  }
+  
+  private void produce(Iterator<SAMRecord> records) {
+    try {
+      List<SAMRecord> batch = new ArrayList<SAMRecord>(BATCH_RECORDS);
+      while (records.hasNext()) {
+        batch.add(records.next());
+        if (batch.size() == BATCH_RECORDS) {
+          if (!put(batch)) {
+            return;
+          }
+          batch = new ArrayList<SAMRecord>(BATCH_RECORDS);
+        }
+      }
+      if (!batch.isEmpty()) {
+        put(batch);
+      }
+    } catch (RuntimeException ex) {
+      producerFailure = ex;
+    } catch (Error ex) {
+      producerFailure = new RuntimeException("Error reading records", ex);
+      throw ex;
+    } finally {
+      // Also ends the writer when reading failed.
+      if (!writerFailed) {
+        put(END);
+      } else {
+        // A batch may have been added after the writer emptied the buffer.
+        discardQueued();
+      }
+    }
+  }
+  
+  /** Waits for room for the batch, returns false if the writer failed */
+  private boolean put(List<SAMRecord> batch) {
+    if (writerFailed) {
+      return false;
+    }
+    if (!buffer.offer(batch)) {
+      final Tracer.Span span = Tracer.begin("wait for writer", "pump");
+      final long start = PRODUCER_WAIT.start();
+      Uninterruptibles.putUninterruptibly(buffer, batch);
+      PRODUCER_WAIT.stop(start);
+      span.end();
+    }
+    QUEUE_DEPTH.set(QUEUED_BATCHES.incrementAndGet());
+    return true;
+  }
+  
+  /** Drops the queued batches once the writer failed */
+  private void discardQueued() {
+    final List<List<SAMRecord>> discarded = new ArrayList<List<SAMRecord>>();
+    buffer.drainTo(discarded);
+    QUEUE_DEPTH.set(QUEUED_BATCHES.addAndGet(-discarded.size()));
+  }
+  
+  private void consume(SAMFileWriter writer) {
+    Tracer.Span recordsSpan = Tracer.begin("pump records", "pump");
+    int spanRecords = 0;
+    while (true) {
+      final List<SAMRecord> batch = take();
+      if (batch == END) {
+        break;
+      }
+      final long start = PUMP_WRITE.start();
+      for (SAMRecord record : batch) {
+        writer.addAlignment(record);
+      }
+      PUMP_WRITE.stop(start);
+      PUMP_RECORDS.add(batch.size());
+      spanRecords += batch.size();
+      if (spanRecords >= SPAN_RECORDS) {
+        recordsSpan.end();
+        recordsSpan = Tracer.begin("pump records", "pump");
+        spanRecords = 0;
+      }
+    }
+    recordsSpan.end();
+  }
+  
+  private List<SAMRecord> take() {
+    List<SAMRecord> batch = buffer.poll();
+    if (batch == null) {
+      final Tracer.Span span = Tracer.begin("wait for records", "pump");
+      final long start = WRITER_WAIT.start();
+      batch = Uninterruptibles.takeUninterruptibly(buffer);
+      WRITER_WAIT.stop(start);
+      span.end();
+    }
+    QUEUE_DEPTH.set(QUEUED_BATCHES.decrementAndGet());
+    return batch;
+  }
+}
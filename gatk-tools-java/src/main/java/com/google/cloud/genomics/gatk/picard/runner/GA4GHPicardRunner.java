@@ -18,7 +18,13 @@ package com.google.cloud.genomics.gatk.picard.runner;
 import com.google.cloud.genomics.gatk.common.GA4GHUrl;
 import com.google.cloud.genomics.gatk.common.GenomicsApiDataSourceFactory;
 import com.google.cloud.genomics.gatk.common.GenomicsApiDataSourceFactory.Settings;
+import com.google.cloud.genomics.gatk.common.Metrics;
 import com.google.cloud.genomics.gatk.common.ReadIteratorResource;
+import com.google.cloud.genomics.gatk.common.Tracer;
+import com.google.cloud.genomics.gatk.htsjdk.GA4GHReaderFactory;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
@@ -28,16 +34,36 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 /**
  * Main class for running Picard tools with INPUTS using ga4gh:// urls.
+ * A single piped input is pumped into the tool's stdin. With several piped
+ * inputs, each gets its own named pipe, passed as its own INPUT=, and all
+ * inputs are pumped concurrently, each by its own thread.
+ * With --in_process the tool runs in this JVM, loaded from picard.jar by a
+ * PicardClassLoader, and GA4GH inputs are passed to it as https urls that
+ * htsjdk opens with GA4GHReaderFactory, so records are handed over by
+ * reference. Tools that only read files get the GA4GH inputs through named
+ * pipes instead with --in_process_pipes.
  */
 @Parameters(separators = "=")
 public class GA4GHPicardRunner {
@@ -56,6 +82,92 @@ public class GA4GHPicardRunner {
       description = "Path to client_secrets.json")
   public String clientSecretsFilename = "client_secrets.json";
   
+  @Parameter(names = "--shards",
+      description = "Number of shards each reference range is split into for fetching reads")
+  public int shards = 1;
+  
+  @Parameter(names = "--fetch_threads",
+      description = "Maximum number of threads fetching pages of reads concurrently")
+  public int fetchThreads = 4;
+  
+  @Parameter(names = "--read_ahead_pages",
+      description = "Number of pages of reads fetched ahead of the Picard tool, 0 disables read-ahead")
+  public int readAheadPages = 4;
+  
+  @Parameter(names = "--cache_dir",
+      description = "Directory for caching readgroupset metadata and pages of reads across runs")
+  public String cacheDirectory = "";
+  
+  @Parameter(names = "--metadata_cache_max_age_hours",
+      description = "How long cached readgroupset metadata stays valid")
+  public int metadataCacheMaxAgeHours = 24;
+  
+  @Parameter(names = "--page_cache_max_mb",
+      description = "Maximum size of the cache of pages of reads, 0 disables it")
+  public int pageCacheMaxMegabytes = 4096;
+  
+  @Parameter(names = "--page_cache_max_age_hours",
+      description = "How long cached pages of reads stay valid")
+  public int pageCacheMaxAgeHours = 24;
+  
+  @Parameter(names = "--omit_read_fields",
+      description = "Comma separated read fields not needed by the tool: " +
+          "alignedSequence, alignedQuality and/or info")
+  public String omitReadFields = "";
+  
+  @Parameter(names = "--streaming_decode", arity = 1,
+      description = "Decode API responses straight into SAM records, " +
+          "false converts parsed Read objects instead")
+  public boolean streamingDecode = true;
+  
+  @Parameter(names = "--lazy_records", arity = 1,
+      description = "Convert bases, qualities, CIGAR and tags of records " +
+          "only when they are accessed")
+  public boolean lazyRecords = true;
+  
+  @Parameter(names = "--convert_threads",
+      description = "Number of threads decoding pages of reads in parallel, " +
+          "0 decodes each page on the thread that fetched it")
+  public int convertThreads = 0;
+  
+  @Parameter(names = "--unmapped_reads_heap_mb",
+      description = "Megabytes of unmapped mates kept in memory for injection, " +
+          "the rest is spilled to a temporary file")
+  public int unmappedReadsHeapMegabytes = 1024;
+  
+  @Parameter(names = "--pipe_bam", arity = 1,
+      description = "Pipe inputs to the Picard tool as BAM rather than SAM text")
+  public boolean pipeBam = false;
+  
+  @Parameter(names = "--pipe_compression_level",
+      description = "Compression level of BAM piped to the tool, 0 to 9, " +
+          "0 does not compress, which suits local pipes")
+  public int pipeCompressionLevel = 0;
+  
+  @Parameter(names = "--pipe_compression_threads",
+      description = "Number of threads compressing piped BAM, " +
+          "0 compresses on the pumping thread")
+  public int pipeCompressionThreads = Runtime.getRuntime().availableProcessors();
+  
+  @Parameter(names = "--pipe_bam_passthrough", arity = 1,
+      description = "With --pipe_bam, pipe local BAM files to the Picard tool " +
+          "unchanged rather than decoding and re-encoding their records")
+  public boolean pipeBamPassthrough = true;
+  
+  @Parameter(names = "--metrics_file",
+      description = "File the pipeline metrics are written to as JSON periodically, " +
+          "they are always available over JMX")
+  public String metricsFile = "";
+  
+  @Parameter(names = "--metrics_period_seconds",
+      description = "How often the metrics file is rewritten")
+  public int metricsPeriodSeconds = 60;
+  
+  @Parameter(names = "--trace_file",
+      description = "File a timeline of fetches, conversions, pump writes and the " +
+          "Picard process is written to, in Chrome trace event format")
+  public String traceFile = "";
+  
   @Parameter(names = "-path",
       description = "Path to picard tools binaries")
   public String picardPath = "picard/dist";
@@ -69,11 +181,19 @@ public class GA4GHPicardRunner {
       description = "JVM args for Picard tool run")
   public String picardJVMArgs = "-Xmx4g";
    
-  // TODO(iliat): support multiple inputs
   @Parameter(description = 
       "Picard tool parameters, INPUT(s) can be files or GA4GH urls.")
   public List<String> picardArgs = new ArrayList<String>();
   
+  @Parameter(names = "--in_process",
+      description = "Run the Picard tool in this JVM rather than in a new process")
+  public boolean inProcess = false;
+  
+  @Parameter(names = "--in_process_pipes",
+      description = "When running in process, pump GA4GH inputs to the tool through " +
+          "named pipes, for tools that do not open inputs with htsjdk's custom reader")
+  public boolean inProcessPipes = false;
+  
   @Parameter(names = "-pipeFiles",
       description = "Pipe local files too")
   public Boolean pipeFiles = true;
@@ -82,6 +202,14 @@ public class GA4GHPicardRunner {
   
   static String STDIN_FILE_NAME = "/dev/stdin";
   
+  /** Class of picard.jar whose instanceMain runs a tool by name */
+  private static final String PICARD_COMMAND_LINE = "picard.cmdline.PicardCommandLine";
+  
+  private static final String CUSTOM_READER_PROPERTY = "samjdk.custom_reader";
+  
+  /** How often pumping checks whether the Picard process has exited */
+  private static final long PUMP_POLL_SECONDS = 1;
+  
   /** Cmd line arguments array for Picard tool invocation */
   private ArrayList<String> command = new ArrayList<String>();
   
@@ -91,6 +219,15 @@ public class GA4GHPicardRunner {
   /** Picard process */
   private Process process;
   
+  /** Exit value of the Picard tool running in this JVM */
+  private Future<Integer> inProcessTool;
+  
+  /** Directory of the named pipes of the inputs, or null if not needed */
+  private File pipeDirectory;
+  
+  /** Makes the writers of the pumps, set up once the cmd line is parsed */
+  private PipeWriterFactory pipeWriterFactory;
+  
   /** Factory for creating Genomics Api based data sources */
   private GenomicsApiDataSourceFactory factory = new GenomicsApiDataSourceFactory();
   
@@ -127,6 +264,10 @@ public class GA4GHPicardRunner {
     private String resource;
     private String pipeName;
     private SAMFilePump pump;
+    /** Set by the pump once it has opened its named pipe */
+    private volatile boolean pipeOpened = false;
+    /** Set once the named pipe was opened to unblock the pump */
+    private boolean unblocking = false;
   }
   
   /** Runs the program */
@@ -143,13 +284,29 @@ public class GA4GHPicardRunner {
     LOG.info("Starting GA4GHPicardRunner");
     try {
       parseCmdLine(args);
+      if (!metricsFile.isEmpty()) {
+        Metrics.getInstance().startReporting(new File(metricsFile), metricsPeriodSeconds);
+      }
+      if (!traceFile.isEmpty()) {
+        Tracer.start(new File(traceFile));
+      }
+      if (inProcess) {
+        configureInProcessReader();
+      }
       buildPicardCommand();
-      startProcess();
+      if (inProcess) {
+        startInProcess();
+      } else {
+        startProcess();
+      }
       pumpInputData();
       waitForProcessEnd();
     } catch (Exception e) {
       System.out.println(e.getMessage());
       e.printStackTrace();
+    } finally {
+      deletePipes();
+      Tracer.stop();
     }
   }
   
@@ -157,6 +314,8 @@ public class GA4GHPicardRunner {
   void parseCmdLine(String[] args) {
     JCommander parser = new JCommander(this, args);
     parser.setProgramName("GA4GHPicardRunner");
+    pipeWriterFactory = new PipeWriterFactory(pipeBam, pipeCompressionLevel, 
+        pipeCompressionThreads);
     LOG.info("Cmd line parsed");
   }
   
@@ -172,10 +331,12 @@ public class GA4GHPicardRunner {
           picardJarPath.getAbsolutePath());
     }
     
-    command.add("java");
-    command.add(picardJVMArgs);
-    command.add("-jar");
-    command.add(picardJarPath.getAbsolutePath());
+    if (!inProcess) {
+      command.add("java");
+      command.add(picardJVMArgs);
+      command.add("-jar");
+      command.add(picardJarPath.getAbsolutePath());
+    }
     command.add(picardTool);
     
     for (String picardArg : picardArgs) {
@@ -186,6 +347,7 @@ public class GA4GHPicardRunner {
         command.add(picardArg);
       }
     }
+    createPipes();
     for (Input input : inputs) {
       command.add("INPUT=" + input.pipeName);
     }
@@ -202,13 +364,29 @@ public class GA4GHPicardRunner {
   /** Processes GA4GH based input, creates required API connections and data pump */
   private Input processGA4GHInput(String input) throws IOException, GeneralSecurityException, URISyntaxException {
     GA4GHUrl url = new GA4GHUrl(input);
-    factory.configure(url.getRootUrl(), 
-        new Settings(clientSecretsFilename, noLocalServer));
+    if (inProcess && !inProcessPipes) {
+      // Opened by the tool through GA4GHReaderFactory, nothing to pump.
+      return new Input(input, getHttpsUrl(input), null);
+    }
+    final Settings settings = new Settings(clientSecretsFilename, noLocalServer);
+    settings.shards = shards;
+    settings.fetchThreads = fetchThreads;
+    settings.readAheadPages = readAheadPages;
+    settings.cacheDirectory = cacheDirectory;
+    settings.metadataCacheMaxAgeHours = metadataCacheMaxAgeHours;
+    settings.pageCacheMaxMegabytes = pageCacheMaxMegabytes;
+    settings.pageCacheMaxAgeHours = pageCacheMaxAgeHours;
+    settings.omitReadFields = omitReadFields;
+    settings.streamingDecode = streamingDecode;
+    settings.lazyRecords = lazyRecords;
+    settings.convertThreads = convertThreads;
+    settings.unmappedReadsHeapMegabytes = unmappedReadsHeapMegabytes;
+    factory.configure(url.getRootUrl(), settings);
     ReadIteratorResource reads = factory
         .get(url.getRootUrl())
         .getReadsFromGenomicsApi(url);
     return new Input(input, STDIN_FILE_NAME, 
-        new ReadIteratorToSAMFilePump(reads));
+        new ReadIteratorToSAMFilePump(reads, pipeWriterFactory));
   }
   
   /** Processes regular, non GA4GH based file input */
@@ -218,14 +396,99 @@ public class GA4GHPicardRunner {
       throw new IOException("Input does not exist: " + input);
     }
     if (pipeFiles) {
+      // Passing through pipes BAM, so only when BAM was asked for.
+      if (pipeBam && pipeBamPassthrough && 
+          BAMFilePassthroughPump.canPassThrough(inputFile)) {
+        return new Input(input, STDIN_FILE_NAME, new BAMFilePassthroughPump(inputFile));
+      }
       SamReader samReader = SamReaderFactory.makeDefault().open(inputFile);
       return new Input(input, STDIN_FILE_NAME, 
-          new SamReaderToSAMFilePump(samReader)); 
+          new SamReaderToSAMFilePump(samReader, pipeWriterFactory)); 
     } else {
       return new Input(input, input, null);
     }
   }
   
+  /**
+   * Makes htsjdk open the GA4GH inputs of a tool running in this JVM with
+   * GA4GHReaderFactory, configured like the data sources of this runner.
+   * Must be called before htsjdk's Defaults are loaded, and has no effect on
+   * settings given as system properties already.
+   */
+  private void configureInProcessReader() throws URISyntaxException {
+    String rootUrl = this.rootUrl;
+    for (String picardArg : picardArgs) {
+      if (picardArg.startsWith(INPUT_PREFIX) && 
+          GA4GHUrl.isGA4GHUrl(picardArg.substring(INPUT_PREFIX.length()))) {
+        rootUrl = new GA4GHUrl(picardArg.substring(INPUT_PREFIX.length())).getRootUrl();
+        break;
+      }
+    }
+    setDefaultProperty(CUSTOM_READER_PROPERTY, 
+        rootUrl + "," + GA4GHReaderFactory.class.getName());
+    setDefaultProperty("ga4gh.client_secrets", clientSecretsFilename);
+    setDefaultProperty("ga4gh.no_local_server", String.valueOf(noLocalServer));
+    setDefaultProperty("ga4gh.shards", String.valueOf(shards));
+    setDefaultProperty("ga4gh.fetch_threads", String.valueOf(fetchThreads));
+    setDefaultProperty("ga4gh.read_ahead_pages", String.valueOf(readAheadPages));
+    setDefaultProperty("ga4gh.cache_dir", cacheDirectory);
+    setDefaultProperty("ga4gh.metadata_cache_max_age_hours", 
+        String.valueOf(metadataCacheMaxAgeHours));
+    setDefaultProperty("ga4gh.page_cache_max_mb", String.valueOf(pageCacheMaxMegabytes));
+    setDefaultProperty("ga4gh.page_cache_max_age_hours", 
+        String.valueOf(pageCacheMaxAgeHours));
+    setDefaultProperty("ga4gh.omit_read_fields", omitReadFields);
+    setDefaultProperty("ga4gh.streaming_decode", String.valueOf(streamingDecode));
+    setDefaultProperty("ga4gh.lazy_records", String.valueOf(lazyRecords));
+    setDefaultProperty("ga4gh.convert_threads", String.valueOf(convertThreads));
+    setDefaultProperty("ga4gh.unmapped_reads_heap_mb", 
+        String.valueOf(unmappedReadsHeapMegabytes));
+  }
+  
+  private static void setDefaultProperty(String name, String value) {
+    if (System.getProperty(name) == null) {
+      System.setProperty(name, value);
+    }
+  }
+  
+  /** Returns the url htsjdk's custom reader recognizes for a ga4gh:// url */
+  private static String getHttpsUrl(String ga4ghUrl) {
+    return "https://" + ga4ghUrl.substring("ga4gh://".length());
+  }
+  
+  /**
+   * Starts the Picard tool in this JVM, on its own thread so inputs can be
+   * pumped to it.
+   */
+  private void startInProcess() throws Exception {
+    final ClassLoader loader = new PicardClassLoader(new File(picardPath, "picard.jar"), 
+        getClass().getClassLoader());
+    final Class<?> commandLineClass = Class.forName(PICARD_COMMAND_LINE, true, loader);
+    final Object commandLine = commandLineClass.newInstance();
+    final Method instanceMain = commandLineClass.getMethod("instanceMain", String[].class);
+    final String[] toolArgs = command.toArray(new String[command.size()]);
+    final ExecutorService toolExecutor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder()
+            .setNameFormat("picard-" + picardTool)
+            .build());
+    LOG.info("Running " + picardTool + " in process");
+    inProcessTool = toolExecutor.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        Thread.currentThread().setContextClassLoader(loader);
+        try {
+          return (Integer)instanceMain.invoke(commandLine, (Object)toolArgs);
+        } catch (InvocationTargetException ex) {
+          if (ex.getCause() instanceof Exception) {
+            throw (Exception)ex.getCause();
+          }
+          throw ex;
+        }
+      }
+    });
+    toolExecutor.shutdown();
+  }
+  
   /**
    * Starts the Picard tool process based on constructed command.
    * @throws IOException
@@ -242,29 +505,191 @@ public class GA4GHPicardRunner {
   }
   
   /**
-   * Loops through inputs and for each, pumps the data into the proper pipe 
-   * stream connected to the executing process.
+   * Gives each piped input its own named pipe if there are several, since
+   * they can not all be pumped into stdin, or if the tool runs in this JVM,
+   * which does not read its own stdin.
+   */
+  private void createPipes() throws IOException {
+    final List<Input> pipedInputs = getPipedInputs();
+    if (pipedInputs.size() < (inProcess ? 1 : 2)) {
+      return;
+    }
+    pipeDirectory = Files.createTempDir();
+    for (int i = 0; i < pipedInputs.size(); i++) {
+      final File pipe = new File(pipeDirectory, "input-" + i + 
+          getPipeExtension(pipedInputs.get(i)));
+      final Process mkfifo = new ProcessBuilder("mkfifo", pipe.getAbsolutePath())
+          .redirectErrorStream(true)
+          .start();
+      int exitValue;
+      try {
+        exitValue = mkfifo.waitFor();
+      } catch (InterruptedException ex) {
+        throw new InterruptedIOException("Interrupted creating named pipe " + pipe);
+      }
+      if (exitValue != 0) {
+        throw new IOException("Can not create named pipe " + pipe);
+      }
+      pipedInputs.get(i).pipeName = pipe.getAbsolutePath();
+    }
+    LOG.info("Created " + pipedInputs.size() + " named pipes in " + pipeDirectory);
+  }
+  
+  /** Returns the file extension of the format the input is piped in */
+  private String getPipeExtension(Input input) {
+    return pipeBam ? ".bam" : ".sam";
+  }
+  
+  private void deletePipes() {
+    if (pipeDirectory == null) {
+      return;
+    }
+    for (Input input : getPipedInputs()) {
+      new File(input.pipeName).delete();
+    }
+    pipeDirectory.delete();
+    pipeDirectory = null;
+  }
+  
+  private List<Input> getPipedInputs() {
+    final List<Input> pipedInputs = new ArrayList<Input>();
+    for (Input input : inputs) {
+      if (input.pump != null) {
+        pipedInputs.add(input);
+      }
+    }
+    return pipedInputs;
+  }
+  
+  /**
+   * Pumps the data of each input into the pipe connected to the executing
+   * process: stdin for a single input, otherwise the input's named pipe,
+   * with all the inputs pumped concurrently.
    * @throws IOException
    */
   private void pumpInputData() throws IOException {
-    for (Input input : inputs) {
-      if (input.pump == null) {
-        continue;
+    final List<Input> pipedInputs = getPipedInputs();
+    if (pipeDirectory == null) {
+      for (Input input : pipedInputs) {
+        input.pump.pump(process.getOutputStream());
       }
-      OutputStream os;
-      if (input.pipeName.equals(STDIN_FILE_NAME)) {
-        os = process.getOutputStream();
-      } else {
-        throw new IOException("Only stdin piping is supported so far.");
+      return;
+    }
+    if (process != null) {
+      // The tool reads the named pipes, not stdin.
+      process.getOutputStream().close();
+    }
+    final ExecutorService pumpExecutor = Executors.newFixedThreadPool(pipedInputs.size(),
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("ga4gh-pump-%d")
+            .build());
+    final List<Future<Void>> pumps = new ArrayList<Future<Void>>();
+    for (final Input input : pipedInputs) {
+      pumps.add(pumpExecutor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          // Opening blocks until the tool opens the pipe for reading.
+          final OutputStream os = new FileOutputStream(input.pipeName);
+          input.pipeOpened = true;
+          try {
+            input.pump.pump(os);
+          } finally {
+            os.close();
+          }
+          LOG.info("Pumped " + input.resource);
+          return null;
+        }
+      }));
+    }
+    pumpExecutor.shutdown();
+    try {
+      for (int i = 0; i < pumps.size(); i++) {
+        waitForPump(pumps.get(i), pipedInputs.get(i));
+      }
+    } finally {
+      for (Future<Void> pump : pumps) {
+        pump.cancel(true);
+      }
+    }
+  }
+  
+  /**
+   * Waits for the pump of an input to finish. If the tool exits first while
+   * the pump is still waiting to open its pipe, the pipe is opened for
+   * reading so the pump fails rather than blocking forever.
+   */
+  private void waitForPump(Future<Void> pump, Input input) throws IOException {
+    while (true) {
+      try {
+        Uninterruptibles.getUninterruptibly(pump, PUMP_POLL_SECONDS, TimeUnit.SECONDS);
+        return;
+      } catch (ExecutionException ex) {
+        throw new IOException("Error pumping " + input.resource + ": " + 
+            ex.getCause().getMessage(), ex.getCause());
+      } catch (TimeoutException ex) {
+        if (hasProcessExited()) {
+          LOG.warning("Picard exited before reading all of " + input.resource);
+          unblockPump(input);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Opens the pipe of an input for reading, if its pump has not opened it
+   * yet, on a daemon thread: if the pump opened and closed the pipe in the
+   * meantime there is no writer left and the open blocks forever.
+   */
+  private void unblockPump(final Input input) {
+    if (input.pipeOpened || input.unblocking) {
+      return;
+    }
+    input.unblocking = true;
+    final Thread unblocker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          new FileInputStream(input.pipeName).close();
+        } catch (IOException ex) {
+          LOG.warning("Error opening " + input.pipeName + ": " + ex.getMessage());
+        }
       }
-      input.pump.pump(os);
+    }, "ga4gh-pipe-unblock");
+    unblocker.setDaemon(true);
+    unblocker.start();
+  }
+  
+  private boolean hasProcessExited() {
+    if (inProcessTool != null) {
+      return inProcessTool.isDone();
+    }
+    try {
+      process.exitValue();
+      return true;
+    } catch (IllegalThreadStateException ex) {
+      return false;
     }
   }
   
   private void waitForProcessEnd() throws InterruptedException, Exception {
-    if (process.waitFor() != 0 || process.exitValue() != 0) {
-      throw new Exception("Picard tool run failed, exit value=" + 
-          process.exitValue());
+    final Tracer.Span span = Tracer.begin("wait for Picard", "process", picardTool);
+    final int exitValue;
+    if (inProcessTool != null) {
+      try {
+        exitValue = inProcessTool.get();
+      } catch (ExecutionException ex) {
+        throw new Exception("Picard tool run failed: " + ex.getCause().getMessage(), 
+            ex.getCause());
+      } finally {
+        span.end();
+      }
+    } else {
+      exitValue = process.waitFor();
+      span.end();
+    }
+    if (exitValue != 0) {
+      throw new Exception("Picard tool run failed, exit value=" + exitValue);
     }
     
     LOG.info("Process finished");
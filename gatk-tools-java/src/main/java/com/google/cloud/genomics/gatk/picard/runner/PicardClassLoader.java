@@ -0,0 +1,62 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.picard.runner;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Loads Picard tools from picard.jar for running them in this JVM.
+ * Classes of picard.jar are loaded from it first, so its dependencies do not
+ * clash with ours, except the JDK, htsjdk and this project's classes, which
+ * are always loaded from the parent. Sharing htsjdk lets GA4GHSamReader be
+ * the tool's SamReader, so the tool gets our records by reference; the tool
+ * must therefore work with the htsjdk version this project is built with.
+ */
+class PicardClassLoader extends URLClassLoader {
+  private static final String[] SHARED_PACKAGES = {
+    "java.", "javax.", "sun.", "htsjdk.", "com.google.cloud.genomics.gatk."
+  };
+  
+  PicardClassLoader(File picardJar, ClassLoader parent) throws MalformedURLException {
+    super(new URL[] { picardJar.toURI().toURL() }, parent);
+  }
+  
+  @Override
+  protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+    for (String sharedPackage : SHARED_PACKAGES) {
+      if (name.startsWith(sharedPackage)) {
+        return super.loadClass(name, resolve);
+      }
+    }
+    synchronized (getClassLoadingLock(name)) {
+      Class<?> loaded = findLoadedClass(name);
+      if (loaded == null) {
+        try {
+          loaded = findClass(name);
+        } catch (ClassNotFoundException ex) {
+          return super.loadClass(name, resolve);
+        }
+      }
+      if (resolve) {
+        resolveClass(loaded);
+      }
+      return loaded;
+    }
+  }
+}
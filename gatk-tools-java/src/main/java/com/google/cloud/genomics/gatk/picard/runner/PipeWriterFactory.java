@@ -0,0 +1,78 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.picard.runner;
+
+import com.google.cloud.genomics.gatk.common.ParallelBlockCompressedOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Makes the writers pumps write to the tool's pipes with: SAM text, or BAM
+ * compressed at a given level, on several threads if compressing. Level 0
+ * suits local pipes, it saves formatting and parsing text without spending
+ * any time on compression.
+ */
+public class PipeWriterFactory {
+  /** Writes SAM text, as the pumps always did */
+  public static final PipeWriterFactory SAM = new PipeWriterFactory(false, 0, 0);
+  
+  private final boolean bam;
+  private final int compressionLevel;
+  private final int compressionThreads;
+  /** Compresses BAM blocks for all the pumps, created on first use */
+  private ExecutorService compressionExecutor = null;
+  
+  /**
+   * @param bam whether to write BAM rather than SAM text
+   * @param compressionLevel the BAM compression level, 0 to 9
+   * @param compressionThreads the number of threads compressing BAM blocks,
+   * 0 compresses on the pumping thread
+   */
+  public PipeWriterFactory(boolean bam, int compressionLevel, int compressionThreads) {
+    if (compressionLevel < 0 || compressionLevel > 9) {
+      throw new IllegalArgumentException("Invalid compression level " + compressionLevel);
+    }
+    this.bam = bam;
+    this.compressionLevel = compressionLevel;
+    this.compressionThreads = compressionThreads;
+  }
+  
+  public SAMFileWriter makeWriter(SAMFileHeader header, OutputStream out) {
+    if (!bam) {
+      return new SAMFileWriterFactory().makeSAMWriter(header, true, out);
+    }
+    return new BAMStreamWriter(header, new ParallelBlockCompressedOutputStream(out, 
+        compressionLevel, getCompressionExecutor(), 2 * compressionThreads));
+  }
+  
+  private synchronized ExecutorService getCompressionExecutor() {
+    if (compressionExecutor == null && compressionThreads > 0 && compressionLevel > 0) {
+      compressionExecutor = Executors.newFixedThreadPool(compressionThreads, 
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("ga4gh-bgzf-%d")
+              .build());
+    }
+    return compressionExecutor;
+  }
+}
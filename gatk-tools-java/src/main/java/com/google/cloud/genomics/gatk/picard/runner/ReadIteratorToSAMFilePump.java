@@ -16,32 +16,49 @@ limitations under the License.
 package com.google.cloud.genomics.gatk.picard.runner;
 
 import com.google.cloud.genomics.gatk.common.ReadIteratorResource;
+import com.google.cloud.genomics.gatk.common.Tracer;
 
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
-import htsjdk.samtools.SAMRecord;
 
 import java.io.OutputStream;
 
 /**
- * Writes contents of the ReadIteratorResource into the stream as a SAM file.
+ * Writes contents of the ReadIteratorResource into the stream as a SAM or BAM
+ * file, as set by the PipeWriterFactory.
+ * Records are read on a producer thread and written on the pumping thread,
+ * see DecoupledRecordWriter.
  */
 public class ReadIteratorToSAMFilePump implements SAMFilePump {
   private ReadIteratorResource readIterator;
+  private final PipeWriterFactory writerFactory;
    
   public ReadIteratorToSAMFilePump(ReadIteratorResource readIterator) {
+    this(readIterator, PipeWriterFactory.SAM);
+  }
+  
+  public ReadIteratorToSAMFilePump(ReadIteratorResource readIterator, 
+      PipeWriterFactory writerFactory) {
     this.readIterator = readIterator;
+    this.writerFactory = writerFactory;
   }
   
   @Override
   public void pump(OutputStream out) {
-    final SAMFileWriter outputSam = new SAMFileWriterFactory().makeSAMWriter(
-        readIterator.getSAMFileHeader(), true, out);
-
-    for (final SAMRecord samRecord : readIterator.getSAMRecordIterable()) {
-        outputSam.addAlignment(samRecord);
+    final Tracer.Span pumpSpan = Tracer.begin("pump", "pump");
+    try {
+      final SAMFileWriter outputSam = writerFactory.makeWriter(
+          readIterator.getSAMFileHeader(), out);
+      try {
+        DecoupledRecordWriter.write(readIterator.getSAMRecordIterable(), outputSam);
+      } catch (RuntimeException ex) {
+        DecoupledRecordWriter.closeAfterFailure(outputSam);
+        throw ex;
+      }
+      outputSam.close();
+    } finally {
+      // Stops fetching and releases the unmapped mates and their spill file.
+      readIterator.close();
+      pumpSpan.end();
     }
-
-    outputSam.close();
   }
 }
@@ -15,37 +15,50 @@ limitations under the License.
 */
 package com.google.cloud.genomics.gatk.picard.runner;
 
+import com.google.cloud.genomics.gatk.common.Tracer;
+
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
-import htsjdk.samtools.SAMRecord;
 
 import java.io.IOException;
 import java.io.OutputStream;
 
 /**
  * Reads SAM data using SamReader and pumps it into and OutputStream as a 
- * SAM File.
+ * SAM or BAM File, as set by the PipeWriterFactory.
+ * Records are read on a producer thread and written on the pumping thread,
+ * see DecoupledRecordWriter.
  * This class is useful to test the piping of SAM data to Picard tools 
  * without involving actual reading of data through Genomics APIs.
  */
 public class SamReaderToSAMFilePump implements SAMFilePump {
   private SamReader reader;
+  private final PipeWriterFactory writerFactory;
   
   public SamReaderToSAMFilePump(SamReader reader) {
+    this(reader, PipeWriterFactory.SAM);
+  }
+  
+  public SamReaderToSAMFilePump(SamReader reader, PipeWriterFactory writerFactory) {
     this.reader = reader;
+    this.writerFactory = writerFactory;
   }
   
   @Override
   public void pump(OutputStream out) throws IOException {
-    final SAMFileWriter outputSam = new SAMFileWriterFactory().makeSAMWriter(
-        reader.getFileHeader(), true, out);
-
-    for (final SAMRecord samRecord : reader) {
-        outputSam.addAlignment(samRecord);
+    final Tracer.Span pumpSpan = Tracer.begin("pump", "pump");
+    try {
+      final SAMFileWriter outputSam = writerFactory.makeWriter(reader.getFileHeader(), out);
+      try {
+        DecoupledRecordWriter.write(reader, outputSam);
+      } catch (RuntimeException ex) {
+        DecoupledRecordWriter.closeAfterFailure(outputSam);
+        throw ex;
+      }
+      outputSam.close();
+    } finally {
+      reader.close();
+      pumpSpan.end();
     }
-
-    outputSam.close();
-    reader.close();
   }
 }
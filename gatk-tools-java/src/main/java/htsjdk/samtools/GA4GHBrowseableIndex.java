@@ -0,0 +1,154 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package htsjdk.samtools;
+
+import com.google.cloud.genomics.gatk.htsjdk.GA4GHCoverageIndex;
+import com.google.cloud.genomics.gatk.htsjdk.GA4GHFileSpan;
+
+import java.util.Arrays;
+
+/**
+ * BrowseableBAMIndex backed by a GA4GHCoverageIndex. It lives in this package
+ * because BAMFileSpan and BAMIndexMetaData, which the interface returns, are
+ * package-private or have package-private constructors in this version of
+ * htsjdk.
+ * GA4GH reads have no file offsets, so the spans it returns hold the genomic
+ * ranges of a GA4GHFileSpan instead of chunks, and the offsets of the
+ * metadata are the first and last aligned positions of the reference.
+ */
+public class GA4GHBrowseableIndex implements BrowseableBAMIndex {
+  /**
+   * BAMFileSpan wrapping the ranges of a GA4GHFileSpan, which
+   * GA4GHIndexing iterates. It has no chunks, so it can not be merged with
+   * spans of BAM files.
+   */
+  public static class Span extends BAMFileSpan {
+    private final GA4GHFileSpan fileSpan;
+
+    public Span(GA4GHFileSpan fileSpan) {
+      this.fileSpan = fileSpan;
+    }
+
+    public GA4GHFileSpan getFileSpan() {
+      return fileSpan;
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return fileSpan.isEmpty();
+    }
+
+    @Override
+    public Span clone() {
+      return new Span(fileSpan);
+    }
+
+    @Override
+    public SAMFileSpan removeContentsBefore(SAMFileSpan span) {
+      return new Span((GA4GHFileSpan)fileSpan.removeContentsBefore(
+          span instanceof Span ? ((Span)span).fileSpan : span));
+    }
+
+    @Override
+    public SAMFileSpan getContentsFollowing() {
+      return new Span((GA4GHFileSpan)fileSpan.getContentsFollowing());
+    }
+
+    @Override
+    public void add(BAMFileSpan span) {
+      throw new UnsupportedOperationException("Spans of GA4GH reads can not be merged");
+    }
+
+    @Override
+    public String toString() {
+      return fileSpan.toString();
+    }
+  }
+
+  private final GA4GHCoverageIndex index;
+
+  public GA4GHBrowseableIndex(GA4GHCoverageIndex index) {
+    this.index = index;
+  }
+
+  @Override
+  public int getLevelSize(int levelNumber) {
+    return index.getLevelSize(levelNumber);
+  }
+
+  @Override
+  public int getLevelForBin(Bin bin) {
+    return index.getLevelForBin(bin);
+  }
+
+  @Override
+  public int getFirstLocusInBin(Bin bin) {
+    return index.getFirstLocusInBin(bin);
+  }
+
+  @Override
+  public int getLastLocusInBin(Bin bin) {
+    return index.getLastLocusInBin(bin);
+  }
+
+  @Override
+  public BinList getBinsOverlapping(int referenceIndex, int startPos, int endPos) {
+    return index.getBinsOverlapping(referenceIndex, startPos, endPos);
+  }
+
+  /** Returns the span of the reads of the bin, or null if it has none */
+  @Override
+  public BAMFileSpan getSpanOverlapping(Bin bin) {
+    return toSpan(index.getSpanInBin(bin.getReferenceSequence(), bin));
+  }
+
+  /** Returns the span of the reads overlapping the range, or null if there are none */
+  @Override
+  public BAMFileSpan getSpanOverlapping(int referenceIndex, int startPos, int endPos) {
+    return toSpan(index.getSpanOverlapping(referenceIndex, startPos, endPos));
+  }
+
+  /**
+   * Returns the smallest start of the reads overlapping the last window of the
+   * last reference with aligned reads, -1 if there are none.
+   */
+  @Override
+  public long getStartOfLastLinearBin() {
+    for (int i = index.getNumberOfReferences() - 1; i >= 0; i--) {
+      final int start = index.getStartOfLastWindow(i);
+      if (start != 0) {
+        return start;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public BAMIndexMetaData getMetaData(int referenceIndex) {
+    return new BAMIndexMetaData(Arrays.asList(
+        new Chunk(index.getFirstLocus(referenceIndex), index.getLastLocus(referenceIndex)),
+        new Chunk(index.getAlignedRecordCount(referenceIndex),
+            index.getUnalignedRecordCount(referenceIndex))));
+  }
+
+  @Override
+  public void close() {
+  }
+
+  private static Span toSpan(GA4GHFileSpan span) {
+    return span == null ? null : new Span(span);
+  }
+}
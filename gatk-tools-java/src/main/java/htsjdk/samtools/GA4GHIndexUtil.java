@@ -0,0 +1,34 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package htsjdk.samtools;
+
+/**
+ * Exposes the bin computation of GenomicIndexUtil, which this version of
+ * htsjdk keeps package-private, so GA4GHCoverageIndex bins reads exactly as
+ * BAM indexes do.
+ */
+public final class GA4GHIndexUtil {
+  private GA4GHIndexUtil() {
+  }
+
+  /**
+   * Returns the smallest bin containing the 0-based, half-open range
+   * [beg, end), as in the SAM specification.
+   */
+  public static int regionToBin(int beg, int end) {
+    return GenomicIndexUtil.reg2bin(beg, end);
+  }
+}
@@ -0,0 +1,174 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.google.api.services.genomics.model.CigarUnit;
+import com.google.api.services.genomics.model.LinearAlignment;
+import com.google.api.services.genomics.model.Position;
+import com.google.api.services.genomics.model.Read;
+import com.google.common.collect.Lists;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Microbenchmark of GenomicsConverter.makeSAMRecord and makeLazySAMRecord.
+ * Converts synthetic 100bp paired reads with typical tags and prints the time
+ * and garbage collections per million reads for both, the lazy records being
+ * fully materialized by getSAMString() on every other round, and for
+ * LegacyGenomicsConverter, the converter they replaced.
+ * GenomicsConverterTest checks that the conversions match the htsjdk codecs
+ * and the legacy converter.
+ *
+ * Usage: GenomicsConverterBenchmark [number of reads] [rounds]
+ */
+public class GenomicsConverterBenchmark {
+  private static final String[] CIGAR_OPERATIONS = { "ALIGNMENT_MATCH", "CLIP_SOFT",
+    "INSERT", "DELETE", "SKIP" };
+
+  public static void main(String[] args) {
+    final int readCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    final SAMFileHeader header = makeHeader();
+    final List<Read> reads = makeReads(readCount);
+    // Converted as ReadPageIterable does, with one reference cache per page.
+    final GenomicsConverter.ReferenceIndexCache references = 
+        new GenomicsConverter.ReferenceIndexCache(header);
+
+    for (int round = 0; round < rounds; round++) {
+      final long legacyStart = System.nanoTime();
+      final long legacyCollections = getCollectionCount();
+      long legacyChecksum = 0;
+      for (Read read : reads) {
+        legacyChecksum += LegacyGenomicsConverter.makeSAMRecord(read, header).getAlignmentEnd();
+      }
+      final long legacyTime = System.nanoTime() - legacyStart;
+      final long legacyGc = getCollectionCount() - legacyCollections;
+
+      final long eagerStart = System.nanoTime();
+      final long eagerCollections = getCollectionCount();
+      long checksum = 0;
+      for (Read read : reads) {
+        checksum += GenomicsConverter.makeSAMRecord(read, references).getAlignmentEnd();
+      }
+      final long eagerTime = System.nanoTime() - eagerStart;
+      final long eagerChecksum = checksum;
+      final long eagerGc = getCollectionCount() - eagerCollections;
+
+      final boolean materialize = round % 2 == 1;
+      final long start = System.nanoTime();
+      final long collections = getCollectionCount();
+      for (Read read : reads) {
+        final SAMRecord record = GenomicsConverter.makeLazySAMRecord(read, references);
+        checksum -= record.getAlignmentEnd();
+        if (materialize) {
+          checksum += record.getSAMString().length() > 0 ? 0 : 1;
+        }
+      }
+      final long time = System.nanoTime() - start;
+      final long gc = getCollectionCount() - collections;
+
+      System.out.println("Round " + round + ": legacy " + (legacyTime / readCount) +
+          " ns/read, " + (legacyGc * 1000000L / readCount) + " GCs/1M reads; eager " +
+          (eagerTime / readCount) + " ns/read, " + (eagerGc * 1000000L / readCount) +
+          " GCs/1M reads; lazy" +
+          (materialize ? " (materialized) " : " ") + (time / readCount) + " ns/read, " +
+          (gc * 1000000L / readCount) + " GCs/1M reads" +
+          (checksum != 0 || legacyChecksum != eagerChecksum ? " (CHECKSUM MISMATCH)" : ""));
+    }
+  }
+
+  private static long getCollectionCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  static SAMFileHeader makeHeader() {
+    final SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+    for (int i = 1; i <= 22; i++) {
+      dictionary.addSequence(new SAMSequenceRecord(String.valueOf(i), 250000000));
+    }
+    final SAMFileHeader header = new SAMFileHeader();
+    header.setSequenceDictionary(dictionary);
+    return header;
+  }
+
+  static List<Read> makeReads(int count) {
+    final Random random = new Random(42);
+    final List<Read> reads = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      final int start = i * 10;
+      final List<CigarUnit> cigar = Lists.newArrayList();
+      if (random.nextInt(5) == 0) {
+        final int clip = 1 + random.nextInt(20);
+        cigar.add(new CigarUnit().setOperation(CIGAR_OPERATIONS[1])
+            .setOperationLength(Long.valueOf(clip)));
+        cigar.add(new CigarUnit().setOperation(CIGAR_OPERATIONS[0])
+            .setOperationLength(Long.valueOf(100 - clip)));
+      } else {
+        cigar.add(new CigarUnit().setOperation(CIGAR_OPERATIONS[0])
+            .setOperationLength(100L));
+      }
+      final StringBuilder bases = new StringBuilder(100);
+      final List<Integer> qualities = Lists.newArrayListWithCapacity(100);
+      for (int j = 0; j < 100; j++) {
+        bases.append("ACGT".charAt(random.nextInt(4)));
+        qualities.add(2 + random.nextInt(39));
+      }
+      final Map<String, List<String>> info = new LinkedHashMap<String, List<String>>();
+      info.put("NM", Arrays.asList(String.valueOf(random.nextInt(5))));
+      info.put("MD", Arrays.asList("45A54"));
+      info.put("AS", Arrays.asList(String.valueOf(80 + random.nextInt(20))));
+      info.put("XS", Arrays.asList(String.valueOf(random.nextInt(80))));
+      info.put("MQ", Arrays.asList("60"));
+      reads.add(new Read()
+          .setFragmentName("read" + (i / 2))
+          .setReadGroupId("readgroup")
+          .setNumberReads(2)
+          .setReadNumber(i % 2)
+          .setProperPlacement(true)
+          .setFragmentLength(300)
+          .setAlignment(new LinearAlignment()
+              .setPosition(new Position()
+                  .setReferenceName(String.valueOf(1 + i * 22 / count))
+                  .setPosition(Long.valueOf(start))
+                  .setReverseStrand(i % 2 == 1))
+              .setMappingQuality(60)
+              .setCigar(cigar))
+          .setNextMatePosition(new Position()
+              .setReferenceName(String.valueOf(1 + i * 22 / count))
+              .setPosition(Long.valueOf(start + 200))
+              .setReverseStrand(i % 2 == 0))
+          .setAlignedSequence(bases.toString())
+          .setAlignedQuality(qualities)
+          .setInfo(info));
+    }
+    return reads;
+  }
+}
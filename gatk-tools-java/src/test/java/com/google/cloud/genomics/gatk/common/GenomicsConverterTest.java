@@ -0,0 +1,210 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.genomics.model.CigarUnit;
+import com.google.api.services.genomics.model.Read;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.TagValueAndUnsignedArrayFlag;
+import htsjdk.samtools.TextTagCodec;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that the table driven conversions of GenomicsConverter produce the
+ * same values as the htsjdk codecs they replaced.
+ */
+public class GenomicsConverterTest {
+  private static final TextTagCodec TEXT_TAG_CODEC = new TextTagCodec();
+
+  /** Returns the attribute value, or the exception class if setting it fails. */
+  private static Object setAttribute(String tag, String value) {
+    final SAMRecord record = new SAMRecord(new SAMFileHeader());
+    try {
+      GenomicsConverter.setAttribute(record, tag, value);
+      return record.getAttribute(tag);
+    } catch (RuntimeException ex) {
+      return ex.getClass();
+    }
+  }
+
+  /** Returns the attribute value as set through TextTagCodec, or the exception class. */
+  private static Object setAttributeWithCodec(String tag, String value) {
+    final SAMRecord record = new SAMRecord(new SAMFileHeader());
+    try {
+      final Object attrValue = TEXT_TAG_CODEC.decode(
+          tag + ":" + GenomicsConverter.getTagType(tag) + ":" + value).getValue();
+      if (attrValue instanceof TagValueAndUnsignedArrayFlag) {
+        record.setUnsignedArrayAttribute(tag, ((TagValueAndUnsignedArrayFlag)attrValue).value);
+      } else {
+        record.setAttribute(tag, attrValue);
+      }
+      return record.getAttribute(tag);
+    } catch (RuntimeException ex) {
+      return ex.getClass();
+    }
+  }
+
+  private static void assertSameAttribute(String tag, String value) {
+    final Object expected = setAttributeWithCodec(tag, value);
+    final Object actual = setAttribute(tag, value);
+    if (expected instanceof short[]) {
+      assertTrue(tag + ":" + value, actual instanceof short[] &&
+          Arrays.equals((short[])expected, (short[])actual));
+    } else {
+      assertEquals(tag + ":" + value, expected, actual);
+    }
+  }
+
+  @Test
+  public void testIntegerTagsMatchTextTagCodec() {
+    for (String value : Arrays.asList("0", "5", "+5", "-5", "2147483647", "-2147483648",
+        "2147483648", "4294967295", "4294967296", "-2147483649", "99999999999999999999",
+        "", "1.5", "abc")) {
+      assertSameAttribute("NM", value);
+    }
+  }
+
+  @Test
+  public void testOtherTagsMatchTextTagCodec() {
+    assertSameAttribute("MD", "10A5^AC6");
+    assertSameAttribute("XY", "unknown tags are strings");
+    assertSameAttribute("FZ", "S,1,2,3");
+  }
+
+  @Test
+  public void testConcurrentTagDecoding() throws Exception {
+    final int threads = 4;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<Integer>> mismatches = new ArrayList<Future<Integer>>();
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        mismatches.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            // Both tags are decoded by TextTagCodec, each thread with its own values.
+            final String array = "S," + thread + ",1,2";
+            final String integer = String.valueOf(4294967295L - thread);
+            final Object expectedArray = setAttributeWithCodec("FZ", array);
+            final Object expectedInteger = setAttributeWithCodec("NM", integer);
+            int count = 0;
+            for (int i = 0; i < 100000; i++) {
+              final Object actualArray = setAttribute("FZ", array);
+              if (!(actualArray instanceof short[] &&
+                  Arrays.equals((short[])expectedArray, (short[])actualArray))) {
+                count++;
+              }
+              if (!expectedInteger.equals(setAttribute("NM", integer))) {
+                count++;
+              }
+            }
+            return count;
+          }
+        }));
+      }
+      for (Future<Integer> count : mismatches) {
+        assertEquals(Integer.valueOf(0), count.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCigarMatchesCigarString() {
+    final List<String> operations = Arrays.asList("ALIGNMENT_MATCH", "CLIP_HARD", "CLIP_SOFT",
+        "DELETE", "INSERT", "PAD", "SEQUENCE_MATCH", "SEQUENCE_MISMATCH", "SKIP");
+    final List<CigarUnit> cigar = new ArrayList<CigarUnit>();
+    for (int i = 0; i < operations.size(); i++) {
+      cigar.add(new CigarUnit().setOperation(operations.get(i)).setOperationLength(i + 1L));
+    }
+    final SAMRecord expected = new SAMRecord(new SAMFileHeader());
+    expected.setCigarString("1M2H3S4D5I6P7=8X9N");
+    assertEquals(expected.getCigar(), GenomicsConverter.makeCigar(cigar));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownCigarOperation() {
+    GenomicsConverter.getCigarOperator("ALIGNMENT");
+  }
+
+  @Test
+  public void testMakeSAMRecord() {
+    final SAMFileHeader header = ReadPageDecoderTest.makeHeader();
+    final Read read = ReadPageDecoderTest.align(
+        ReadPageDecoderTest.makeRead("read", 2, 0), "chr1", 99, false)
+        .setProperPlacement(true)
+        .setNextMatePosition(ReadPageDecoderTest.makePosition("chr1", 299, true))
+        .setInfo(Collections.singletonMap("NM", Arrays.asList("4")));
+    assertEquals("read\t99\tchr1\t100\t60\t3M1I1S\t=\t300\t250\tACGTN\t?@AB#\tRG:Z:rg1\tNM:i:4\n",
+        GenomicsConverter.makeSAMRecord(read, header).getSAMString());
+  }
+
+  @Test
+  public void testRecordsMatchLegacyConverter() {
+    final SAMFileHeader header = GenomicsConverterBenchmark.makeHeader();
+    final GenomicsConverter.ReferenceIndexCache references = 
+        new GenomicsConverter.ReferenceIndexCache(header);
+    for (Read read : GenomicsConverterBenchmark.makeReads(1000)) {
+      final SAMRecord expected = LegacyGenomicsConverter.makeSAMRecord(read, header);
+      final SAMRecord record = GenomicsConverter.makeSAMRecord(read, references);
+      assertEquals(expected.getSAMString(), record.getSAMString());
+      assertEquals(expected.getReferenceIndex(), record.getReferenceIndex());
+      assertEquals(expected.getMateReferenceIndex(), record.getMateReferenceIndex());
+    }
+  }
+
+  @Test
+  public void testReferencesMissingFromHeader() {
+    final GenomicsConverter.ReferenceIndexCache references = 
+        new GenomicsConverter.ReferenceIndexCache(ReadPageDecoderTest.makeHeader());
+    final Read read = ReadPageDecoderTest.align(
+        ReadPageDecoderTest.makeRead("read", 2, 0), "chrX", 99, false)
+        .setNextMatePosition(ReadPageDecoderTest.makePosition("chr2", 299, true));
+    SAMRecord record = GenomicsConverter.makeSAMRecord(read, references);
+    assertEquals("chrX", record.getReferenceName());
+    assertEquals("chr2", record.getMateReferenceName());
+    assertEquals(Integer.valueOf(1), record.getMateReferenceIndex());
+    read.getAlignment().getPosition().setReferenceName("chr1");
+    record = GenomicsConverter.makeLazySAMRecord(read, references);
+    assertEquals(Integer.valueOf(0), record.getReferenceIndex());
+    assertEquals(Integer.valueOf(1), record.getMateReferenceIndex());
+  }
+
+  @Test
+  public void testLazyRecordsMatchEagerRecords() {
+    final SAMFileHeader header = GenomicsConverterBenchmark.makeHeader();
+    for (Read read : GenomicsConverterBenchmark.makeReads(1000)) {
+      assertEquals(GenomicsConverter.makeSAMRecord(read, header).getSAMString(),
+          GenomicsConverter.makeLazySAMRecord(read, header).getSAMString());
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.google.api.services.genomics.model.CigarUnit;
+import com.google.api.services.genomics.model.Read;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.TagValueAndUnsignedArrayFlag;
+import htsjdk.samtools.TextTagCodec;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GenomicsConverter.makeSAMRecord as it was before it was made allocation
+ * light, kept as the baseline GenomicsConverterBenchmark compares against and
+ * GenomicsConverterTest checks the records of the current converter with.
+ * It builds CIGAR and tag strings and parses them back, and resolves the
+ * references of every read by name. It is not thread-safe.
+ */
+class LegacyGenomicsConverter {
+  /** 
+   * Standard tags defined in SAM spec. and their types.
+   * See http://samtools.github.io/hts-specs/SAMv1.pdf, section 1.5.
+   */
+  private static Map<String, String> SAM_TAGS;
+  
+  /**
+   * Map form CIGAR operations as represented in the API to standard SAM ones.
+   */
+  private static Map<String, String> CIGAR_OPERATIONS;
+  
+  static {
+    SAM_TAGS = new HashMap<String,String>();
+    SAM_TAGS.put("AM", "i");
+    SAM_TAGS.put("AS", "i");
+    SAM_TAGS.put("BC", "Z");
+    SAM_TAGS.put("BQ", "Z");
+    SAM_TAGS.put("CC", "Z");
+    SAM_TAGS.put("CM", "i");
+    SAM_TAGS.put("CO", "Z");
+    SAM_TAGS.put("CP", "i");
+    SAM_TAGS.put("CQ", "Z");
+    SAM_TAGS.put("CS", "Z");
+    SAM_TAGS.put("CT", "Z");
+    SAM_TAGS.put("E2", "Z");
+    SAM_TAGS.put("FI", "i");
+    SAM_TAGS.put("FS", "Z");
+    SAM_TAGS.put("FZ", "B");
+    SAM_TAGS.put("H0", "i");
+    SAM_TAGS.put("H1", "i");
+    SAM_TAGS.put("H2", "i");
+    SAM_TAGS.put("HI", "i");
+    SAM_TAGS.put("IH", "i");
+    SAM_TAGS.put("LB", "Z");
+    SAM_TAGS.put("MC", "Z");
+    SAM_TAGS.put("MD", "Z");
+    SAM_TAGS.put("MQ", "i");
+    SAM_TAGS.put("NH", "i");
+    SAM_TAGS.put("NM", "i");
+    SAM_TAGS.put("OQ", "Z");
+    SAM_TAGS.put("OP", "i");
+    SAM_TAGS.put("OC", "Z");
+    SAM_TAGS.put("PG", "Z");
+    SAM_TAGS.put("PQ", "i");
+    SAM_TAGS.put("PT", "Z");
+    SAM_TAGS.put("PU", "Z");
+    SAM_TAGS.put("QT", "Z");
+    SAM_TAGS.put("Q2", "Z");
+    SAM_TAGS.put("R2", "Z");
+    SAM_TAGS.put("RG", "Z");
+    SAM_TAGS.put("RT", "Z");
+    SAM_TAGS.put("SA", "Z");
+    SAM_TAGS.put("SM", "i");
+    SAM_TAGS.put("TC", "i");
+    SAM_TAGS.put("U2", "Z");
+    SAM_TAGS.put("UQ", "i");
+    
+    SAM_TAGS.put("MF", "i");
+    SAM_TAGS.put("Aq", "i");
+    
+    CIGAR_OPERATIONS = new HashMap<String, String>();
+    CIGAR_OPERATIONS.put("ALIGNMENT_MATCH","M");
+    CIGAR_OPERATIONS.put("CLIP_HARD", "H");
+    CIGAR_OPERATIONS.put("CLIP_SOFT","S");
+    CIGAR_OPERATIONS.put("DELETE", "D");
+    CIGAR_OPERATIONS.put("INSERT", "I");
+    CIGAR_OPERATIONS.put("PAD", "P");
+    CIGAR_OPERATIONS.put("SEQUENCE_MATCH", "=");
+    CIGAR_OPERATIONS.put("SEQUENCE_MISMATCH", "X");
+    CIGAR_OPERATIONS.put("SKIP", "N");
+  }
+  
+  /** Returns SAM Tag type. If not a known tag - defaults to "Z". */
+  static String getTagType(String tagName) {
+    final String result = SAM_TAGS.get(tagName);
+    return result != null ? result : "Z";
+  }
+  
+  /** Codec used for converting know SAM tags and their values, from strings to Objects */
+  private static final TextTagCodec textTagCodec = new TextTagCodec();
+  
+  static SAMRecord makeSAMRecord(Read read, SAMFileHeader header) {
+    SAMRecord record = new SAMRecord(header);
+    if (read.getFragmentName() != null) {
+      record.setReadName(read.getFragmentName());
+    }
+    if (read.getReadGroupId() != null) {
+      record.setAttribute("RG" ,read.getReadGroupId());
+    }
+    // Set flags, as advised in http://google-genomics.readthedocs.org/en/latest/migrating_tips.html
+    int flags = 0;
+
+    final boolean paired = (read.getNumberReads() != null && 
+        read.getNumberReads() == 2);
+    flags += paired ? 1 : 0 ;// read_paired
+    flags += (read.getProperPlacement() != null &&
+        read.getProperPlacement()) ? 2 : 0; // read_proper_pair
+    final boolean unmapped = (read.getAlignment() == null || 
+        read.getAlignment().getPosition() == null || 
+        read.getAlignment().getPosition().getPosition() == null);
+    flags += unmapped ? 4 : 0;  // read_unmapped
+    flags += ((read.getNextMatePosition() == null || 
+        read.getNextMatePosition().getPosition() == null)) ? 8 : 0; // mate_unmapped
+    flags += (read.getAlignment() != null && 
+        read.getAlignment().getPosition() != null && 
+        read.getAlignment().getPosition().getReverseStrand()) ? 16 : 0 ; // read_reverse_strand
+    flags += (read.getNextMatePosition() != null &&
+        read.getNextMatePosition().getReverseStrand()) ? 32 : 0;  // mate_reverse_strand
+    flags += (read.getReadNumber() != null && 
+        read.getReadNumber() == 0) ? 64 : 0; // first_in_pair
+    flags += (read.getReadNumber() != null && 
+        read.getReadNumber() == 1) ? 128 : 0;  // second_in_pair
+    flags += (read.getSecondaryAlignment() != null 
+        && read.getSecondaryAlignment()) ? 256 : 0; // secondary_alignment
+    flags += (read.getFailedVendorQualityChecks() != null &&
+        read.getFailedVendorQualityChecks()) ? 512 : 0;// failed_quality_check
+    flags += (read.getDuplicateFragment() != null && 
+        read.getDuplicateFragment()) ? 1024 : 0; // duplicate_read
+    flags += (read.getSupplementaryAlignment() != null &&
+        read.getSupplementaryAlignment()) ? 2048 : 0; //supplementary_alignment
+    record.setFlags(flags);
+    
+    String referenceName = null;
+    Long alignmentStart = null;
+    if (read.getAlignment() != null) {
+      if (read.getAlignment().getPosition() != null ) {
+        referenceName = read.getAlignment().getPosition().getReferenceName();
+        if (referenceName != null) {
+          record.setReferenceName(referenceName);
+        }
+        alignmentStart = read.getAlignment().getPosition().getPosition();
+        if (alignmentStart != null) {
+          // API positions are 0-based and SAMRecord is 1-based.
+          record.setAlignmentStart(alignmentStart.intValue() + 1);
+        }
+      }
+      Integer mappingQuality = read.getAlignment().getMappingQuality();
+      if (mappingQuality != null) {
+        record.setMappingQuality(mappingQuality);
+      }
+      
+      List<CigarUnit> cigar = read.getAlignment().getCigar();
+      if (cigar != null && cigar.size() > 0) {
+        StringBuffer cigarString = new StringBuffer(cigar.size());
+
+        for (CigarUnit unit : cigar) {
+          cigarString.append(String.valueOf(unit.getOperationLength()));
+          cigarString.append(CIGAR_OPERATIONS.get(unit.getOperation()));
+        }
+        record.setCigarString(cigarString.toString());
+      }
+    }
+
+    if (read.getNextMatePosition() != null) {
+      String mateReferenceName = read.getNextMatePosition().getReferenceName();
+      if (mateReferenceName != null) {
+        record.setMateReferenceName(mateReferenceName);
+      }
+      Long matePosition = read.getNextMatePosition().getPosition();
+      if (matePosition != null) {
+        // API positions are 0-based and SAMRecord is 1-based.
+        record.setMateAlignmentStart(matePosition.intValue() + 1);
+      }
+    } 
+    
+    if (read.getFragmentLength() != null) {
+      record.setInferredInsertSize(read.getFragmentLength());
+    }
+    if (read.getAlignedSequence() != null) {
+      record.setReadString(read.getAlignedSequence());
+    }
+    
+    List<Integer> baseQuality = read.getAlignedQuality();
+    if (baseQuality != null && baseQuality.size() > 0) {
+      byte[] qualityArray = new byte[baseQuality.size()];
+      int idx = 0;
+      for (Integer i : baseQuality) {
+        qualityArray[idx++] = i.byteValue();
+      }
+      record.setBaseQualities(qualityArray);
+    }
+
+    Map<String, List<String>> tags = read.getInfo();
+    if (tags != null) {
+      for (String tag : tags.keySet()) {
+        List<String> values = tags.get(tag);
+        if (values != null) {
+          for (String value : values) {
+              Object attrValue = textTagCodec.decode(
+                  tag + ":" + getTagType(tag) + ":" + value)
+                  .getValue();
+                  if (attrValue instanceof TagValueAndUnsignedArrayFlag) {
+                    record.setUnsignedArrayAttribute(tag, 
+                        ((TagValueAndUnsignedArrayFlag)attrValue).value);
+                  } else {
+                    record.setAttribute(tag, attrValue);
+                  }
+          }
+        }
+      }
+    }
+
+    return record;
+  }
+}
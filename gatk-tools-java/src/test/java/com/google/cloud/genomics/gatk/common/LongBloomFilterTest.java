@@ -0,0 +1,76 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LongBloomFilterTest {
+
+  private static long key(long i) {
+    return UnmappedReads.getReadKey("chr1", "read" + i);
+  }
+
+  @Test
+  public void testEmptyFilter() {
+    final LongBloomFilter filter = new LongBloomFilter();
+    assertFalse(filter.mightContain(key(1)));
+    assertEquals(0, filter.getSizeBytes());
+    assertEquals(0.0, filter.getExpectedFalsePositiveRate(), 0.0);
+  }
+
+  @Test
+  public void testNoFalseNegativesAsFilterGrows() {
+    final LongBloomFilter filter = new LongBloomFilter();
+    final int count = 200000;
+    long previousSize = 0;
+    int growths = 0;
+    for (int i = 0; i < count; i++) {
+      filter.add(key(i));
+      if (filter.getSizeBytes() != previousSize) {
+        previousSize = filter.getSizeBytes();
+        growths++;
+      }
+    }
+    assertTrue(growths > 3);
+    assertEquals(count, filter.getKeyCount());
+    for (int i = 0; i < count; i++) {
+      assertTrue(filter.mightContain(key(i)));
+    }
+  }
+
+  @Test
+  public void testFalsePositiveRate() {
+    final LongBloomFilter filter = new LongBloomFilter();
+    final int count = 100000;
+    for (int i = 0; i < count; i++) {
+      filter.add(key(i));
+    }
+    int falsePositives = 0;
+    for (int i = count; i < 2 * count; i++) {
+      if (filter.mightContain(key(i))) {
+        falsePositives++;
+      }
+    }
+    final double expected = filter.getExpectedFalsePositiveRate();
+    final double actual = (double)falsePositives / count;
+    assertTrue("expected " + expected, expected > 0 && expected < 0.01);
+    assertTrue("actual " + actual + " expected " + expected, actual < 2 * expected + 0.001);
+  }
+}
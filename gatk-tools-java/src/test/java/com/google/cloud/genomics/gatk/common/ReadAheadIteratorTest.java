@@ -0,0 +1,195 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ReadAheadIteratorTest {
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /** Source returning the given elements, then waiting for the latch before it ends */
+  static <T> Iterator<T> blockingSource(List<T> elements, CountDownLatch latch) {
+    return blockingSource(elements, latch, new CountDownLatch(1));
+  }
+
+  /**
+   * Source returning the given elements, then counting down reachedEnd and
+   * waiting for the latch before it ends.
+   */
+  static <T> Iterator<T> blockingSource(final List<T> elements, final CountDownLatch latch,
+      final CountDownLatch reachedEnd) {
+    return new Iterator<T>() {
+      private int index = 0;
+
+      @Override
+      public boolean hasNext() {
+        if (index == elements.size()) {
+          reachedEnd.countDown();
+          try {
+            latch.await();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return index < elements.size();
+      }
+
+      @Override
+      public T next() {
+        if (index == elements.size()) {
+          throw new NoSuchElementException();
+        }
+        return elements.get(index++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /** Waits until the thread stays blocked, e.g. on an empty buffer */
+  static void awaitBlocked(Thread thread) throws InterruptedException {
+    int blockedChecks = 0;
+    while (thread.isAlive() && blockedChecks < 10) {
+      blockedChecks = thread.getState() == Thread.State.WAITING ? blockedChecks + 1 : 0;
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void testReadsAheadInOrder() {
+    final List<Integer> source = new ArrayList<Integer>();
+    for (int i = 0; i < 100; i++) {
+      source.add(i);
+    }
+    final ReadAheadIterator<Integer> readAhead = 
+        new ReadAheadIterator<Integer>(source.iterator(), 3);
+    readAhead.start(executor);
+    final List<Integer> read = new ArrayList<Integer>();
+    while (readAhead.hasNext()) {
+      read.add(readAhead.next());
+    }
+    assertEquals(source, read);
+  }
+
+  @Test
+  public void testSourceErrorIsRethrownAfterElements() {
+    final Iterator<Integer> source = new Iterator<Integer>() {
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return true;
+      }
+
+      @Override
+      public Integer next() {
+        if (next == 2) {
+          throw new IllegalStateException("Source failed");
+        }
+        return next++;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+    final ReadAheadIterator<Integer> readAhead = new ReadAheadIterator<Integer>(source, 1);
+    readAhead.start(executor);
+    assertEquals(Integer.valueOf(0), readAhead.next());
+    assertEquals(Integer.valueOf(1), readAhead.next());
+    try {
+      readAhead.hasNext();
+      fail("Expected the source error");
+    } catch (IllegalStateException ex) {
+      assertEquals("Source failed", ex.getMessage());
+    }
+  }
+
+  @Test
+  public void testCloseWakesUpBlockedConsumer() throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final ReadAheadIterator<Integer> readAhead = new ReadAheadIterator<Integer>(
+        blockingSource(Arrays.asList(1), latch), 1);
+    readAhead.start(executor);
+    assertEquals(Integer.valueOf(1), readAhead.next());
+    final AtomicReference<Boolean> hasNext = new AtomicReference<Boolean>();
+    final Thread consumer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        hasNext.set(readAhead.hasNext());
+      }
+    });
+    consumer.start();
+    awaitBlocked(consumer);
+    readAhead.close();
+    consumer.join(5000);
+    latch.countDown();
+    assertFalse(consumer.isAlive());
+    assertEquals(Boolean.FALSE, hasNext.get());
+  }
+
+  @Test
+  public void testCloseWithFullBuffer() {
+    final List<Integer> source = new ArrayList<Integer>();
+    for (int i = 0; i < 100; i++) {
+      source.add(i);
+    }
+    final ReadAheadIterator<Integer> readAhead = 
+        new ReadAheadIterator<Integer>(source.iterator(), 2);
+    readAhead.start(executor);
+    assertEquals(Integer.valueOf(0), readAhead.next());
+    readAhead.close();
+    assertFalse(readAhead.hasNext());
+  }
+
+  @Test
+  public void testCloseBeforeStart() {
+    final ReadAheadIterator<Integer> readAhead = 
+        new ReadAheadIterator<Integer>(Arrays.asList(1, 2).iterator(), 2);
+    readAhead.close();
+    assertFalse(readAhead.hasNext());
+  }
+}
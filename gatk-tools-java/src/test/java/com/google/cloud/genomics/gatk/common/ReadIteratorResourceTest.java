@@ -0,0 +1,177 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that closing a ReadIteratorResource from another thread ends the
+ * iteration of a consumer waiting for reads, and that the unmapped mates are
+ * only released once the consumer is done with them.
+ */
+public class ReadIteratorResourceTest {
+  private final SAMFileHeader header = ReadPageDecoderTest.makeHeader();
+  private ExecutorService executor;
+  /** Lets the sources end, so their producers do not outlive the test */
+  private final CountDownLatch sourceLatch = new CountDownLatch(1);
+  /** Counted down once the source returned all its reads */
+  private final CountDownLatch sourceEnd = new CountDownLatch(1);
+
+  /** Unmapped mates recording which thread released them */
+  private class TrackedUnmappedReads extends UnmappedReads {
+    final AtomicInteger closeCount = new AtomicInteger();
+    final AtomicReference<Thread> closingThread = new AtomicReference<Thread>();
+
+    TrackedUnmappedReads() {
+      super(header, 1024 * 1024, null);
+    }
+
+    @Override
+    public void close() {
+      closeCount.incrementAndGet();
+      closingThread.set(Thread.currentThread());
+      super.close();
+    }
+  }
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    sourceLatch.countDown();
+    executor.shutdownNow();
+  }
+
+  private SAMRecord makeRecord(String name, int start, boolean mateUnmapped) {
+    final SAMRecord record = new SAMRecord(header);
+    record.setReadName(name);
+    record.setReferenceName("chr1");
+    record.setAlignmentStart(start);
+    record.setReadPairedFlag(true);
+    record.setMateUnmappedFlag(mateUnmapped);
+    return record;
+  }
+
+  /** Reads of one page, after which the source waits until the test ends */
+  private ShardedReadsIterable makeBlockingReads(SAMRecord... records) {
+    final Iterator<List<SAMRecord>> pages = ReadAheadIteratorTest.blockingSource(
+        Collections.singletonList(Arrays.asList(records)), sourceLatch, sourceEnd);
+    return new ShardedReadsIterable(Collections.singletonList(
+        new ShardedReadsIterable.Shard(0, new Iterable<List<SAMRecord>>() {
+          @Override
+          public Iterator<List<SAMRecord>> iterator() {
+            return pages;
+          }
+        })), executor, 1, 2);
+  }
+
+  /** Iterates the resource on a new thread, counting the records it returns */
+  private Thread startConsumer(final ReadIteratorResource resource,
+      final AtomicInteger records, final AtomicReference<Throwable> error) {
+    final Thread consumer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (SAMRecord record : resource.getSAMRecordIterable()) {
+            records.incrementAndGet();
+          }
+        } catch (Throwable ex) {
+          error.set(ex);
+        }
+      }
+    });
+    consumer.start();
+    return consumer;
+  }
+
+  @Test
+  public void testCloseEndsBlockedIteration() throws InterruptedException {
+    final TrackedUnmappedReads unmappedReads = new TrackedUnmappedReads();
+    final ReadIteratorResource resource = new ReadIteratorResource(null, null,
+        Futures.<UnmappedReads>immediateFuture(unmappedReads),
+        makeBlockingReads(makeRecord("a", 10, false), makeRecord("b", 20, false)));
+    final AtomicInteger records = new AtomicInteger();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final Thread consumer = startConsumer(resource, records, error);
+    sourceEnd.await();
+    ReadAheadIteratorTest.awaitBlocked(consumer);
+    resource.close();
+    consumer.join(5000);
+    assertFalse(consumer.isAlive());
+    assertEquals(null, error.get());
+    assertEquals(2, records.get());
+    // The consumer was using the mates when the resource was closed.
+    assertEquals(1, unmappedReads.closeCount.get());
+    assertSame(consumer, unmappedReads.closingThread.get());
+  }
+
+  @Test
+  public void testCloseEndsWaitForMates() throws InterruptedException {
+    final SettableFuture<UnmappedReads> unmappedReads = SettableFuture.create();
+    final ReadIteratorResource resource = new ReadIteratorResource(null, null,
+        unmappedReads, makeBlockingReads(makeRecord("a", 10, true)));
+    final AtomicInteger records = new AtomicInteger();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final Thread consumer = startConsumer(resource, records, error);
+    sourceEnd.await();
+    ReadAheadIteratorTest.awaitBlocked(consumer);
+    resource.close();
+    consumer.join(5000);
+    assertFalse(consumer.isAlive());
+    assertEquals(null, error.get());
+    assertTrue(unmappedReads.isCancelled());
+  }
+
+  @Test
+  public void testCloseWithoutConsumerReleasesMates() {
+    final TrackedUnmappedReads unmappedReads = new TrackedUnmappedReads();
+    final Future<UnmappedReads> future = Futures.<UnmappedReads>immediateFuture(unmappedReads);
+    final ReadIteratorResource resource = new ReadIteratorResource(null, null, future,
+        makeBlockingReads(makeRecord("a", 10, false)));
+    resource.close();
+    resource.close();
+    assertEquals(1, unmappedReads.closeCount.get());
+    assertSame(Thread.currentThread(), unmappedReads.closingThread.get());
+    assertFalse(resource.getSAMRecordIterable().iterator().hasNext());
+  }
+}
@@ -0,0 +1,191 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.genomics.model.CigarUnit;
+import com.google.api.services.genomics.model.LinearAlignment;
+import com.google.api.services.genomics.model.Position;
+import com.google.api.services.genomics.model.Read;
+import com.google.api.services.genomics.model.SearchReadsResponse;
+import com.google.common.base.Charsets;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ReadPageDecoderTest {
+
+  static SAMFileHeader makeHeader() {
+    final SAMFileHeader header = new SAMFileHeader();
+    header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(
+        new SAMSequenceRecord("chr1", 1000000),
+        new SAMSequenceRecord("chr2", 1000000))));
+    return header;
+  }
+
+  static Position makePosition(String referenceName, long position, boolean reverseStrand) {
+    return new Position()
+        .setReferenceName(referenceName)
+        .setPosition(position)
+        .setReverseStrand(reverseStrand);
+  }
+
+  static CigarUnit makeCigarUnit(String operation, long length) {
+    return new CigarUnit().setOperation(operation).setOperationLength(length);
+  }
+
+  static Read makeRead(String name, int numberReads, int readNumber) {
+    return new Read()
+        .setFragmentName(name)
+        .setReadGroupId("rg1")
+        .setNumberReads(numberReads)
+        .setReadNumber(readNumber)
+        .setFragmentLength(250)
+        .setAlignedSequence("ACGTN")
+        .setAlignedQuality(Arrays.asList(30, 31, 32, 33, 2));
+  }
+
+  static Read align(Read read, String referenceName, long position, boolean reverseStrand) {
+    return read.setAlignment(new LinearAlignment()
+        .setPosition(makePosition(referenceName, position, reverseStrand))
+        .setMappingQuality(60)
+        .setCigar(Arrays.asList(makeCigarUnit("ALIGNMENT_MATCH", 3),
+            makeCigarUnit("INSERT", 1), makeCigarUnit("CLIP_SOFT", 1))));
+  }
+
+  /** Reads covering the flags and fields the decoder and the converter set */
+  static List<Read> makeReads() {
+    final List<Read> reads = new ArrayList<Read>();
+    final Map<String, List<String>> info = new HashMap<String, List<String>>();
+    info.put("NM", Collections.singletonList("1"));
+    info.put("MD", Collections.singletonList("3A0"));
+    info.put("XA", Collections.singletonList("chr2,+100,5M,0"));
+    reads.add(align(makeRead("pair", 2, 0), "chr1", 100, false)
+        .setProperPlacement(true)
+        .setNextMatePosition(makePosition("chr1", 300, true))
+        .setInfo(info));
+    reads.add(align(makeRead("pair", 2, 1), "chr1", 300, true)
+        .setProperPlacement(true)
+        .setDuplicateFragment(true)
+        .setNextMatePosition(makePosition("chr1", 100, false)));
+    reads.add(align(makeRead("mapped", 2, 0), "chr2", 500, false));
+    reads.add(makeRead("mapped", 2, 1)
+        .setNextMatePosition(makePosition("chr2", 500, false)));
+    reads.add(align(makeRead("triple", 3, 2), "chr2", 700, false)
+        .setSecondaryAlignment(true)
+        .setFailedVendorQualityChecks(true)
+        .setNextMatePosition(makePosition("chr2", 900, false)));
+    reads.add(align(makeRead("single", 1, 0), "chr1", 42, true)
+        .setSupplementaryAlignment(true));
+    return reads;
+  }
+
+  static byte[] toJson(List<Read> reads, String nextPageToken) throws IOException {
+    return JacksonFactory.getDefaultInstance().toString(new SearchReadsResponse()
+        .setAlignments(reads)
+        .setNextPageToken(nextPageToken)).getBytes(Charsets.UTF_8);
+  }
+
+  private static void assertSameRecords(List<Read> reads, List<SAMRecord> decoded,
+      SAMFileHeader header) {
+    assertEquals(reads.size(), decoded.size());
+    for (int i = 0; i < reads.size(); i++) {
+      final SAMRecord expected = GenomicsConverter.makeSAMRecord(reads.get(i), header);
+      assertEquals(expected.getSAMString(), decoded.get(i).getSAMString());
+      assertEquals(expected.getFlags(), decoded.get(i).getFlags());
+      assertEquals(expected.getReferenceIndex(), decoded.get(i).getReferenceIndex());
+      assertEquals(expected.getMateReferenceIndex(), decoded.get(i).getMateReferenceIndex());
+    }
+  }
+
+  @Test
+  public void testDecodedRecordsMatchConverter() throws IOException {
+    final SAMFileHeader header = makeHeader();
+    final List<Read> reads = makeReads();
+    final ReadPageDecoder.Page page = new ReadPageDecoder(header, false).decode(
+        new ByteArrayInputStream(toJson(reads, "next")));
+    assertEquals("next", page.getNextPageToken());
+    assertSameRecords(reads, page.getRecords(), header);
+  }
+
+  @Test
+  public void testLazyDecodedRecordsMatchConverter() throws IOException {
+    final SAMFileHeader header = makeHeader();
+    final List<Read> reads = makeReads();
+    final ReadPageDecoder.Page page = new ReadPageDecoder(header, true).decode(
+        new ByteArrayInputStream(toJson(reads, null)));
+    assertEquals(null, page.getNextPageToken());
+    assertSameRecords(reads, page.getRecords(), header);
+  }
+
+  @Test
+  public void testFragmentsOfMoreThanTwoReadsArePaired() throws IOException {
+    final SAMFileHeader header = makeHeader();
+    final Read read = makeRead("triple", 3, 2)
+        .setNextMatePosition(makePosition("chr2", 900, false));
+    final SAMRecord decoded = new ReadPageDecoder(header, false).decode(
+        new ByteArrayInputStream(toJson(Collections.singletonList(read), null)))
+        .getRecords().get(0);
+    assertTrue(decoded.getReadPairedFlag());
+    assertTrue(UnmappedReads.isUnmappedMateOfMappedRead(decoded));
+    assertTrue(GenomicsConverter.makeSAMRecord(read, header).getReadPairedFlag());
+  }
+
+  private static String readNextPageToken(String json) throws IOException {
+    return ReadPageDecoder.readNextPageToken(json.getBytes(Charsets.UTF_8));
+  }
+
+  @Test
+  public void testReadNextPageToken() throws IOException {
+    final List<Read> reads = makeReads();
+    assertEquals("next", ReadPageDecoder.readNextPageToken(toJson(reads, "next")));
+    assertEquals(null, ReadPageDecoder.readNextPageToken(toJson(reads, null)));
+    assertEquals("a\"b", readNextPageToken(
+        "{\"alignments\": [], \"nextPageToken\" : \"a\\\"b\"\n}"));
+    assertEquals("first", readNextPageToken(
+        "{\"nextPageToken\":\"first\",\"alignments\":[{\"fragmentName\":\"r\"}]}"));
+    assertEquals(null, readNextPageToken("{\"alignments\":[],\"nextPageToken\":null}"));
+    assertEquals(null, readNextPageToken("{}"));
+  }
+
+  @Test
+  public void testReadNextPageTokenIgnoresReadContents() throws IOException {
+    final Read read = makeRead("read", 1, 0).setInfo(Collections.singletonMap("nextPageToken",
+        Arrays.asList("\"nextPageToken\": \"fake\"", "nextPageToken")));
+    assertEquals(null, ReadPageDecoder.readNextPageToken(
+        toJson(Collections.singletonList(read), null)));
+    assertEquals("real", ReadPageDecoder.readNextPageToken(
+        toJson(Collections.singletonList(read), "real")));
+    assertEquals(null, readNextPageToken(
+        "{\"alignments\":[{\"info\":{\"x\":[\"a\",\"nextPageToken\"]}}]}"));
+  }
+}
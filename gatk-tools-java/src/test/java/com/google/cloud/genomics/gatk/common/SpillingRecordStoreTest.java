@@ -0,0 +1,150 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.Files;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SpillingRecordStoreTest {
+  private final SAMFileHeader header = ReadPageDecoderTest.makeHeader();
+  private File spillDirectory;
+
+  @Before
+  public void setUp() {
+    spillDirectory = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : spillDirectory.listFiles()) {
+      file.delete();
+    }
+    spillDirectory.delete();
+  }
+
+  /** Makes an unmapped read of 100 bases whose mate is mapped */
+  static SAMRecord makeUnmappedMate(SAMFileHeader header, String name, String mateReference,
+      int mateStart, int readNumber) {
+    final SAMRecord record = new SAMRecord(header);
+    record.setReadName(name);
+    record.setReadPairedFlag(true);
+    record.setReadUnmappedFlag(true);
+    record.setFirstOfPairFlag(readNumber == 0);
+    record.setSecondOfPairFlag(readNumber == 1);
+    record.setMateReferenceName(mateReference);
+    record.setMateAlignmentStart(mateStart);
+    final StringBuilder bases = new StringBuilder();
+    final byte[] qualities = new byte[100];
+    for (int i = 0; i < 100; i++) {
+      bases.append("ACGT".charAt((name.hashCode() + i) & 3));
+      qualities[i] = (byte)(10 + i % 30);
+    }
+    record.setReadString(bases.toString());
+    record.setBaseQualities(qualities);
+    record.setAttribute("RG", "rg1");
+    return record;
+  }
+
+  private List<SAMRecord> makeRecords(int count) {
+    final List<SAMRecord> records = new ArrayList<SAMRecord>(count);
+    for (int i = 0; i < count; i++) {
+      records.add(makeUnmappedMate(header, "read" + i, i % 2 == 0 ? "chr1" : "chr2",
+          i + 1, i % 2));
+    }
+    return records;
+  }
+
+  private static void assertSameRecord(SAMRecord expected, SAMRecord actual) {
+    assertEquals(expected.getSAMString(), actual.getSAMString());
+  }
+
+  @Test
+  public void testRecordsInMemory() throws IOException {
+    final SpillingRecordStore store = new SpillingRecordStore(header, 1L << 30, spillDirectory);
+    final List<SAMRecord> records = makeRecords(100);
+    final List<Long> offsets = new ArrayList<Long>();
+    for (SAMRecord record : records) {
+      offsets.add(store.add(record));
+    }
+    for (int i = records.size() - 1; i >= 0; i--) {
+      assertTrue(offsets.get(i) >= 0);
+      assertSameRecord(records.get(i), store.get(offsets.get(i)));
+    }
+    assertEquals(0, store.getSpilledBytes());
+    assertEquals(0, spillDirectory.listFiles().length);
+    store.close();
+  }
+
+  @Test
+  public void testRecordsSpilledToDisk() throws IOException {
+    final SpillingRecordStore store = new SpillingRecordStore(header, 0, spillDirectory);
+    final List<SAMRecord> records = makeRecords(100);
+    final List<Long> offsets = new ArrayList<Long>();
+    for (SAMRecord record : records) {
+      final long offset = store.add(record);
+      assertTrue(offset < 0);
+      offsets.add(offset);
+      // Reads while adding flush the pending writes first.
+      assertSameRecord(records.get(offsets.size() / 2), store.get(offsets.get(offsets.size() / 2)));
+    }
+    for (int i = 0; i < records.size(); i++) {
+      assertSameRecord(records.get(i), store.get(offsets.get(i)));
+    }
+    assertEquals(0, store.getHeapBytes());
+    assertTrue(store.getSpilledBytes() > 0);
+    assertEquals(1, spillDirectory.listFiles().length);
+    store.close();
+    assertEquals(0, spillDirectory.listFiles().length);
+  }
+
+  @Test
+  public void testRecordsBeyondTheHeapBudgetAreSpilled() throws IOException {
+    // A single 4 MB slab, filled by about 15000 records of 100 bases.
+    final SpillingRecordStore store = new SpillingRecordStore(header, 4L << 20, spillDirectory);
+    final List<SAMRecord> records = makeRecords(30000);
+    final long[] offsets = new long[records.size()];
+    for (int i = 0; i < records.size(); i++) {
+      offsets[i] = store.add(records.get(i));
+    }
+    assertTrue(offsets[0] >= 0);
+    assertTrue(offsets[offsets.length - 1] < 0);
+    for (int i = 1; i < offsets.length; i++) {
+      // Once spilling starts all later records go to disk.
+      assertTrue(offsets[i - 1] >= 0 || offsets[i] < 0);
+    }
+    for (int i = 0; i < records.size(); i++) {
+      assertSameRecord(records.get(i), store.get(offsets[i]));
+    }
+    assertTrue(store.getHeapBytes() > 0 && store.getHeapBytes() <= 4L << 20);
+    assertTrue(store.getSpilledBytes() > 0);
+    store.close();
+    assertEquals(0, spillDirectory.listFiles().length);
+  }
+}
@@ -0,0 +1,189 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class UnmappedReadsTest {
+  private final SAMFileHeader header = ReadPageDecoderTest.makeHeader();
+
+  /** Keys collide for all reads, so all mates share a single chain */
+  private static class CollidingUnmappedReads extends UnmappedReads {
+    CollidingUnmappedReads(SAMFileHeader header, long maxHeapBytes) {
+      super(header, maxHeapBytes, null);
+    }
+
+    @Override
+    long getKey(String reference, String readName) {
+      return 42;
+    }
+  }
+
+  private SAMRecord makeMappedMate(String name, String reference, int start) {
+    final SAMRecord record = new SAMRecord(header);
+    record.setReadName(name);
+    record.setReadPairedFlag(true);
+    record.setMateUnmappedFlag(true);
+    record.setFirstOfPairFlag(true);
+    record.setReferenceName(reference);
+    record.setAlignmentStart(start);
+    record.setCigarString("100M");
+    record.setMateReferenceName(reference);
+    record.setMateAlignmentStart(start);
+    return record;
+  }
+
+  private SAMRecord makeUnmappedMate(String name, String reference, int start, int readNumber) {
+    return SpillingRecordStoreTest.makeUnmappedMate(header, name, reference, start, readNumber);
+  }
+
+  private static void assertMates(List<SAMRecord> mates, String name, int... readNumbers) {
+    assertEquals(readNumbers.length, mates.size());
+    for (int i = 0; i < readNumbers.length; i++) {
+      assertEquals(name, mates.get(i).getReadName());
+      assertEquals(readNumbers[i] == 1, mates.get(i).getSecondOfPairFlag());
+      assertEquals(readNumbers[i] == 0, mates.get(i).getFirstOfPairFlag());
+    }
+  }
+
+  @Test
+  public void testOnlyUnmappedMatesOfMappedReadsAreAdded() throws IOException {
+    final UnmappedReads reads = new UnmappedReads(header, 1L << 20, null);
+    assertFalse(reads.maybeAddRead(makeMappedMate("mapped", "chr1", 10)));
+    final SAMRecord unpaired = makeUnmappedMate("unpaired", "chr1", 10, 1);
+    unpaired.setReadPairedFlag(false);
+    unpaired.setSecondOfPairFlag(false);
+    assertFalse(reads.maybeAddRead(unpaired));
+    final SAMRecord bothUnmapped = makeUnmappedMate("both", "chr1", 10, 1);
+    bothUnmapped.setMateUnmappedFlag(true);
+    assertFalse(reads.maybeAddRead(bothUnmapped));
+    assertTrue(reads.maybeAddRead(makeUnmappedMate("read", "chr1", 10, 1)));
+    assertEquals(1, reads.getReadCount());
+    reads.close();
+  }
+
+  @Test
+  public void testMatesAreReturnedInReadNumberOrder() throws IOException {
+    final UnmappedReads reads = new UnmappedReads(header, 1L << 20, null);
+    reads.maybeAddRead(makeUnmappedMate("read", "chr1", 10, 2));
+    reads.maybeAddRead(makeUnmappedMate("read", "chr1", 10, 1));
+    reads.maybeAddRead(makeUnmappedMate("read", "chr1", 10, 2));
+    assertMates(reads.getUnmappedMates(makeMappedMate("read", "chr1", 10)), "read", 1, 2, 2);
+    assertNull(reads.getUnmappedMates(makeMappedMate("read", "chr2", 10)));
+    assertNull(reads.getUnmappedMates(makeMappedMate("other", "chr1", 10)));
+    reads.close();
+  }
+
+  @Test
+  public void testCollidingKeysAreToldApartByName() throws IOException {
+    final UnmappedReads reads = new CollidingUnmappedReads(header, 1L << 20);
+    reads.maybeAddRead(makeUnmappedMate("b", "chr1", 10, 1));
+    reads.maybeAddRead(makeUnmappedMate("a", "chr1", 10, 2));
+    reads.maybeAddRead(makeUnmappedMate("a", "chr2", 10, 1));
+    reads.maybeAddRead(makeUnmappedMate("a", "chr1", 10, 1));
+    reads.maybeAddRead(makeUnmappedMate("b", "chr1", 10, 2));
+    assertMates(reads.getUnmappedMates(makeMappedMate("a", "chr1", 10)), "a", 1, 2);
+    assertMates(reads.getUnmappedMates(makeMappedMate("a", "chr2", 10)), "a", 1);
+    assertMates(reads.getUnmappedMates(makeMappedMate("b", "chr1", 10)), "b", 1, 2);
+    assertNull(reads.getUnmappedMates(makeMappedMate("c", "chr1", 10)));
+    reads.close();
+  }
+
+  @Test
+  public void testManyFragments() throws IOException {
+    final UnmappedReads reads = new UnmappedReads(header, 1L << 20, null);
+    final int count = 20000;
+    for (int i = 0; i < count; i++) {
+      assertTrue(reads.maybeAddRead(makeUnmappedMate("read" + i, "chr1", i + 1, 1)));
+    }
+    for (int i = 0; i < count; i++) {
+      assertMates(reads.getUnmappedMates(makeMappedMate("read" + i, "chr1", i + 1)),
+          "read" + i, 1);
+      assertNull(reads.getUnmappedMates(makeMappedMate("read" + i, "chr2", i + 1)));
+    }
+    reads.close();
+  }
+
+  @Test
+  public void testSpilledMates() throws IOException {
+    final File spillDirectory = com.google.common.io.Files.createTempDir();
+    final UnmappedReads reads = new UnmappedReads(header, 0, spillDirectory);
+    for (int i = 0; i < 1000; i++) {
+      reads.maybeAddRead(makeUnmappedMate("read" + i, "chr2", i + 1, 1));
+      reads.maybeAddRead(makeUnmappedMate("read" + i, "chr2", i + 1, 0));
+    }
+    assertEquals(1, spillDirectory.listFiles().length);
+    for (int i = 0; i < 1000; i++) {
+      assertMates(reads.getUnmappedMates(makeMappedMate("read" + i, "chr2", i + 1)),
+          "read" + i, 0, 1);
+    }
+    reads.close();
+    assertEquals(0, spillDirectory.listFiles().length);
+    spillDirectory.delete();
+  }
+
+  @Test
+  public void testReadLimit() throws IOException {
+    final UnmappedReads reads = new UnmappedReads(header, 1L << 20, null, 2);
+    assertTrue(reads.maybeAddRead(makeUnmappedMate("a", "chr1", 10, 1)));
+    assertTrue(reads.maybeAddRead(makeUnmappedMate("b", "chr1", 10, 1)));
+    assertFalse(reads.maybeAddRead(makeUnmappedMate("c", "chr1", 10, 1)));
+    assertEquals(2, reads.getReadCount());
+    assertMates(reads.getUnmappedMates(makeMappedMate("b", "chr1", 10)), "b", 1);
+    assertNull(reads.getUnmappedMates(makeMappedMate("c", "chr1", 10)));
+    reads.close();
+  }
+
+  @Test
+  public void testFilterSkipsReadsWithoutMates() throws IOException {
+    final UnmappedReads reads = new UnmappedReads(header, 1L << 20, null);
+    final int count = 20000;
+    for (int i = 0; i < count; i++) {
+      reads.maybeAddRead(makeUnmappedMate("read" + i, "chr1", i + 1, 1));
+    }
+    assertTrue(reads.getFilterBytes() > 0);
+    assertTrue(reads.getFilterExpectedFalsePositiveRate() < 0.01);
+    for (int i = 0; i < count; i++) {
+      assertMates(reads.getUnmappedMates(makeMappedMate("read" + i, "chr1", i + 1)),
+          "read" + i, 1);
+      assertNull(reads.getUnmappedMates(makeMappedMate("other" + i, "chr1", i + 1)));
+      assertNull(reads.getUnmappedMates(makeMappedMate("read" + i, "chr2", i + 1)));
+    }
+    assertEquals(3 * count, reads.getLookups());
+    // Found mates pass the filter, no filter holds the keys of chr2.
+    assertEquals(2 * count, reads.getFilterNegatives() + reads.getFilterFalsePositives());
+    assertTrue(reads.getFilterFalsePositives() < count / 100);
+    reads.close();
+  }
+
+  @Test
+  public void testReadKeySeparatesReferenceAndName() {
+    assertTrue(UnmappedReads.getReadKey("chr1", "0x") != UnmappedReads.getReadKey("chr10", "x"));
+    assertEquals(UnmappedReads.getReadKey("chr1", "read"), UnmappedReads.getReadKey("chr1", "read"));
+  }
+}
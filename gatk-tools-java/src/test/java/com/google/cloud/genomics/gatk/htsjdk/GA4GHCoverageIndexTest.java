@@ -0,0 +1,168 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import htsjdk.samtools.Bin;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class GA4GHCoverageIndexTest {
+  public static SAMSequenceDictionary makeDictionary() {
+    return new SAMSequenceDictionary(Arrays.asList(
+        new SAMSequenceRecord("chr1", 1000000),
+        new SAMSequenceRecord("chr2", 1000000)));
+  }
+
+  private static SAMRecord makeRead(SAMFileHeader header, int start, boolean unmapped) {
+    final SAMRecord record = new SAMRecord(header);
+    record.setReadName("read" + start);
+    record.setReferenceIndex(0);
+    record.setAlignmentStart(start);
+    record.setReadUnmappedFlag(unmapped);
+    if (!unmapped) {
+      record.setCigarString("100M");
+    }
+    return record;
+  }
+
+  /**
+   * Returns the index of reads on chr1 at 1-100 (bin 4681), 16380-16479
+   * (crossing the first 16 kb window, bin 585) and 16385-16484 (bin 4682),
+   * and of an unmapped read placed at 16385. chr2 has no reads.
+   */
+  public static GA4GHCoverageIndex makeIndex() {
+    final SAMFileHeader header = new SAMFileHeader();
+    header.setSequenceDictionary(makeDictionary());
+    final GA4GHCoverageIndex.Builder builder = 
+        new GA4GHCoverageIndex.Builder(header.getSequenceDictionary());
+    builder.add(makeRead(header, 16385, false));
+    builder.add(makeRead(header, 1, false));
+    builder.add(makeRead(header, 16385, true));
+    builder.add(makeRead(header, 16380, false));
+    return builder.build();
+  }
+
+  private static List<String> getBins(Iterable<Bin> bins) {
+    final List<String> numbers = new ArrayList<String>();
+    for (Bin bin : bins) {
+      numbers.add(String.valueOf(bin.getBinNumber()));
+    }
+    return numbers;
+  }
+
+  private static void assertIndex(GA4GHCoverageIndex index) {
+    assertEquals(2, index.getNumberOfReferences());
+    assertEquals(3, index.getAlignedRecordCount(0));
+    assertEquals(1, index.getUnalignedRecordCount(0));
+    assertEquals(1, index.getFirstLocus(0));
+    assertEquals(16484, index.getLastLocus(0));
+    assertEquals(1, index.getRecordCount(0, new Bin(0, 4681)));
+    assertEquals(1, index.getRecordCount(0, new Bin(0, 4682)));
+    assertEquals(1, index.getRecordCount(0, new Bin(0, 585)));
+    assertEquals(0, index.getRecordCount(0, new Bin(0, 4683)));
+    assertEquals(16380, index.getStartOfLastWindow(0));
+    assertEquals("[0:16380-16484]", index.getSpanOverlapping(0, 16400, 20000).toString());
+    assertEquals(0, index.getAlignedRecordCount(1));
+    assertEquals(0, index.getUnalignedRecordCount(1));
+    assertEquals(0, index.getStartOfLastWindow(1));
+    assertEquals(0, index.getRecordCountOverlapping(1, 1, 1000000));
+  }
+
+  @Test
+  public void testBins() {
+    final GA4GHCoverageIndex index = makeIndex();
+    assertIndex(index);
+    assertEquals(Arrays.asList("585", "4682"), getBins(index.getBinsOverlapping(0, 16385, 16400)));
+    assertEquals(Arrays.asList("585", "4681", "4682"), 
+        getBins(index.getBinsOverlapping(0, 1, 1000000)));
+    assertEquals(Arrays.asList(), getBins(index.getBinsOverlapping(0, 200000, 300000)));
+    assertEquals(Arrays.asList(), getBins(index.getBinsOverlapping(1, 1, 1000000)));
+    assertEquals(2, index.getRecordCountOverlapping(0, 16385, 16400));
+    assertEquals(3, index.getRecordCountOverlapping(0, 1, 1000000));
+  }
+
+  @Test
+  public void testBinLoci() {
+    final GA4GHCoverageIndex index = makeIndex();
+    assertEquals(0, index.getLevelForBin(new Bin(0, 0)));
+    assertEquals(4, index.getLevelForBin(new Bin(0, 585)));
+    assertEquals(5, index.getLevelForBin(new Bin(0, 4682)));
+    assertEquals(1, index.getLevelSize(0));
+    assertEquals(32768, index.getLevelSize(5));
+    assertEquals(1, index.getFirstLocusInBin(new Bin(0, 0)));
+    assertEquals(1 << 29, index.getLastLocusInBin(new Bin(0, 0)));
+    assertEquals(1, index.getFirstLocusInBin(new Bin(0, 585)));
+    assertEquals(131072, index.getLastLocusInBin(new Bin(0, 585)));
+    assertEquals(16385, index.getFirstLocusInBin(new Bin(0, 4682)));
+    assertEquals(32768, index.getLastLocusInBin(new Bin(0, 4682)));
+  }
+
+  @Test
+  public void testSpanInBin() {
+    final GA4GHCoverageIndex index = makeIndex();
+    assertEquals("[0:16385-16484]", index.getSpanInBin(0, new Bin(0, 4682)).toString());
+    assertEquals("[0:1-16484]", index.getSpanInBin(0, new Bin(0, 585)).toString());
+    assertNull(index.getSpanInBin(0, new Bin(0, 4683)));
+    assertNull(index.getSpanInBin(1, new Bin(1, 4681)));
+  }
+
+  @Test
+  public void testSpanStartsAtWindowStart() {
+    final GA4GHCoverageIndex index = makeIndex();
+    // The read at 16380 overlaps the second window, so reads overlapping
+    // positions in it may start there.
+    assertEquals("[0:16380-16484]", index.getSpanOverlapping(0, 16480, 16500).toString());
+    // Nothing in the first window starts before the read at 1.
+    assertEquals("[0:1-50]", index.getSpanOverlapping(0, 10, 50).toString());
+    assertEquals("[0:1-16484]", index.getSpanOverlapping(0, 1, 1000000).toString());
+    assertNull(index.getSpanOverlapping(0, 16485, 1000000));
+    assertNull(index.getSpanOverlapping(1, 1, 1000000));
+  }
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    final File file = File.createTempFile("GA4GHCoverageIndexTest", ".idx.gz");
+    try {
+      makeIndex().save(file);
+      final GA4GHCoverageIndex index = GA4GHCoverageIndex.load(file, makeDictionary());
+      assertIndex(index);
+      assertEquals(makeIndex().toString(), index.toString());
+      try {
+        GA4GHCoverageIndex.load(file, new SAMSequenceDictionary(Arrays.asList(
+            new SAMSequenceRecord("chr1", 1000000))));
+        fail("Loaded an index of another dictionary");
+      } catch (IOException ex) {
+        // Expected
+      }
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import htsjdk.samtools.SAMFileSpan;
+import htsjdk.samtools.SAMSequenceDictionary;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class GA4GHFileSpanTest {
+  private final SAMSequenceDictionary dictionary = GA4GHCoverageIndexTest.makeDictionary();
+
+  private GA4GHFileSpan makeSpan(GA4GHFileSpan.Range... ranges) {
+    return new GA4GHFileSpan(dictionary, Arrays.asList(ranges));
+  }
+
+  @Test
+  public void testSpanOfAll() {
+    final GA4GHFileSpan span = GA4GHFileSpan.getSpanOfAll(dictionary);
+    assertFalse(span.isEmpty());
+    assertEquals("[0:1-1000000, 1:1-1000000]", span.toString());
+    final GA4GHQueryInterval[] intervals = span.toQueryIntervals();
+    assertEquals(2, intervals.length);
+    assertEquals("chr2", intervals[1].getSequence());
+    assertEquals(1, intervals[1].getStart());
+    assertEquals(1000000, intervals[1].getEnd());
+    assertEquals(GA4GHQueryInterval.ReadPositionConstraint.STARTS_IN,
+        intervals[1].getReadPositionConstraint());
+  }
+
+  @Test
+  public void testContentsFollowing() {
+    assertEquals("[0:101-1000000, 1:1-1000000]", 
+        makeSpan(new GA4GHFileSpan.Range(0, 1, 100)).getContentsFollowing().toString());
+    assertEquals("[1:1-1000000]", 
+        makeSpan(new GA4GHFileSpan.Range(0, 1, 1000000)).getContentsFollowing().toString());
+    assertTrue(makeSpan(new GA4GHFileSpan.Range(1, 10, 1000000))
+        .getContentsFollowing().isEmpty());
+    assertEquals("[0:1-1000000, 1:1-1000000]", makeSpan().getContentsFollowing().toString());
+  }
+
+  @Test
+  public void testRemoveContentsBefore() {
+    final GA4GHFileSpan span = makeSpan(new GA4GHFileSpan.Range(0, 1, 100),
+        new GA4GHFileSpan.Range(0, 200, 300), new GA4GHFileSpan.Range(1, 50, 60));
+    assertEquals("[0:250-300, 1:50-60]", 
+        span.removeContentsBefore(makeSpan(new GA4GHFileSpan.Range(0, 250, 400))).toString());
+    assertEquals("[0:200-300, 1:50-60]", 
+        span.removeContentsBefore(makeSpan(new GA4GHFileSpan.Range(0, 101, 150))).toString());
+    assertEquals("[1:55-60]", 
+        span.removeContentsBefore(makeSpan(new GA4GHFileSpan.Range(1, 55, 56))).toString());
+    assertTrue(span.removeContentsBefore(
+        makeSpan(new GA4GHFileSpan.Range(1, 61, 70))).isEmpty());
+    assertSame(span, span.removeContentsBefore(makeSpan()));
+    // Only the first range of the other span matters.
+    assertEquals("[0:1-100, 0:200-300, 1:50-60]", span.removeContentsBefore(makeSpan(
+        new GA4GHFileSpan.Range(0, 1, 10), new GA4GHFileSpan.Range(1, 55, 56))).toString());
+  }
+
+  @Test
+  public void testRemoveContentsBeforeOtherSpan() {
+    final GA4GHFileSpan span = makeSpan(new GA4GHFileSpan.Range(0, 1, 100));
+    final SAMFileSpan other = new SAMFileSpan() {
+      @Override
+      public SAMFileSpan removeContentsBefore(SAMFileSpan fileSpan) {
+        return this;
+      }
+
+      @Override
+      public SAMFileSpan getContentsFollowing() {
+        return this;
+      }
+
+      @Override
+      public boolean isEmpty() {
+        return false;
+      }
+    };
+    assertSame(span, span.removeContentsBefore(other));
+    assertEquals(Collections.singletonList(span.getRanges().get(0)), span.getRanges());
+  }
+}
@@ -0,0 +1,208 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.genomics.gatk.htsjdk.GA4GHQueryInterval.ReadPositionConstraint;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import org.junit.Test;
+
+/**
+ * Checks how requested intervals are batched into API queries and how reads
+ * of the batches are matched against them, without querying the API.
+ */
+public class GA4GHSamRecordIteratorTest {
+  private static final SAMFileHeader HEADER = new SAMFileHeader();
+  static {
+    HEADER.setSequenceDictionary(GA4GHCoverageIndexTest.makeDictionary());
+  }
+
+  /** Iterator that only batches intervals, its own query has none */
+  private static class BatchingIterator extends GA4GHSamRecordIterator {
+    BatchingIterator(int batchGap, int batchMaxSpan, GA4GHQueryInterval... intervals) {
+      super(null, "readset", null, batchGap, batchMaxSpan, 0);
+      makeBatches(intervals, batchGap, batchMaxSpan);
+    }
+
+    @Override
+    SAMFileHeader getDictionaryHeader() {
+      return HEADER;
+    }
+  }
+
+  private static GA4GHQueryInterval interval(String sequence, int start, int end,
+      ReadPositionConstraint constraint) {
+    return new GA4GHQueryInterval(sequence, start, end, constraint);
+  }
+
+  private static SAMRecord read(String sequence, int start, int length) {
+    final SAMRecord record = new SAMRecord(HEADER);
+    record.setReadName("read");
+    record.setReferenceName(sequence);
+    record.setAlignmentStart(start);
+    record.setCigarString(length + "M");
+    return record;
+  }
+
+  private static void assertBatch(GA4GHSamRecordIterator.Batch batch, String sequence,
+      int start, int end, int intervalCount) {
+    assertEquals(sequence, batch.sequence);
+    assertEquals(start, batch.start);
+    assertEquals(end, batch.end);
+    assertEquals(intervalCount, batch.intervalCount);
+  }
+
+  /** Returns whether the read is returned by the batch */
+  private static boolean matches(GA4GHSamRecordIterator iterator, int batchIndex,
+      SAMRecord read) {
+    iterator.batchIndex = batchIndex;
+    return iterator.matches(read);
+  }
+
+  @Test
+  public void testOverlappingIntervalsAreMerged() {
+    final GA4GHSamRecordIterator iterator = new BatchingIterator(0, 1000000,
+        interval("chr1", 301, 400, ReadPositionConstraint.OVERLAPPING),
+        interval("chr1", 100, 200, ReadPositionConstraint.OVERLAPPING),
+        interval("chr1", 150, 300, ReadPositionConstraint.OVERLAPPING));
+    assertEquals(1, iterator.batches.size());
+    assertBatch(iterator.batches.get(0), "chr1", 100, 400, 1);
+    assertNull(iterator.batches.get(0).interval);
+    assertTrue(matches(iterator, 0, read("chr1", 1, 100)));
+    assertTrue(matches(iterator, 0, read("chr1", 400, 100)));
+    assertFalse(matches(iterator, 0, read("chr1", 401, 100)));
+  }
+
+  @Test
+  public void testOtherConstraintsAreNotMerged() {
+    final GA4GHSamRecordIterator iterator = new BatchingIterator(0, 1000000,
+        interval("chr1", 100, 200, ReadPositionConstraint.OVERLAPPING),
+        interval("chr1", 150, 300, ReadPositionConstraint.CONTAINED));
+    assertEquals(1, iterator.batches.size());
+    assertBatch(iterator.batches.get(0), "chr1", 100, 300, 2);
+    assertTrue(matches(iterator, 0, read("chr1", 201, 100)));
+    assertFalse(matches(iterator, 0, read("chr1", 202, 100)));
+  }
+
+  @Test
+  public void testGapLimit() {
+    final GA4GHQueryInterval first = interval("chr1", 100, 200, 
+        ReadPositionConstraint.OVERLAPPING);
+    final GA4GHQueryInterval second = interval("chr1", 1000, 1100, 
+        ReadPositionConstraint.OVERLAPPING);
+    GA4GHSamRecordIterator iterator = new BatchingIterator(800, 1000000, first, second);
+    assertEquals(1, iterator.batches.size());
+    assertBatch(iterator.batches.get(0), "chr1", 100, 1100, 2);
+    // Reads in the gap are queried but not returned.
+    assertFalse(matches(iterator, 0, read("chr1", 500, 100)));
+    assertTrue(matches(iterator, 0, read("chr1", 1050, 100)));
+
+    iterator = new BatchingIterator(799, 1000000, first, second);
+    assertEquals(2, iterator.batches.size());
+    assertBatch(iterator.batches.get(0), "chr1", 100, 200, 1);
+    assertBatch(iterator.batches.get(1), "chr1", 1000, 1100, 1);
+  }
+
+  @Test
+  public void testMaxSpanLimit() {
+    final GA4GHQueryInterval first = interval("chr1", 100, 200, 
+        ReadPositionConstraint.OVERLAPPING);
+    final GA4GHQueryInterval second = interval("chr1", 1000, 1100, 
+        ReadPositionConstraint.OVERLAPPING);
+    GA4GHSamRecordIterator iterator = new BatchingIterator(16384, 1000, first, second);
+    assertEquals(1, iterator.batches.size());
+    iterator = new BatchingIterator(16384, 999, first, second);
+    assertEquals(2, iterator.batches.size());
+    assertBatch(iterator.batches.get(0), "chr1", 100, 200, 1);
+    assertBatch(iterator.batches.get(1), "chr1", 1000, 1100, 1);
+  }
+
+  @Test
+  public void testBatchesFollowTheDictionary() {
+    final GA4GHQueryInterval unknown = interval("chrUn", 1, 100, 
+        ReadPositionConstraint.STARTS_IN);
+    final GA4GHQueryInterval openEnded = interval("chr1", 0, 0, 
+        ReadPositionConstraint.OVERLAPPING);
+    final GA4GHSamRecordIterator iterator = new BatchingIterator(16384, 1000000,
+        unknown, interval("chr2", 100, 200, ReadPositionConstraint.OVERLAPPING),
+        openEnded, interval("chr1", 100, 200, ReadPositionConstraint.OVERLAPPING));
+    assertEquals(4, iterator.batches.size());
+    assertBatch(iterator.batches.get(0), "chr1", 100, 200, 1);
+    assertBatch(iterator.batches.get(1), "chr2", 100, 200, 1);
+    // Intervals off the dictionary are queried last, matching on their own.
+    assertEquals(unknown, iterator.batches.get(2).interval);
+    assertEquals(openEnded, iterator.batches.get(3).interval);
+    assertTrue(matches(iterator, 2, read("chrUn", 50, 100)));
+    assertFalse(matches(iterator, 2, read("chrUn", 101, 100)));
+    assertTrue(matches(iterator, 3, read("chr1", 500000, 100)));
+  }
+
+  @Test
+  public void testReadsOfSeveralBatchesAreReturnedOnce() {
+    // The span limit puts overlapping intervals in different batches.
+    final GA4GHSamRecordIterator iterator = new BatchingIterator(16384, 150,
+        interval("chr1", 100, 300, ReadPositionConstraint.OVERLAPPING),
+        interval("chr1", 280, 400, ReadPositionConstraint.STARTS_IN));
+    assertEquals(2, iterator.batches.size());
+    final SAMRecord both = read("chr1", 290, 100);
+    assertTrue(matches(iterator, 0, both));
+    assertFalse(matches(iterator, 1, both));
+    final SAMRecord second = read("chr1", 301, 100);
+    assertFalse(matches(iterator, 0, second));
+    assertTrue(matches(iterator, 1, second));
+    // A read overlapping the first interval but only returned by the second.
+    final SAMRecord starting = read("chr1", 250, 10);
+    assertTrue(matches(iterator, 0, starting));
+    assertFalse(matches(iterator, 1, starting));
+  }
+
+  @Test
+  public void testIdenticalIntervalsKeepAllConstraints() {
+    final GA4GHSamRecordIterator iterator = new BatchingIterator(16384, 1000000,
+        interval("chr1", 100, 200, ReadPositionConstraint.CONTAINED),
+        interval("chr1", 100, 200, ReadPositionConstraint.START_AT));
+    assertEquals(1, iterator.batches.size());
+    assertBatch(iterator.batches.get(0), "chr1", 100, 200, 2);
+    assertNotNull(iterator.intervalTrees.get("chr1").find(100, 200));
+    assertEquals(2, iterator.intervalTrees.get("chr1").find(100, 200).getValue().size());
+    assertTrue(matches(iterator, 0, read("chr1", 120, 50)));
+    assertTrue(matches(iterator, 0, read("chr1", 100, 200)));
+    assertFalse(matches(iterator, 0, read("chr1", 150, 100)));
+  }
+
+  @Test
+  public void testIdenticalIntervalsOfSeveralBatches() {
+    // Intervals longer than the span limit each get their own batch.
+    final GA4GHSamRecordIterator iterator = new BatchingIterator(16384, 50,
+        interval("chr1", 100, 200, ReadPositionConstraint.CONTAINED),
+        interval("chr1", 100, 200, ReadPositionConstraint.STARTS_IN));
+    assertEquals(2, iterator.batches.size());
+    final SAMRecord contained = read("chr1", 120, 50);
+    assertTrue(matches(iterator, 0, contained));
+    assertFalse(matches(iterator, 1, contained));
+    final SAMRecord starting = read("chr1", 150, 100);
+    assertFalse(matches(iterator, 0, starting));
+    assertTrue(matches(iterator, 1, starting));
+  }
+}
@@ -0,0 +1,213 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class MateCacheTest {
+  private static final SAMFileHeader HEADER = new SAMFileHeader();
+  static {
+    HEADER.setSequenceDictionary(GA4GHCoverageIndexTest.makeDictionary());
+  }
+
+  private final MateCache cache = new MateCache(1000, 500);
+
+  private static SAMRecord read(String name, boolean first, String reference, int start) {
+    final SAMRecord record = new SAMRecord(HEADER);
+    record.setReadName(name);
+    record.setReadPairedFlag(true);
+    record.setFirstOfPairFlag(first);
+    record.setSecondOfPairFlag(!first);
+    record.setReferenceName(reference);
+    record.setAlignmentStart(start);
+    record.setCigarString("100M");
+    record.setMateReferenceName(reference);
+    record.setMateAlignmentStart(start);
+    return record;
+  }
+
+  /** Returns the read whose mate is the read */
+  private static SAMRecord mateOf(SAMRecord record) {
+    return read(record.getReadName(), !record.getFirstOfPairFlag(), 
+        record.getReferenceName(), record.getAlignmentStart());
+  }
+
+  private boolean isKnown(SAMRecord record) {
+    return cache.findMate(mateOf(record)) != null;
+  }
+
+  @Test
+  public void testRecordsAreKeptAfterTheFirstLookup() {
+    final MateCache.Window window = cache.newWindow();
+    final SAMRecord before = read("before", true, "chr1", 100);
+    window.add(before);
+    assertFalse(isKnown(before));
+    final SAMRecord after = read("after", true, "chr1", 100);
+    window.add(after);
+    assertTrue(isKnown(after));
+    assertFalse(isKnown(before));
+  }
+
+  @Test
+  public void testOnlyPrimaryPairedRecordsAreKept() {
+    cache.findMate(read("enable", true, "chr1", 1));
+    final MateCache.Window window = cache.newWindow();
+    final SAMRecord unpaired = read("unpaired", true, "chr1", 100);
+    final SAMRecord unpairedMate = mateOf(unpaired);
+    unpaired.setReadPairedFlag(false);
+    window.add(unpaired);
+    final SAMRecord secondary = read("secondary", true, "chr1", 100);
+    secondary.setNotPrimaryAlignmentFlag(true);
+    window.add(secondary);
+    final SAMRecord primary = read("primary", true, "chr1", 100);
+    window.add(primary);
+    assertNull(cache.findMate(unpairedMate));
+    assertFalse(isKnown(secondary));
+    assertTrue(isKnown(primary));
+  }
+
+  @Test
+  public void testWindowEviction() {
+    cache.findMate(read("enable", true, "chr1", 1));
+    final MateCache.Window window = cache.newWindow();
+    final SAMRecord first = read("first", true, "chr1", 100);
+    final SAMRecord second = read("second", false, "chr1", 1000);
+    window.add(first);
+    window.add(second);
+    assertTrue(isKnown(first));
+    // The first record is exactly window positions behind the last one.
+    window.add(read("third", true, "chr1", 1100));
+    assertTrue(isKnown(first));
+    window.add(read("fourth", true, "chr1", 1101));
+    assertFalse(isKnown(first));
+    assertTrue(isKnown(second));
+  }
+
+  @Test
+  public void testWindowEvictionAcrossReferences() {
+    cache.findMate(read("enable", true, "chr1", 1));
+    final MateCache.Window window = cache.newWindow();
+    final SAMRecord chr1 = read("chr1", true, "chr1", 999950);
+    window.add(chr1);
+    final SAMRecord chr2 = read("chr2", true, "chr2", 1);
+    window.add(chr2);
+    assertFalse(isKnown(chr1));
+    assertTrue(isKnown(chr2));
+  }
+
+  @Test
+  public void testWindowCloseRemovesOnlyItsOwnEntries() {
+    cache.findMate(read("enable", true, "chr1", 1));
+    final MateCache.Window first = cache.newWindow();
+    final MateCache.Window second = cache.newWindow();
+    final SAMRecord shared = read("shared", true, "chr1", 100);
+    final SAMRecord own = read("own", true, "chr1", 100);
+    final SAMRecord other = read("other", true, "chr1", 100);
+    first.add(shared);
+    first.add(own);
+    // The second window streams the same record, replacing the first's entry.
+    second.add(shared);
+    second.add(other);
+    first.close();
+    assertFalse(isKnown(own));
+    assertTrue(isKnown(shared));
+    assertTrue(isKnown(other));
+    first.add(own);
+    assertFalse(isKnown(own));
+    second.close();
+    assertFalse(isKnown(shared));
+    assertFalse(isKnown(other));
+  }
+
+  @Test
+  public void testEvictionKeepsEntriesOfOtherWindows() {
+    cache.findMate(read("enable", true, "chr1", 1));
+    final MateCache.Window first = cache.newWindow();
+    final MateCache.Window second = cache.newWindow();
+    final SAMRecord shared = read("shared", true, "chr1", 100);
+    first.add(shared);
+    second.add(shared);
+    first.add(read("far", true, "chr1", 5000));
+    assertTrue(isKnown(shared));
+  }
+
+  @Test
+  public void testRegionHitsAndMisses() {
+    final SAMRecord inRegion = read("inRegion", true, "chr1", 1200);
+    final SAMRecord unpaired = read("unpaired", true, "chr1", 1300);
+    final SAMRecord unpairedMate = mateOf(unpaired);
+    unpaired.setReadPairedFlag(false);
+    cache.addRegion("chr1", 1000, 1499, Arrays.asList(inRegion, unpaired).iterator());
+    final SAMRecord mate = cache.findMate(mateOf(inRegion));
+    assertNotNull(mate);
+    assertEquals("inRegion", mate.getReadName());
+    assertTrue(mate.getFirstOfPairFlag());
+    // Mates are copies, changing them does not change the cache.
+    assertNotSame(inRegion, mate);
+    mate.setReadName("changed");
+    assertEquals("inRegion", cache.findMate(mateOf(inRegion)).getReadName());
+    assertNull(cache.findMate(inRegion));
+    assertNull(cache.findMate(unpairedMate));
+    assertEquals("MateCache: 2 hits, 2 misses, 0 streamed records, 1 regions", 
+        cache.toString());
+  }
+
+  @Test
+  public void testIsFetched() {
+    assertFalse(cache.isFetched("chr1", 1000));
+    cache.addRegion("chr1", 1000, 1499, Collections.<SAMRecord>emptyIterator());
+    assertTrue(cache.isFetched("chr1", 1000));
+    assertTrue(cache.isFetched("chr1", 1499));
+    assertFalse(cache.isFetched("chr1", 999));
+    assertFalse(cache.isFetched("chr1", 1500));
+    assertFalse(cache.isFetched("chr2", 1200));
+    // A mate starting in a fetched region that is not in it does not exist,
+    // so the lookup can stop there.
+    final SAMRecord missing = read("missing", true, "chr1", 1200);
+    assertNull(cache.findMate(missing));
+    assertTrue(cache.isFetched(missing.getMateReferenceName(), 
+        missing.getMateAlignmentStart()));
+  }
+
+  @Test
+  public void testOldestRegionsAreForgotten() {
+    final SAMRecord oldest = read("oldest", true, "chr1", 1);
+    cache.addRegion("chr1", 1, 500, Collections.singletonList(oldest).iterator());
+    for (int i = 1; i < 8; i++) {
+      cache.addRegion("chr1", i * 1000, i * 1000 + 499, 
+          Collections.<SAMRecord>emptyIterator());
+    }
+    assertTrue(cache.isFetched("chr1", 1));
+    assertTrue(isKnown(oldest));
+    cache.addRegion("chr2", 1, 500, Collections.<SAMRecord>emptyIterator());
+    assertFalse(cache.isFetched("chr1", 1));
+    assertFalse(isKnown(oldest));
+    assertTrue(cache.isFetched("chr1", 1000));
+  }
+}
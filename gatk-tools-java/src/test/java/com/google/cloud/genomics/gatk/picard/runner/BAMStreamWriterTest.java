@@ -0,0 +1,201 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.picard.runner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.genomics.gatk.common.ParallelBlockCompressedOutputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Writes the records of testdata/ex1_sorted.bam through BAMStreamWriter and
+ * ParallelBlockCompressedOutputStream and reads them back with htsjdk.
+ */
+public class BAMStreamWriterTest {
+  private static final File INPUT = new File("testdata/ex1_sorted.bam");
+
+  private ExecutorService executor;
+  private SAMFileHeader header;
+  private List<SAMRecord> records;
+
+  @Before
+  public void setUp() throws IOException {
+    executor = Executors.newFixedThreadPool(4);
+    final SamReader reader = SamReaderFactory.makeDefault().open(INPUT);
+    header = reader.getFileHeader();
+    records = new ArrayList<SAMRecord>();
+    for (SAMRecord record : reader) {
+      records.add(record);
+    }
+    reader.close();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private byte[] write(int compressionLevel, ExecutorService executor) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final SAMFileWriter writer = new BAMStreamWriter(header,
+        new ParallelBlockCompressedOutputStream(out, compressionLevel, executor, 8));
+    for (SAMRecord record : records) {
+      writer.addAlignment(record);
+    }
+    writer.close();
+    return out.toByteArray();
+  }
+
+  /**
+   * Checks that the BAM is a sequence of BGZF blocks, each a valid gzip
+   * member, ending with the empty terminator block.
+   */
+  private static void assertBgzfBlocks(byte[] bam) throws IOException {
+    int position = 0;
+    int blocks = 0;
+    while (position < bam.length) {
+      assertTrue(bam.length - position >= BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+      assertEquals(BlockCompressedStreamConstants.GZIP_ID1, bam[position]);
+      assertEquals((byte)BlockCompressedStreamConstants.GZIP_ID2, bam[position + 1]);
+      assertEquals(BlockCompressedStreamConstants.GZIP_CM_DEFLATE, bam[position + 2]);
+      assertEquals(BlockCompressedStreamConstants.GZIP_FLG, bam[position + 3]);
+      assertEquals(BlockCompressedStreamConstants.GZIP_XLEN, readShort(bam, position + 10));
+      assertEquals(BlockCompressedStreamConstants.BGZF_ID1, bam[position + 12]);
+      assertEquals(BlockCompressedStreamConstants.BGZF_ID2, bam[position + 13]);
+      assertEquals(BlockCompressedStreamConstants.BGZF_LEN, readShort(bam, position + 14));
+      final int blockLength = readShort(bam, position + 16) + 1;
+      assertTrue(blockLength <= BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE);
+      assertTrue(position + blockLength <= bam.length);
+      // GZIPInputStream checks the CRC and the uncompressed size of the block.
+      final byte[] data = ByteStreams.toByteArray(new GZIPInputStream(
+          new ByteArrayInputStream(bam, position, blockLength)));
+      assertTrue(data.length <= BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE);
+      position += blockLength;
+      blocks++;
+    }
+    assertTrue(blocks > 2);
+    assertArrayEquals(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK, Arrays.copyOfRange(bam,
+        bam.length - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length, bam.length));
+  }
+
+  private static int readShort(byte[] bytes, int position) {
+    return (bytes[position] & 0xff) | (bytes[position + 1] & 0xff) << 8;
+  }
+
+  private void assertRoundTrip(byte[] bam) throws IOException {
+    assertBgzfBlocks(bam);
+    final File file = File.createTempFile("BAMStreamWriterTest", ".bam");
+    try {
+      Files.write(bam, file);
+      assertEquals(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK,
+          BlockCompressedInputStream.checkTermination(file));
+    } finally {
+      file.delete();
+    }
+    final SamReader reader = SamReaderFactory.makeDefault().open(
+        SamInputResource.of(new ByteArrayInputStream(bam)));
+    assertEquals(header, reader.getFileHeader());
+    int count = 0;
+    for (SAMRecord record : reader) {
+      assertEquals(records.get(count).getSAMString(), record.getSAMString());
+      count++;
+    }
+    reader.close();
+    assertEquals(records.size(), count);
+  }
+
+  @Test
+  public void testParallelCompression() throws IOException {
+    final byte[] bam = write(5, executor);
+    assertRoundTrip(bam);
+    assertArrayEquals(write(5, null), bam);
+  }
+
+  @Test
+  public void testCompressionOnWritingThread() throws IOException {
+    assertRoundTrip(write(9, null));
+  }
+
+  @Test
+  public void testNoCompression() throws IOException {
+    final byte[] bam = write(0, executor);
+    assertRoundTrip(bam);
+    assertTrue(bam.length > Files.asByteSource(INPUT).size());
+  }
+
+  @Test
+  public void testCloseAfterFailedWrite() throws IOException {
+    final boolean[] closed = new boolean[1];
+    final ParallelBlockCompressedOutputStream out = new ParallelBlockCompressedOutputStream(
+        new FilterOutputStream(new ByteArrayOutputStream()) {
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            throw new IOException("Write failed");
+          }
+
+          @Override
+          public void close() {
+            closed[0] = true;
+          }
+        }, 5, executor, 8);
+    final byte[] data = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+    try {
+      for (int i = 0; i < 20; i++) {
+        out.write(data);
+      }
+      fail("Expected the write to fail");
+    } catch (IOException ex) {
+      assertEquals("Write failed", ex.getMessage());
+    }
+    try {
+      out.close();
+      fail("Expected the close to fail");
+    } catch (IOException ex) {
+      assertEquals("Write failed", ex.getMessage());
+    }
+    assertTrue(closed[0]);
+    out.close();
+  }
+}
@@ -0,0 +1,83 @@
+/*
+Copyright 2014 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package htsjdk.samtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.genomics.gatk.htsjdk.GA4GHCoverageIndex;
+import com.google.cloud.genomics.gatk.htsjdk.GA4GHCoverageIndexTest;
+
+import org.junit.Test;
+
+public class GA4GHBrowseableIndexTest {
+  private final GA4GHBrowseableIndex index = 
+      new GA4GHBrowseableIndex(GA4GHCoverageIndexTest.makeIndex());
+
+  @Test
+  public void testMetaData() {
+    final BAMIndexMetaData metaData = index.getMetaData(0);
+    assertEquals(3, metaData.getAlignedRecordCount());
+    assertEquals(1, metaData.getUnalignedRecordCount());
+    assertEquals(1, metaData.getFirstOffset());
+    assertEquals(16484, metaData.getLastOffset());
+    assertEquals(0, index.getMetaData(1).getAlignedRecordCount());
+    assertEquals(0, index.getMetaData(1).getUnalignedRecordCount());
+  }
+
+  @Test
+  public void testSpans() {
+    final BAMFileSpan span = index.getSpanOverlapping(0, 16480, 16500);
+    assertTrue(span instanceof GA4GHBrowseableIndex.Span);
+    assertEquals("[0:16380-16484]", span.toString());
+    assertEquals("[0:16385-16484]", index.getSpanOverlapping(new Bin(0, 4682)).toString());
+    assertNull(index.getSpanOverlapping(new Bin(0, 4683)));
+    assertNull(index.getSpanOverlapping(1, 1, 1000));
+    assertEquals("[0:16401-16484]", span.removeContentsBefore(
+        index.getSpanOverlapping(0, 16400, 16400).getContentsFollowing()).toString());
+    assertEquals("[0:16485-1000000, 1:1-1000000]", 
+        span.getContentsFollowing().toString());
+    assertEquals(span.toString(), span.clone().toString());
+    try {
+      span.add(span);
+      fail("Merged spans of GA4GH reads");
+    } catch (UnsupportedOperationException ex) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testBins() {
+    int count = 0;
+    for (Bin bin : index.getBinsOverlapping(0, 1, 100)) {
+      assertEquals(1, index.getFirstLocusInBin(bin));
+      count++;
+    }
+    assertEquals(2, count);
+    assertEquals(5, index.getLevelForBin(new Bin(0, 4681)));
+    assertEquals(8, index.getLevelSize(1));
+    assertEquals(16384, index.getLastLocusInBin(new Bin(0, 4681)));
+  }
+
+  @Test
+  public void testStartOfLastLinearBin() {
+    assertEquals(16380, index.getStartOfLastLinearBin());
+    assertEquals(-1, new GA4GHBrowseableIndex(new GA4GHCoverageIndex.Builder(
+        GA4GHCoverageIndexTest.makeDictionary()).build()).getStartOfLastLinearBin());
+  }
+}